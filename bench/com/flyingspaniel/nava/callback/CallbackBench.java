@@ -0,0 +1,160 @@
+package com.flyingspaniel.nava.callback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the ways of running a chain of Callbacks:  Callbacks.runSync(), runASyncInLine(), callableRunASync(),
+ * and CallbackExecutor.submitCallback() (in both handler and work-stealing modes), as well as a compiled Pipeline.
+ * <p>
+ * Parameters are the chain length, and whether each stage burns CPU or sleeps (like a Request waiting on IO).
+ * Each benchmark is measured both for throughput and as sampled latency, whose output includes the p99.
+ * The number of submitting threads is chosen on the command line, and allocation by the gc profiler, e.g.
+ * <pre>
+ *    java -jar benchmarks.jar CallbackBench -t 1 -t 8 -t 64 -prof gc
+ * </pre>
+ * See bench/README.md.  The difference between runSync and the others is the cost of the handler hop and per-link Future.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallbackBench {
+
+   @Param({ "1", "5", "20", "50" })
+   public int chainLength;
+
+   @Param({ "cpu", "sleep" })
+   public String stage;
+
+   @Param({ "8" })
+   public int poolThreads;
+
+   Callback first;
+   Pipeline pipeline;
+   ExecutorService pool;
+   CallbackExecutor handlerExecutor;
+   CallbackExecutor workStealingExecutor;
+
+
+   @Setup(Level.Trial)
+   public void setup() {
+      Callback[] stages = new Callback[chainLength];
+      for (int i=0; i<chainLength; i++)
+         stages[i] = "cpu".equals(stage) ? new Cpu() : new Sleep();
+
+      pipeline = Pipeline.of(stages[0], tail(stages));
+      first = Callbacks.chainUp(stages[0], tail(stages));   // after the Pipeline, which doesn't care
+
+      pool = Executors.newFixedThreadPool(poolThreads);
+      handlerExecutor = new CallbackExecutor(poolThreads, 2);
+      workStealingExecutor = new CallbackExecutor(new ForkJoinPool(poolThreads));
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws InterruptedException {
+      pool.shutdownNow();
+      handlerExecutor.shutdown(1000L);
+      workStealingExecutor.shutdown(1000L);
+   }
+
+
+   @Benchmark
+   public Object runSync() throws Exception {
+      return Callbacks.runSync(first, 1L);
+   }
+
+   @Benchmark
+   public Object pipelineRun() throws Exception {
+      return pipeline.run(1L);
+   }
+
+   @Benchmark
+   public Object runASyncInLine() throws Exception {
+      return Callbacks.runASyncInLine(pool, first, 1L);
+   }
+
+   @Benchmark
+   public Object callableRunASync() throws Exception {
+      return Callbacks.callableRunASync(pool, first, 1L).call();
+   }
+
+   @Benchmark
+   public Object submitCallback() throws Exception {
+      return await(handlerExecutor.submitCallback(first, 1L));
+   }
+
+   @Benchmark
+   public Object submitPipeline() throws Exception {
+      return await(handlerExecutor.submitPipeline(pipeline, 1L));
+   }
+
+   @Benchmark
+   public Object submitCallbackWorkStealing() throws Exception {
+      return await(workStealingExecutor.submitCallback(first, 1L));
+   }
+
+
+   static Object await(CallbackChain chain) throws Exception {
+      if (!chain.await(10L, TimeUnit.SECONDS))
+         throw new IllegalStateException("chain did not complete");
+      if (chain.getFailure() != null)
+         throw chain.getFailure();
+      return chain.getResult();
+   }
+
+   static Callback[] tail(Callback[] stages) {
+      Callback[] tail = new Callback[stages.length - 1];
+      System.arraycopy(stages, 1, tail, 0, tail.length);
+      return tail;
+   }
+
+
+   /**
+    * About a microsecond of CPU
+    */
+   static class Cpu extends AbstractCallback<Long, Long> {
+      @Override
+      public Long callback(Exception ex, Long in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         Blackhole.consumeCPU(250L);
+         return in + 1L;
+      }
+   }
+
+   /**
+    * Waits about 100 microseconds, as if on IO
+    */
+   static class Sleep extends AbstractCallback<Long, Long> {
+      @Override
+      public Long callback(Exception ex, Long in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         LockSupport.parkNanos(100000L);
+         return in + 1L;
+      }
+   }
+}
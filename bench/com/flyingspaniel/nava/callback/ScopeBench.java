@@ -0,0 +1,112 @@
+package com.flyingspaniel.nava.callback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency of independent branches serving one request, run one after another versus forked in a CallbackScope.
+ * Branch i waits (i+1) * branchMicros, as if on IO, so sequential latency is the sum of the branches,
+ * and forked latency should be that of the slowest, plus the cost of the forks and joins.
+ * <pre>
+ *    java -jar benchmarks.jar ScopeBench -p branches=4
+ * </pre>
+ * See bench/README.md.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScopeBench {
+
+   @Param({ "2", "4", "8" })
+   public int branches;
+
+   @Param({ "100", "1000" })
+   public long branchMicros;
+
+   Pipeline[] pipelines;
+   ExecutorService pool;
+
+
+   @Setup(Level.Trial)
+   public void setup() {
+      pipelines = new Pipeline[branches];
+      for (int i=0; i<branches; i++)
+         pipelines[i] = Pipeline.of(new Wait(TimeUnit.MICROSECONDS.toNanos((i+1) * branchMicros)));
+
+      pool = Executors.newCachedThreadPool();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      pool.shutdownNow();
+   }
+
+
+   @Benchmark
+   public long sequential() throws Exception {
+      long total = 0L;
+      for (Pipeline pipeline : pipelines)
+         total += (Long) pipeline.run(1L);
+      return total;
+   }
+
+   @Benchmark
+   public long forked() throws Exception {
+      CallbackScope scope = new CallbackScope(pool);
+      try {
+         CallbackScope.Branch[] forked = new CallbackScope.Branch[branches];
+         for (int i=0; i<branches; i++)
+            forked[i] = scope.fork(pipelines[i], 1L);
+         scope.joinAll(10L, TimeUnit.SECONDS);
+
+         long total = 0L;
+         for (CallbackScope.Branch branch : forked)
+            total += (Long) branch.get();
+         return total;
+      } finally {
+         scope.close();
+      }
+   }
+
+
+   /**
+    * Waits, as if on IO
+    */
+   static class Wait extends AbstractCallback<Long, Long> {
+      final long nanos;
+
+      Wait(long nanos) {
+         this.nanos = nanos;
+      }
+
+      @Override
+      public Long callback(Exception ex, Long in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         LockSupport.parkNanos(nanos);
+         return in + 1L;
+      }
+   }
+}
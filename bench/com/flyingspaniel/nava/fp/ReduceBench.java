@@ -0,0 +1,133 @@
+package com.flyingspaniel.nava.fp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the primitive reductions in Fns (via FP.reducep) against the plain single accumulator loops they replaced,
+ * and against FP.parReducep.  Arrays range from fitting in L1 cache to well beyond L3.
+ * <pre>
+ *    java -jar benchmarks.jar ReduceBench -p size=1000000
+ * </pre>
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReduceBench {
+
+   @Param({ "1000", "100000", "10000000" })
+   public int size;
+
+   double[] doubles;
+   int[] ints;
+
+
+   @Setup(Level.Trial)
+   public void setup() {
+      Random random = new Random(42);
+      doubles = new double[size];
+      ints = new int[size];
+      for (int i=0; i<size; i++) {
+         doubles[i] = 1.0 + (random.nextDouble() - 0.5) * 1e-6;   // keeps the product near 1, avoiding denormals
+         ints[i] = random.nextInt();
+      }
+   }
+
+
+   @Benchmark
+   public double sumDoubleScalar() {
+      double sum = 0.0;
+      for (double d : doubles)
+         sum += d;
+      return sum;
+   }
+
+   @Benchmark
+   public double sumDouble() {
+      return FP.reducep(doubles, Fns.SUMpdouble);
+   }
+
+   @Benchmark
+   public double sumDoubleParallel() {
+      return FP.parReducep(doubles, Fns.SUMpdouble);
+   }
+
+   @Benchmark
+   public double productDoubleScalar() {
+      double prod = 1.0;
+      for (double d : doubles)
+         prod *= d;
+      return prod;
+   }
+
+   @Benchmark
+   public double productDouble() {
+      return FP.reducep(doubles, Fns.PRODUCTpdouble);
+   }
+
+   @Benchmark
+   public double maxDoubleScalar() {
+      double max = doubles[0];
+      for (int i=0; i<doubles.length; i++) {
+         if (doubles[i] > max)
+            max = doubles[i];
+      }
+      return max;
+   }
+
+   @Benchmark
+   public double maxDouble() {
+      return FP.reducep(doubles, Fns.MAXpdouble);
+   }
+
+
+   @Benchmark
+   public int sumInt() {
+      return FP.reducep(ints, Fns.SUMpint);
+   }
+
+   @Benchmark
+   public int minIntScalar() {
+      int min = ints[0];
+      for (int i=0; i<ints.length; i++) {
+         if (ints[i] < min)
+            min = ints[i];
+      }
+      return min;
+   }
+
+   @Benchmark
+   public int minInt() {
+      return FP.reducep(ints, Fns.MINpint);
+   }
+
+   @Benchmark
+   public int productInt() {
+      return FP.reducep(ints, Fns.PRODUCTpint);
+   }
+
+   @Benchmark
+   public int minIntParallel() {
+      return FP.parReducep(ints, Fns.MINpint);
+   }
+}
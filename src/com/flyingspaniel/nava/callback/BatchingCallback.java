@@ -0,0 +1,140 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Callback stage that is much cheaper in bulk, e.g. one database write of 500 rows instead of 500 writes.
+ * Subclasses implement callbackBatch(), which gets a List of inputs and returns a List of outputs, in the same order.
+ * <p>
+ * When run by a CallbackExecutor, links arriving from concurrent chains are collected, without holding any threads,
+ * until there are maxSize() of them, or the first has waited maxDelay(), then callbackBatch() is called once
+ * for all of them, on one of the executor's threads.  Each output continues down its own chain.
+ * If callbackBatch() throws, the Exception continues down every chain in the batch.
+ * <p>
+ * When run synchronously (e.g. Callbacks.runSync() or Pipeline.run()) each input is a batch of one.
+ * An incoming Exception is never batched, it goes to handleException(), which by default rethrows it.
+ * <p>
+ * Because a batch belongs to many chains, a batched link is not subject to its chain's linkTimeout,
+ * and CallbackChain.current() is null in callbackBatch().  Cancelled chains, or those past their deadline,
+ * are dropped from the batch before it runs.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public abstract class BatchingCallback<IN, OUT> extends AbstractCallback<IN, OUT> {
+
+   protected int maxSize = 100;
+   protected long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(10L);
+
+   // batches being collected, one per CallbackExecutor
+   private final Map<CallbackExecutor, List<CallbackAnd.Input>> open =
+         new IdentityHashMap<CallbackExecutor, List<CallbackAnd.Input>>();  // guarded by this
+
+
+   /**
+    * Process a batch of inputs
+    * @param inputs  non-empty
+    * @return        outputs, must be the same size, and in the same order, as inputs
+    * @throws Exception  fails every input
+    */
+   protected abstract List<OUT> callbackBatch(List<IN> inputs) throws Exception;
+
+
+   /**
+    * Largest batch, default is 100
+    * @param maxSize  >= 1
+    * @return this
+    */
+   public BatchingCallback<IN, OUT> maxSize(int maxSize) {
+      if (maxSize < 1)
+         throw new IllegalArgumentException("maxSize=" + maxSize);
+      this.maxSize = maxSize;
+      return this;
+   }
+
+   /**
+    * Longest that the first link of a batch waits for others to join it, default is 10 msecs
+    * @return this
+    */
+   public BatchingCallback<IN, OUT> maxDelay(long delay, TimeUnit unit) {
+      this.maxDelayNanos = Math.max(0L, unit.toNanos(delay));
+      return this;
+   }
+
+
+   /**
+    * Synchronous version, a batch of one
+    */
+   @Override
+   public OUT callback(Exception ex, IN in, Object...more) throws Exception {
+      failFast(ex, in, more);
+      return callBatch(Collections.singletonList(in)).get(0);
+   }
+
+
+   /**
+    * Calls callbackBatch() and checks the result
+    */
+   List<OUT> callBatch(List<IN> inputs) throws Exception {
+      List<OUT> outputs = callbackBatch(inputs);
+      if ((outputs == null) || (outputs.size() != inputs.size()))
+         throw new IllegalStateException(this + " returned " + ((outputs == null) ? "null" : outputs.size() + " outputs")
+               + " for " + inputs.size() + " inputs");
+      return outputs;
+   }
+
+
+   /**
+    * Used by CallbackExecutor:  add a link to its current batch, starting a new one (and its maxDelay timer) if needed
+    */
+   void add(final CallbackExecutor executor, CallbackAnd.Input input) {
+      final List<CallbackAnd.Input> batch;
+      boolean started;
+      boolean full;
+      synchronized (this) {
+         List<CallbackAnd.Input> current = open.get(executor);
+         started = (current == null);
+         if (started) {
+            current = new ArrayList<CallbackAnd.Input>();
+            open.put(executor, current);
+         }
+         current.add(input);
+         full = current.size() >= maxSize;
+         if (full)
+            open.remove(executor);
+         batch = current;
+      }
+
+      if (full)
+         executor.runBatch(this, batch);
+      else if (started) {
+         executor.timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+               if (close(executor, batch))
+                  executor.runBatch(BatchingCallback.this, batch);
+            }
+         }, maxDelayNanos, TimeUnit.NANOSECONDS);
+      }
+   }
+
+   /**
+    * @return false if batch had already filled up and been run
+    */
+   private synchronized boolean close(CallbackExecutor executor, List<CallbackAnd.Input> batch) {
+      if (open.get(executor) != batch)
+         return false;
+      open.remove(executor);
+      return true;
+   }
+
+   public int getMaxSize() {
+      return maxSize;
+   }
+}
@@ -0,0 +1,262 @@
+package com.flyingspaniel.nava.callback;
+
+import com.flyingspaniel.nava.fp.Fn;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorates a pure (same input, same output) but expensive Callback, e.g. URL signing or parsing, with a cache.
+ * <p>
+ * Options are set, fluent style: <ul>
+ *    <li>maxSize()   most entries, default is 1000.  The least recently used are evicted first.</li>
+ *    <li>maxWeight() most total weight, as measured by a weigher Fn of the output, e.g. a String's length()</li>
+ *    <li>expireAfterWrite()  how long an entry is good for, default is forever</li>
+ *    <li>keyedBy()   an Fn to compute the cache key from the input, default is the input itself.  The more... part is ignored.
+ *                    A null key (e.g. a null input) is cached like any other.</li>
+ * </ul>
+ * Concurrent misses for the same key are de-duplicated ("single flight"):  only one of them calls the delegate,
+ * the others wait for, and share, its result.  Exceptions are never cached, but are shared with those waiting.
+ * An incoming Exception is passed straight to the delegate.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class CachingCallback<IN, OUT> extends CallbackDecorator<IN, OUT> {
+
+   protected long maxSize = 1000L;
+   protected long maxWeight = Long.MAX_VALUE;
+   protected Fn<Object, ? extends Number> weigher = null;
+   protected long ttlNanos = 0L;   // 0 means forever
+   protected Fn<IN, ?> keyFn = null;
+
+   private static final Object NULL_KEY = new Object();   // stands in for null, which ConcurrentHashMap can't hold
+
+   // access ordered, so iteration starts with the least recently used
+   private final LinkedHashMap<Object, Entry> cache = new LinkedHashMap<Object, Entry>(16, 0.75f, true);  // guarded by itself
+   private long totalWeight = 0L;   // guarded by cache
+   private final ConcurrentMap<Object, FutureTask<OUT>> loading = new ConcurrentHashMap<Object, FutureTask<OUT>>();
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong shared = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+
+
+   public CachingCallback(Callback<IN, OUT> delegate) {
+      super(delegate);
+   }
+
+
+   /**
+    * @param maxSize  most entries to keep, >= 1
+    * @return this
+    */
+   public CachingCallback<IN, OUT> maxSize(long maxSize) {
+      if (maxSize < 1L)
+         throw new IllegalArgumentException("maxSize=" + maxSize);
+      this.maxSize = maxSize;
+      return this;
+   }
+
+   /**
+    * @param maxWeight  most total weight to keep
+    * @param weigher    weight of an output, must be >= 0, and not change while cached
+    * @return this
+    */
+   public CachingCallback<IN, OUT> maxWeight(long maxWeight, Fn<Object, ? extends Number> weigher) {
+      this.maxWeight = maxWeight;
+      this.weigher = weigher;
+      return this;
+   }
+
+   /**
+    * @param ttl   if <= 0, entries never expire
+    * @return this
+    */
+   public CachingCallback<IN, OUT> expireAfterWrite(long ttl, TimeUnit unit) {
+      this.ttlNanos = Math.max(0L, unit.toNanos(ttl));
+      return this;
+   }
+
+   /**
+    * @param keyFn  computes the cache key from the input, which must have sensible equals() and hashCode()
+    * @return this
+    */
+   public CachingCallback<IN, OUT> keyedBy(Fn<IN, ?> keyFn) {
+      this.keyFn = keyFn;
+      return this;
+   }
+
+
+   @Override
+   public OUT callback(Exception ex, final IN in, final Object...more) throws Exception {
+      if (ex != null)
+         return delegate.callback(ex, in, more);
+
+      Object key = mapKey((keyFn != null) ? keyFn.fn1(in) : in);
+      Entry entry = get(key);
+      if (entry != null) {
+         hits.incrementAndGet();
+         return entry.value;
+      }
+
+      misses.incrementAndGet();
+      FutureTask<OUT> task = new FutureTask<OUT>(new Callable<OUT>() {
+         @Override
+         public OUT call() throws Exception {
+            return delegate.callback(null, in, more);
+         }
+      });
+
+      FutureTask<OUT> other = loading.putIfAbsent(key, task);
+      if (other != null) {
+         shared.incrementAndGet();
+         return resultOf(other);
+      }
+
+      try {
+         task.run();
+         OUT output = resultOf(task);
+         put(key, output);
+         return output;
+      }
+      finally {
+         loading.remove(key, task);
+      }
+   }
+
+
+   /**
+    * Remove one entry
+    * @param key  as computed by keyedBy(), by default, the input
+    */
+   public void invalidate(Object key) {
+      synchronized (cache) {
+         Entry entry = cache.remove(mapKey(key));
+         if (entry != null)
+            totalWeight -= entry.weight;
+      }
+   }
+
+   public void invalidateAll() {
+      synchronized (cache) {
+         cache.clear();
+         totalWeight = 0L;
+      }
+   }
+
+
+   public int size() {
+      synchronized (cache) {
+         return cache.size();
+      }
+   }
+
+   public long getHitCount() {
+      return hits.get();
+   }
+
+   /**
+    * @return number of misses, including those that shared another's result
+    */
+   public long getMissCount() {
+      return misses.get();
+   }
+
+   /**
+    * @return number of misses that waited for, and shared, a concurrent call for the same key
+    */
+   public long getSharedCount() {
+      return shared.get();
+   }
+
+   public long getEvictionCount() {
+      return evictions.get();
+   }
+
+   /**
+    * @return hits / (hits + misses), or NaN if none
+    */
+   public double getHitRate() {
+      long h = hits.get();
+      long total = h + misses.get();
+      return (total == 0L) ? Double.NaN : (double) h / total;
+   }
+
+   @Override
+   public String toString() {
+      return "CachingCallback(" + delegate + ", size=" + size() + ", hits=" + hits + ", misses=" + misses + ")";
+   }
+
+
+   private static Object mapKey(Object key) {
+      return (key != null) ? key : NULL_KEY;
+   }
+
+   private Entry get(Object key) {
+      synchronized (cache) {
+         Entry entry = cache.get(key);
+         if ((entry != null) && (ttlNanos > 0L) && (System.nanoTime() - entry.writtenAt >= ttlNanos)) {
+            cache.remove(key);
+            totalWeight -= entry.weight;
+            return null;
+         }
+         return entry;
+      }
+   }
+
+   private void put(Object key, OUT value) {
+      long weight = (weigher != null) ? weigher.fn1(value).longValue() : 1L;
+      if (weight > maxWeight)
+         return;   // would evict everything else, and itself
+
+      synchronized (cache) {
+         Entry old = cache.put(key, new Entry(value, weight));
+         if (old != null)
+            totalWeight -= old.weight;
+         totalWeight += weight;
+
+         Iterator<Map.Entry<Object, Entry>> lru = cache.entrySet().iterator();
+         while (((cache.size() > maxSize) || (totalWeight > maxWeight)) && lru.hasNext()) {
+            Entry evicted = lru.next().getValue();
+            lru.remove();
+            totalWeight -= evicted.weight;
+            evictions.incrementAndGet();
+         }
+      }
+   }
+
+   private OUT resultOf(FutureTask<OUT> task) throws Exception {
+      try {
+         return task.get();
+      }
+      catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof Error)
+            throw (Error) cause;
+         throw (Exception) cause;
+      }
+   }
+
+
+   final class Entry {
+      final OUT value;
+      final long weight;
+      final long writtenAt = System.nanoTime();
+
+      Entry(OUT value, long weight) {
+         this.value = value;
+         this.weight = weight;
+      }
+   }
+}
@@ -28,13 +28,39 @@ public class CallbackAnd {
       final IN input;
       final Object[] more;
 
+      final Pipeline pipeline;    // null unless we are part of a compiled Pipeline
+      final int stage;            // our index in pipeline
+      final CallbackChain chain;  // null unless submitted via a CallbackExecutor
+      final int attempt;          // 1-based, > 1 if we are a retry of a RetryingCallback
+      final int depth;            // 0-based position of this link in its chain, for tracing
+      final long createdAt = System.nanoTime();   // when we were queued
+
       Input(Callback<IN, OUT> nextCallback, Exception ex, IN in, Object...more) {
-         this.callback = nextCallback;
+         this(nextCallback, null, -1, null, 0, 1, ex, in, more);
+      }
+
+      private Input(Callback<IN, OUT> callback, Pipeline pipeline, int stage, CallbackChain chain, int depth, int attempt,
+                    Exception ex, IN in, Object...more) {
+         this.callback = callback;
+         this.pipeline = pipeline;
+         this.stage = stage;
+         this.chain = chain;
+         this.depth = depth;
+         this.attempt = attempt;
          this.ex = ex;
          this.input = in;
          this.more = more;
       }
 
+      /**
+       * Create inputs for the first link of a CallbackChain
+       */
+      static Input forChain(CallbackChain chain, Object in, Object...more) {
+         if (chain.pipeline != null)
+            return new Input(chain.pipeline.getCallback(chain.firstStage), chain.pipeline, chain.firstStage, chain, 0, 1, null, in, more);
+         return new Input(chain.first, null, -1, chain, 0, 1, null, in, more);
+      }
+
 
       /**
        * Create inputs from the previous output in the chain
@@ -42,35 +68,133 @@ public class CallbackAnd {
        * @return null     if at the end of the chain
        */
       static Input fromOutput(CallbackAnd.Output output) {
-         if ((output != null) && (output.completedCallback.getNextCallback() != null))
-            return new Input(output.completedCallback.getNextCallback(), null, output.output, output.more);
-         else
+         if (output == null)
             return null;
+         if (output.from != null)
+            return output.from.next(null, output.output, output.more);
+
+         // an Output we did not create, fall back to the link
+         Callback next = output.completedCallback.getNextCallback();
+         return (next != null) ? new Input(next, null, output.output, output.more) : null;
       }
 
       static Input fromXception(CallbackAnd.Xception xception) {
-         return new Input(xception.callbackThatThrew.getNextCallback(), xception.getException(), null);
+         if (xception.from != null)
+            return xception.from.next(xception.getException(), null);
+
+         Callback next = xception.callbackThatThrew.getNextCallback();
+         return (next != null) ? new Input(next, xception.getException(), null) : null;
+      }
+
+
+      /**
+       * The Callback following ours, either from the Pipeline or from getNextCallback()
+       * @return null means end of the line
+       */
+      Callback getNextCallback() {
+         return (pipeline != null) ? pipeline.getCallback(stage+1) : callback.getNextCallback();
+      }
+
+      /**
+       * Create the inputs for the Callback following ours, in the same chain
+       * @return null if at the end of the chain
+       */
+      Input next(Exception ex, Object in, Object...more) {
+         Callback next = getNextCallback();
+         return (next != null) ? new Input(next, pipeline, stage+1, chain, depth+1, 1, ex, in, more) : null;
+      }
+
+      /**
+       * Create the inputs to try our RetryingCallback again
+       */
+      Input retry() {
+         return new Input(callback, pipeline, stage, chain, depth, attempt+1, ex, input, more);
+      }
+
+      /**
+       * @return Limiter if our callback is (or wraps, see CallbackDecorator) a LimitedCallback and this is not an incoming Exception, else null
+       */
+      Limiter limiter() {
+         LimitedCallback limited = (ex == null) ? CallbackDecorator.find(callback, LimitedCallback.class) : null;
+         return (limited != null) ? limited.getLimiter() : null;   // an incoming Exception goes straight to the delegate, without waiting
+      }
+
+      /**
+       * @return RetryPolicy if our callback is (or wraps) a RetryingCallback and it is worth retrying this Exception, else null
+       */
+      RetryPolicy retryPolicyFor(Exception thrown) {
+         RetryingCallback retrying = (ex == null) ? CallbackDecorator.find(callback, RetryingCallback.class) : null;
+         if (retrying == null)
+            return null;   // never retry an incoming Exception
+         RetryPolicy policy = retrying.getRetryPolicy();
+         return policy.shouldRetry(attempt, thrown) ? policy : null;
       }
 
+      boolean producesMultiple() {
+         return (pipeline != null) ? pipeline.stages[stage].producesMultiple : (callback instanceof Callback.ProducesMultiple);
+      }
+
+      Object[] getMore() {
+         return (pipeline != null) ? pipeline.stages[stage].getMore() : Callbacks.getMore(callback);
+      }
+
+
       /**
-       * Wraps ourself in a Callable that will return a CallbackAnd.Output
+       * Wraps ourself in a Callable that will return a CallbackAnd.Output<p>
+       * If we are part of a CallbackChain with a deadline or link timeout, and we run too long, we get interrupted
+       * and throw an Xception wrapping a TimeoutException.  If the chain is cancelled, a CancellationException.
+       * When part of a chain, an InterruptedException is also wrapped, so that the chain always learns our fate.
+       *
        * @return Callable that will produce a CallbackAnd.Output
        * @throws InterruptedException
        * @throws CallbackAnd.Xception
        */
       @Override
+      @SuppressWarnings("unchecked")
       public CallbackAnd.Output<OUT> call() throws InterruptedException, CallbackAnd.Xception {
+         CallbackChain.Link link = (chain != null) ? chain.start(this) : null;
+         long startedAt = System.nanoTime();
+         OUT output = null;
+         Exception thrown = null;
+         boolean interrupted = false;
          try {
-            OUT output = callback.callback(ex, input, more);
-            Object more = Callbacks.getMore(callback);
-            return new CallbackAnd.Output<OUT>(callback, output, more);
-         }
-         catch (InterruptedException ie) {
-             throw ie;
+            Exception inEx = ((ex == null) && (link != null)) ? link.expired : ex;
+            if (callback instanceof CallbackDecorator)
+               output = ((CallbackDecorator<IN, OUT>) callback).callbackInExecutor(attempt, inEx, input, more);
+            else
+               output = callback.callback(inEx, input, more);
          }
          catch (Exception e) {
-            throw new CallbackAnd.Xception(callback, e);
+            thrown = e;
          }
+         finally {
+            if (link != null)
+               interrupted = link.finish();
+         }
+         long finishedAt = System.nanoTime();
+
+         CallbackAnd.Xception cax = null;
+         if (interrupted)   // by us, whatever the callback did is moot
+            cax = link.xception();
+         else if ((thrown instanceof InterruptedException) && (chain == null))
+            throw (InterruptedException) thrown;
+         else if (thrown != null)
+            cax = xception(thrown);
+
+         if (cax != null) {
+            cax.startedAt = startedAt;
+            cax.finishedAt = finishedAt;
+            throw cax;
+         }
+
+         return new CallbackAnd.Output<OUT>(this, output, startedAt, finishedAt, getMore());
+      }
+
+
+      CallbackAnd.Xception xception(Exception e) {
+         CallbackAnd.Xception cax = new CallbackAnd.Xception(callback, e);
+         cax.from = this;
+         return cax;
       }
    }
 
@@ -83,11 +207,25 @@ public class CallbackAnd {
       final Callback completedCallback;
       final OUT output;
       final Object[] more;
+      final Input from;   // may be null
+      final long startedAt;   // System.nanoTime(), 0 if unknown
+      final long finishedAt;
 
       Output(Callback completedCallback, OUT output, Object...more) {
          this.completedCallback = completedCallback;
          this.output = output;
          this.more = more;
+         this.from = null;
+         this.startedAt = this.finishedAt = 0L;
+      }
+
+      Output(Input from, OUT output, long startedAt, long finishedAt, Object...more) {
+         this.completedCallback = from.callback;
+         this.output = output;
+         this.more = more;
+         this.from = from;
+         this.startedAt = startedAt;
+         this.finishedAt = finishedAt;
       }
 
       /**
@@ -119,6 +257,8 @@ public class CallbackAnd {
     */
    public static class Xception extends RuntimeException {
       final Callback callbackThatThrew;
+      transient Input from;   // set when thrown from Input.call(), else null
+      transient long startedAt, finishedAt;   // System.nanoTime() of the run that threw us, 0 if unknown
 
       public Xception(Callback callbackThatThrew, Throwable t) {
          super(t);
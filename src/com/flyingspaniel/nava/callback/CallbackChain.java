@@ -0,0 +1,435 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One run of a chain of Callbacks (or of a Pipeline) submitted to a CallbackExecutor.
+ * <p>
+ * Options are set, fluent style, before submitting: <ul>
+ *    <li>deadline()     the entire chain must complete within this time of being submitted</li>
+ *    <li>linkTimeout()  each link must complete within this time of starting</li>
+ *    <li>lane()         priority lane, see LaneQueue</li>
+ * </ul>
+ * A link that runs too long is interrupted, and a TimeoutException is passed down the chain,
+ * just like any other Exception, via failSlow.  Note that a Callback which ignores interrupts
+ * (e.g. blocked in non-interruptible IO) still occupies its thread until it returns, but its result is discarded.
+ * <p>
+ * cancel() interrupts any running links and skips the rest of the chain.
+ * A CallbackChain may only be submitted once.
+ * <p>
+ * For tracing, each chain has a unique id, and may carry a user supplied trace context (e.g. a request id or span).
+ * While one of its links is running, CallbackChain.current() returns the chain, so the Callback can find them.
+ * Once all links are done, isDone() is true, any whenDone() listeners are run, and getResult() or getFailure() tell how it went.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class CallbackChain {
+
+   private static final AtomicLong IDS = new AtomicLong(0L);
+   private static final ThreadLocal<CallbackChain> CURRENT = new ThreadLocal<CallbackChain>();
+
+   final long id = IDS.incrementAndGet();
+   final Callback first;       // null if we have a pipeline
+   final Pipeline pipeline;    // null if we have a first
+
+   int lane = 0;                 // see LaneQueue
+   long deadlineNanos = 0L;      // relative to submission, 0 means none
+   long linkTimeoutNanos = 0L;   // 0 means none
+   volatile Object traceContext = null;
+
+   private final AtomicInteger pendingLinks = new AtomicInteger(0);   // scheduled (or waiting to retry) but not done
+   private final CountDownLatch done = new CountDownLatch(1);
+   private final AtomicBoolean completed = new AtomicBoolean(false);   // by the last link, or by abandon()
+   volatile Object result = null;
+   volatile Exception failure = null;
+   private volatile long completedAt;
+
+   private final AtomicBoolean submitted = new AtomicBoolean(false);
+   private volatile long submittedAt;   // System.nanoTime()
+   private volatile boolean cancelled = false;
+   private ScheduledExecutorService timer;
+   private final Set<Link> running = new HashSet<Link>();   // guarded by this
+   int firstStage = 0;               // of pipeline, > 0 when resumed from a ChainJournal
+   ChainJournal journal = null;      // non-null if journaled
+   String journalName;
+   long journalId;
+   volatile boolean abandoned = false;   // by CallbackExecutor.shutdown(), as opposed to cancelled by the user
+
+   private final List<Runnable> listeners = new ArrayList<Runnable>();   // guarded by this, run when done
+
+
+   /**
+    * Constructor for a chain linked via setNextCallback(), e.g. by Callbacks.chainUp()
+    * @param first  non-null
+    */
+   public CallbackChain(Callback first) {
+      if (first == null)
+         throw new NullPointerException("first");
+      this.first = first;
+      this.pipeline = null;
+   }
+
+   /**
+    * Constructor for a compiled Pipeline
+    * @param pipeline  must not be empty
+    */
+   public CallbackChain(Pipeline pipeline) {
+      if (pipeline.size() == 0)
+         throw new IllegalArgumentException("empty Pipeline");
+      this.first = null;
+      this.pipeline = pipeline;
+   }
+
+
+   /**
+    * The entire chain must complete within timeout of being submitted
+    * @param timeout  if <= 0, no deadline
+    * @return this
+    */
+   public CallbackChain deadline(long timeout, TimeUnit unit) {
+      deadlineNanos = Math.max(0L, unit.toNanos(timeout));
+      return this;
+   }
+
+   /**
+    * Each link of the chain must complete within timeout of starting
+    * @param timeout  if <= 0, no timeout
+    * @return this
+    */
+   public CallbackChain linkTimeout(long timeout, TimeUnit unit) {
+      linkTimeoutNanos = Math.max(0L, unit.toNanos(timeout));
+      return this;
+   }
+
+
+   /**
+    * Priority lane for all links of the chain, see LaneQueue.  Default is lane 0.
+    * @param lane  0-based, less than the number of lanes of the CallbackExecutor
+    * @return this
+    */
+   public CallbackChain lane(int lane) {
+      if (lane < 0)
+         throw new IllegalArgumentException("lane=" + lane);
+      this.lane = lane;
+      return this;
+   }
+
+   public int getLane() {
+      return lane;
+   }
+
+
+   /**
+    * Attach a trace context, which the chain carries to all of its links
+    * @param traceContext  anything, e.g. a request id
+    * @return this
+    */
+   public CallbackChain trace(Object traceContext) {
+      this.traceContext = traceContext;
+      return this;
+   }
+
+   public Object getTraceContext() {
+      return traceContext;
+   }
+
+   /**
+    * @return unique (per JVM run) id
+    */
+   public long getId() {
+      return id;
+   }
+
+   /**
+    * @return the CallbackChain whose link is running on this Thread, or null
+    */
+   public static CallbackChain current() {
+      return CURRENT.get();
+   }
+
+
+   /**
+    * @return true once all links of the chain are done, or it was cancelled and its running links are done
+    */
+   public boolean isDone() {
+      return done.getCount() == 0;
+   }
+
+   /**
+    * Wait for isDone()
+    * @return true if done, false if we timed out
+    */
+   public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return done.await(timeout, unit);
+   }
+
+   /**
+    * Run listener once the chain is done (right away, on this thread, if it already is).
+    * Otherwise it runs on the thread that finished the last link, so it should be quick and must not block.
+    * @param listener  non-null
+    * @return this
+    */
+   public CallbackChain whenDone(Runnable listener) {
+      synchronized (this) {
+         if (!isDone()) {
+            listeners.add(listener);
+            return this;
+         }
+      }
+
+      listener.run();
+      return this;
+   }
+
+   /**
+    * @return output from the final link (if there were multiple final links, one of them).  null if not done.
+    */
+   public Object getResult() {
+      return result;
+   }
+
+   /**
+    * @return the Exception that nobody handled, or null
+    */
+   public Exception getFailure() {
+      return failure;
+   }
+
+   /**
+    * @return nanoseconds from submission to completion, or so far if not done
+    */
+   public long getElapsedNanos() {
+      return (isDone() ? completedAt : System.nanoTime()) - submittedAt;
+   }
+
+
+   /**
+    * Cancel the chain:  interrupt any running links and skip all the rest
+    * @return false if we were already cancelled
+    */
+   public boolean cancel() {
+      List<Link> toInterrupt;
+      synchronized (this) {
+         if (cancelled)
+            return false;
+         cancelled = true;
+         toInterrupt = new ArrayList<Link>(running);
+      }
+
+      for (Link link : toInterrupt)
+         link.interrupt(new CancellationException("chain cancelled"));
+
+      return true;
+   }
+
+   public boolean isCancelled() {
+      return cancelled;
+   }
+
+
+   boolean needsTimer() {
+      return (deadlineNanos > 0L) || (linkTimeoutNanos > 0L);
+   }
+
+   /**
+    * Called by CallbackExecutor when we are submitted
+    * @param timer  may be null if !needsTimer()
+    */
+   void submitted(ScheduledExecutorService timer) {
+      if (!submitted.compareAndSet(false, true))
+         throw new IllegalStateException("CallbackChain may only be submitted once");
+
+      this.timer = timer;
+      this.submittedAt = System.nanoTime();
+   }
+
+   /**
+    * Called by CallbackExecutor before a link is scheduled (or a retry is)
+    */
+   void linkScheduled() {
+      pendingLinks.incrementAndGet();
+   }
+
+   /**
+    * Called by CallbackExecutor after a link, and the scheduling of any followups, is done
+    * @return true if that was the last link, and we are now done
+    */
+   boolean linkDone() {
+      if (pendingLinks.decrementAndGet() != 0)
+         return false;
+      if (!completed.compareAndSet(false, true))
+         return false;   // already abandoned
+
+      finish();
+      return true;
+   }
+
+   /**
+    * Called by CallbackExecutor.shutdown() for a chain it gave up on, whose queued (or waiting to retry) links will never run.
+    * Any link still running is not waited for, and its result is discarded.
+    * @param why  becomes our failure, unless we already had one
+    * @return true if that made us done, false if we already were
+    */
+   boolean abandon(Exception why) {
+      abandoned = true;
+      if (!completed.compareAndSet(false, true))
+         return false;
+
+      if (failure == null)
+         failure = why;
+      finish();
+      return true;
+   }
+
+   private void finish() {
+      completedAt = System.nanoTime();
+      if (journal != null)
+         journal.chainDone(this);   // before anybody waiting can see that we are done
+      done.countDown();
+
+      List<Runnable> toRun;
+      synchronized (this) {
+         toRun = new ArrayList<Runnable>(listeners);
+         listeners.clear();
+      }
+      for (Runnable listener : toRun) {
+         try {
+            listener.run();
+         }
+         catch (RuntimeException re) {
+            re.printStackTrace();   // don't let one bad listener break the executor's bookkeeping
+         }
+      }
+   }
+
+
+   /**
+    * Called by a link, on its own thread, just before it runs.
+    * If we are already past our deadline, the link still runs, but with a TimeoutException as its incoming Exception,
+    * so that it gets passed down the chain like any other.
+    * @return Link, whose finish() must be called when done
+    * @throws CallbackAnd.Xception  if we are cancelled
+    */
+   Link start(CallbackAnd.Input input) {
+      if (cancelled)
+         throw input.xception(new CancellationException("chain cancelled"));
+
+      Link link = new Link(input, Thread.currentThread());
+      long timeout = linkTimeoutNanos;
+      if (deadlineNanos > 0L) {
+         long remaining = submittedAt + deadlineNanos - System.nanoTime();
+         if (remaining <= 0L) {
+            link.expired = new TimeoutException("chain deadline passed before " + input.callback);
+            timeout = 0L;
+         }
+         else if ((timeout == 0L) || (remaining < timeout))
+            timeout = remaining;
+      }
+
+      synchronized (this) {
+         if (cancelled)
+            throw input.xception(new CancellationException("chain cancelled"));
+         running.add(link);
+      }
+
+      link.previous = CURRENT.get();
+      CURRENT.set(this);
+
+      if (timeout > 0L)
+         link.timeoutFuture = timer.schedule(link, timeout, TimeUnit.NANOSECONDS);
+
+      return link;
+   }
+
+
+   /**
+    * For a link that runs without start(), e.g. as part of a batch
+    * @return the Exception it should fail with, if we are cancelled or past our deadline, else null
+    */
+   Exception checkStart(CallbackAnd.Input input) {
+      if (cancelled)
+         return new CancellationException("chain cancelled");
+      if ((deadlineNanos > 0L) && (submittedAt + deadlineNanos - System.nanoTime() <= 0L))
+         return new TimeoutException("chain deadline passed before " + input.callback);
+      return null;
+   }
+
+
+   /**
+    * A single running link.  As a Runnable, it is the timeout task.
+    */
+   final class Link implements Runnable {
+
+      final CallbackAnd.Input input;
+      private Thread runner;            // guarded by this, null once finished
+      private Exception interruptedBy;  // guarded by this
+      ScheduledFuture<?> timeoutFuture;
+      TimeoutException expired = null;  // non-null if the chain deadline passed before we started
+      CallbackChain previous;           // restored to CURRENT when we finish
+
+      Link(CallbackAnd.Input input, Thread runner) {
+         this.input = input;
+         this.runner = runner;
+      }
+
+      @Override  // the link timed out
+      public void run() {
+         interrupt(new TimeoutException("link timed out: " + input.callback));
+      }
+
+      /**
+       * Interrupt the running thread, unless we have already finished, or been interrupted
+       */
+      synchronized void interrupt(Exception why) {
+         if ((runner != null) && (interruptedBy == null)) {
+            interruptedBy = why;
+            runner.interrupt();
+         }
+      }
+
+      /**
+       * Must be called, on the running thread, when the link is done.  Safe to call more than once.
+       * @return true if we interrupted it (timeout or cancel)
+       */
+      boolean finish() {
+         boolean firstTime;
+         boolean wasInterrupted;
+         synchronized (this) {
+            firstTime = (runner != null);
+            runner = null;
+            wasInterrupted = (interruptedBy != null);
+         }
+
+         if (firstTime) {
+            CURRENT.set(previous);
+            if (timeoutFuture != null)
+               timeoutFuture.cancel(false);
+            synchronized (CallbackChain.this) {
+               running.remove(this);
+            }
+            if (wasInterrupted)
+               Thread.interrupted();  // clear it, the pool thread goes on to other work
+         }
+
+         return wasInterrupted;
+      }
+
+      synchronized CallbackAnd.Xception xception() {
+         return input.xception(interruptedBy);
+      }
+   }
+}
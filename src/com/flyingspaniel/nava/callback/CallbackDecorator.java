@@ -0,0 +1,82 @@
+package com.flyingspaniel.nava.callback;
+
+/**
+ * Base class for a Callback that wraps (decorates) another Callback, adding some behavior around it,
+ * e.g. RetryingCallback.  The decorator takes the place of the delegate in a chain or Pipeline.<p>
+ * setNextCallback() is passed through to the delegate so that its failSlow() still finds the rest of the chain.
+ * Do not decorate a Callback.ProducesMore or Callback.ProducesMultiple, those capabilities are hidden.
+ * <p>
+ * LimitedCallback and RetryingCallback may wrap each other, in either order, and CallbackExecutor still does
+ * all their waiting without holding a thread.  Other decorators run their delegate synchronously, so a LimitedCallback
+ * or RetryingCallback inside one of them blocks, as in Callbacks.runSync().
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public abstract class CallbackDecorator<IN, OUT> extends AbstractCallback<IN, OUT> {
+
+   protected final Callback<IN, OUT> delegate;
+
+   protected CallbackDecorator(Callback<IN, OUT> delegate) {
+      if (delegate == null)
+         throw new NullPointerException("delegate");
+      this.delegate = delegate;
+   }
+
+   public Callback<IN, OUT> getDelegate() {
+      return delegate;
+   }
+
+
+   /**
+    * Called instead of callback() when run by a CallbackExecutor, which may take over some of our work
+    * (e.g. retries, waiting for a permit) so that no thread is blocked.  By default, just calls callback().
+    * @param attempt  1-based, see RetryingCallback
+    */
+   protected OUT callbackInExecutor(int attempt, Exception ex, IN in, Object...more) throws Exception {
+      return callback(ex, in, more);
+   }
+
+   /**
+    * For callbackInExecutor() overrides:  calls the delegate, via its own callbackInExecutor() if CallbackExecutor does its waiting too
+    */
+   @SuppressWarnings("unchecked")
+   protected OUT delegateInExecutor(int attempt, Exception ex, IN in, Object...more) throws Exception {
+      if (takenOver(delegate))
+         return ((CallbackDecorator<IN, OUT>) delegate).callbackInExecutor(attempt, ex, in, more);
+      return delegate.callback(ex, in, more);
+   }
+
+   /**
+    * Look through a stack of LimitedCallbacks and RetryingCallbacks
+    * @return  callback, or the first one it wraps, that is a type, else null
+    */
+   static <T> T find(Callback callback, Class<T> type) {
+      for (;;) {
+         if (type.isInstance(callback))
+            return type.cast(callback);
+         if (!takenOver(callback))
+            return null;
+         callback = ((CallbackDecorator) callback).delegate;
+      }
+   }
+
+   /**
+    * @return true if CallbackExecutor takes over the waiting of callback
+    */
+   static boolean takenOver(Callback callback) {
+      return (callback instanceof LimitedCallback) || (callback instanceof RetryingCallback);
+   }
+
+   @Override
+   public void setNextCallback(Callback nextCallback) {
+      super.setNextCallback(nextCallback);
+      delegate.setNextCallback(nextCallback);
+   }
+
+   @Override
+   public String toString() {
+      return getClass().getSimpleName() + "(" + delegate + ")";
+   }
+}
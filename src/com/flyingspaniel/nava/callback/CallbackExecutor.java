@@ -1,5 +1,9 @@
 package com.flyingspaniel.nava.callback;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -11,6 +15,13 @@ import java.util.concurrent.atomic.AtomicReference;
  * handlerExecutorService   listens to results from callbackExecutorService (using completionService)<br>
  *                          and, when needed, submits any followup callbacks to callbackExecutorService<p>
  *
+ * Alternatively, constructed with a ForkJoinPool, it runs in "work-stealing" mode.  There are no handler threads
+ * and no completionService:  each link, when complete, forks its successor onto the local deque of the same worker,
+ * where it usually runs next, and idle workers steal from busy ones to balance the load.<p>
+ *
+ * In the normal mode, callbackExecutorService's queue is a LaneQueue, so chains may be given priority lanes,
+ * which share the callback threads by weight.  Work-stealing mode ignores lanes.<p>
+ *
  * @author Morgan Conrad
  * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
  * @since Copyright (c) 2013 by Morgan Conrad
@@ -18,8 +29,14 @@ import java.util.concurrent.atomic.AtomicReference;
 public class CallbackExecutor implements Runnable {
 
    protected final ExecutorService callbackExecutorService;
-   protected final CompletionService<CallbackAnd.Input> completionService;
-   protected final ExecutorService handlerExecutorService;
+   protected final CompletionService<CallbackAnd.Output> completionService; // null in work-stealing mode
+   protected final LaneQueue laneQueue;                                    // null in work-stealing mode
+   protected final ExecutorService handlerExecutorService;                 // null in work-stealing mode
+   protected final ForkJoinPool forkJoinPool;                              // null unless work-stealing mode
+   private ScheduledExecutorService timer;   // guarded by this, see timer()
+   protected volatile CallbackMetrics metrics = CallbackMetrics.NONE;
+   protected final Set<CallbackChain> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<CallbackChain, Boolean>());
+   private volatile boolean accepting = true;
 
    // mainly for unit tests
    public final AtomicInteger exceptionCount = new AtomicInteger(0);
@@ -32,53 +49,206 @@ public class CallbackExecutor implements Runnable {
     * @param handlerThreads   must be > 0
     */
    public CallbackExecutor(int callbackThreads, int handlerThreads) {
+      this(callbackThreads, handlerThreads, 1);
+   }
+
+   /**
+    * Constructor with priority lanes, e.g. (8, 2, 4, 1) gives interactive chains in lane 0 four times the share
+    * of bulk chains in lane 1, whenever both are waiting.  See LaneQueue.
+    * @param callbackThreads  should generally be >= handlerThreads
+    * @param handlerThreads   must be > 0
+    * @param laneWeights      one per lane, each >= 1
+    */
+   public CallbackExecutor(int callbackThreads, int handlerThreads, int...laneWeights) {
 
       handlerExecutorService = Executors.newFixedThreadPool(handlerThreads);
 
-      callbackExecutorService = new MyThreadPoolExecutor(callbackThreads, handlerExecutorService);
-      completionService = new ExecutorCompletionService<CallbackAnd.Input>(callbackExecutorService);
+      laneQueue = new LaneQueue(laneWeights);
+      callbackExecutorService = new MyThreadPoolExecutor(callbackThreads, laneQueue, handlerExecutorService);
+      completionService = new LinkCompletionService(callbackExecutorService);
+      forkJoinPool = null;
 
       for (int i=0; i<handlerThreads; i++)
          handlerExecutorService.submit(this);
    }
 
 
+   /**
+    * Constructor for work-stealing mode, where links run as ForkJoinTasks in pool
+    * @param pool  non-null, e.g. new ForkJoinPool(Runtime.getRuntime().availableProcessors())
+    */
+   public CallbackExecutor(ForkJoinPool pool) {
+      forkJoinPool = pool;
+      callbackExecutorService = pool;
+      completionService = null;
+      laneQueue = null;
+      handlerExecutorService = null;
+   }
+
+
    /**
     * Submit a callback (generally the first of a chain)
     * @param first   should be non-null
     * @param inData  passed to first callback
+    * @return the CallbackChain, which may be cancelled
     */
-   public void submitCallback(Callback first, Object inData, Object...more) {
-      if (handlerExecutorService.isTerminated())
-         throw new RejectedExecutionException("Handler isTerminated");
+   public CallbackChain submitCallback(Callback first, Object inData, Object...more) {
+      return submit(new CallbackChain(first), inData, more);
+   }
+
 
-      CallbackAnd.Input caInput = new CallbackAnd.Input(first, null, inData, more);
-      completionService.submit(caInput);
+   /**
+    * Submit a callback in a priority lane
+    * @param lane  0-based, see LaneQueue
+    */
+   public CallbackChain submitCallback(int lane, Callback first, Object inData, Object...more) {
+      return submit(new CallbackChain(first).lane(lane), inData, more);
+   }
+
+   /**
+    * Submit a compiled Pipeline.  Links are found from the Pipeline, not via getNextCallback(),
+    * so the same Pipeline may be submitted many times concurrently.
+    * @param pipeline  must not be empty
+    * @param inData    passed to first Stage
+    * @return the CallbackChain, which may be cancelled
+    */
+   public CallbackChain submitPipeline(Pipeline pipeline, Object inData, Object...more) {
+      return submit(new CallbackChain(pipeline), inData, more);
+   }
+
+
+   /**
+    * Submit a compiled Pipeline in a priority lane
+    * @param lane  0-based, see LaneQueue
+    */
+   public CallbackChain submitPipeline(int lane, Pipeline pipeline, Object inData, Object...more) {
+      return submit(new CallbackChain(pipeline).lane(lane), inData, more);
    }
 
 
    /**
-    * Mainly for unit tests, but performs an orderly shutdown
+    * Submit a CallbackChain, perhaps with a deadline or link timeout
+    * @param chain   not previously submitted
+    * @param inData  passed to first callback
+    * @return chain
+    */
+   public CallbackChain submit(CallbackChain chain, Object inData, Object...more) {
+      checkAccepting();
+      if ((laneQueue != null) && (chain.lane >= laneQueue.getLaneCount()))
+         throw new IllegalArgumentException("lane " + chain.lane + " but there are only " + laneQueue.getLaneCount());
+      chain.submitted(chain.needsTimer() ? timer() : null);
+      inFlight.add(chain);
+      metrics.chainStarted(chain);
+      try {
+         schedule(CallbackAnd.Input.forChain(chain, inData, more));
+      }
+      catch (RejectedExecutionException ree) {  // we are shutting down
+         chain.failure = ree;
+         chain.abandoned = true;
+         if (chain.linkDone())
+            chainCompleted(chain);
+         throw ree;
+      }
+      return chain;
+   }
+
+
+   /**
+    * Set the metrics / tracing hooks
+    * @param metrics  null means none
+    */
+   public void setMetrics(CallbackMetrics metrics) {
+      this.metrics = (metrics != null) ? metrics : CallbackMetrics.NONE;
+   }
+
+   public CallbackMetrics getMetrics() {
+      return metrics;
+   }
+
+
+   /**
+    * Performs an orderly shutdown.  Stops accepting new chains, then waits for all in-flight chains,
+    * (including any waiting to retry) to complete, returning as soon as they do.
+    * If the wait times out, the remaining chains are cancelled, their running links interrupted, and they are returned.
+    * Their await() then returns promptly, even if a link was still queued, or waiting to retry, and so will never run.
+    * Such a chain fails with a CancellationException.
     *
-    * @param waitMS  milliseconds, if > 0, will put in three waits along the way
+    * @param waitMS  milliseconds to wait for in-flight chains, if <= 0, does not wait
+    * @return        chains that were abandoned, usually empty
     * @throws InterruptedException
     */
-   public void shutdown(long waitMS) throws InterruptedException {
-      if (waitMS > 0)
-          Thread.sleep(waitMS);
-      callbackExecutorService.shutdown();
-      if (waitMS > 0) {
-         callbackExecutorService.awaitTermination(waitMS, TimeUnit.MILLISECONDS);
-         if (callbackExecutorService.isTerminated())
-            handlerExecutorService.awaitTermination(waitMS, TimeUnit.MILLISECONDS);
+   public List<CallbackChain> shutdown(long waitMS) throws InterruptedException {
+      accepting = false;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, waitMS));
+
+      synchronized (inFlight) {
+         long remaining;
+         while (!inFlight.isEmpty() && ((remaining = deadline - System.nanoTime()) > 0L))
+            TimeUnit.NANOSECONDS.timedWait(inFlight, remaining);
       }
+
+      List<CallbackChain> abandoned = new ArrayList<CallbackChain>(inFlight);
+      if (abandoned.isEmpty())
+         callbackExecutorService.shutdown();
+      else {
+         callbackExecutorService.shutdownNow();   // first, so that a link freed by a cancel() can't start a queued one
+         for (CallbackChain chain : abandoned) {
+            chain.abandoned = true;
+            chain.cancel();
+         }
+      }
+
+      // all that's left is the (brief) termination of the threads
+      long remaining = Math.max(0L, deadline - System.nanoTime());
+      callbackExecutorService.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+      if (callbackExecutorService.isTerminated() && (handlerExecutorService != null))
+         handlerExecutorService.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+      synchronized (this) {
+         if (timer != null)
+            timer.shutdownNow();
+      }
+
+      // links dropped from the queues, or the timer, will never reach linkDone(), so finish their chains here
+      for (CallbackChain chain : abandoned) {
+         if (chain.abandon(new CancellationException("CallbackExecutor shut down")))
+            chainCompleted(chain);
+      }
+
+      return abandoned;
+   }
+
+
+   /**
+    * @param lane  0-based
+    * @return metrics for a priority lane, null in work-stealing mode
+    */
+   public LaneQueue.Stats getLaneStats(int lane) {
+      return (laneQueue != null) ? laneQueue.getStats(lane) : null;
+   }
+
+   /**
+    * Anti-starvation:  once a link has waited this long, in any lane, it goes next.  Default is 1 second.
+    * Ignored in work-stealing mode.
+    */
+   public void setLaneMaxWait(long maxWait, TimeUnit unit) {
+      if (laneQueue != null)
+         laneQueue.setMaxWait(maxWait, unit);
    }
 
 
+   /**
+    * @return number of chains submitted but not yet done
+    */
+   public int getInFlightCount() {
+      return inFlight.size();
+   }
+
 
    @Override
-   @SuppressWarnings("unchecked")
    public void run() {
+      if (completionService == null)   // work-stealing mode has no handlers
+         return;
 
       try { // outer try
          while (!callbackExecutorService.isTerminated())  {
@@ -89,33 +259,15 @@ public class CallbackExecutor implements Runnable {
 
                // Get the output, handling CallbackAnd.Xceptions
                CallbackAnd.Output caOutput = null;
+               CallbackAnd.Xception cax = null;
                try {
                   caOutput = CallbackAnd.Output.fromFuture(future);
                }
-               catch (CallbackAnd.Xception cax) {
-                  Exception urException = cax.getException();
-                  lastResultOrException.set(urException);
-
-                  Callback next =  cax.callbackThatThrew.getNextCallback();
-                  if (next == null)  // nobody to handle it
-                     throw urException;
-                  else
-                     next.callback(urException, null);
+               catch (CallbackAnd.Xception x) {
+                  cax = x;
                }
 
-               // special check to spinoff multiple callbacks
-               if (caOutput.completedCallback instanceof Callback.ProducesMultiple) {
-                  submitMultiple(caOutput);
-               }
-
-               // normal operation is here.  We have a legit result to pass to the next callback
-               else {
-                  CallbackAnd.Input next = CallbackAnd.Input.fromOutput(caOutput);
-                  if (next != null)
-                     completionService.submit(next);
-                  else // mainly for unit tests
-                     lastResultOrException.set(caOutput.output);
-               }
+               handleLink(caOutput, cax);
             } // end of inner try
 
             catch (InterruptedException ie) {
@@ -149,17 +301,338 @@ public class CallbackExecutor implements Runnable {
    }
 
 
+   /**
+    * Handle the result of one link, on a handler or work-stealing thread, then do the bookkeeping for its chain
+    * @param caOutput  if the link completed normally
+    * @param cax       if it threw
+    * @throws RejectedExecutionException  if we could not schedule the next link because we are shut down
+    */
+   protected void handleLink(CallbackAnd.Output caOutput, CallbackAnd.Xception cax) {
+      CallbackAnd.Input from = (cax != null) ? cax.from : caOutput.from;
+      Exception unhandled = null;
+      try {
+         if (cax != null)
+            linkFailed(cax);
+         else
+            linkCompleted(caOutput);
+      }
+      catch (RejectedExecutionException ree) {
+         unhandled = ree;
+         throw ree;
+      }
+      catch (Exception urException) {
+         unhandled = urException;
+         handleNormalCallbackException(urException);
+      }
+      finally {
+         Limiter limiter = from.limiter();
+         if (limiter != null)
+            limiter.release();
+
+         CallbackChain chain = from.chain;
+         if (chain != null) {
+            long startedAt = (cax != null) ? cax.startedAt : caOutput.startedAt;
+            long finishedAt = (cax != null) ? cax.finishedAt : caOutput.finishedAt;
+            if (startedAt != 0L)   // it actually ran
+               metrics.linkCompleted(chain, from.callback, from.depth,
+                     startedAt - from.createdAt, finishedAt - startedAt, (cax != null) ? cax.getCause() : null);
+
+            if (unhandled != null)
+               chain.failure = unhandled;
+            if (chain.linkDone())
+               chainCompleted(chain);
+         }
+      }
+   }
+
+
+   /**
+    * All links of a chain are done
+    */
+   protected void chainCompleted(CallbackChain chain) {
+      inFlight.remove(chain);
+      metrics.chainCompleted(chain, chain.getElapsedNanos(), chain.failure);
+      if (!accepting) {
+         synchronized (inFlight) {
+            inFlight.notifyAll();   // wake up shutdown()
+         }
+      }
+   }
+
+
+   /**
+    * A link completed normally.  Pass its result along to the next callback(s), if any
+    */
+   protected void linkCompleted(CallbackAnd.Output caOutput) {
+      if (isCancelled(caOutput.from))
+         return;
+
+      // special check to spinoff multiple callbacks
+      if (caOutput.from.producesMultiple()) {
+         submitMultiple(caOutput);
+      }
+
+      // normal operation is here.  We have a legit result to pass to the next callback
+      else {
+         CallbackAnd.Input next = CallbackAnd.Input.fromOutput(caOutput);
+         if ((next != null) && (next.chain != null) && (next.chain.journal != null))
+            next.chain.journal.linkCompleted(next.chain, next);
+         if (next != null)
+            schedule(next);
+         else { // end of the line
+            if (caOutput.from.chain != null)
+               caOutput.from.chain.result = caOutput.output;
+            lastResultOrException.set(caOutput.output);  // mainly for unit tests
+         }
+      }
+   }
+
+
+   /**
+    * A link threw an Exception (including a TimeoutException if it was too slow).
+    * Fail slow, passing it to the next callback, which will generally pass it along
+    * @throws Exception  the original exception if there is nobody to handle it
+    */
+   protected void linkFailed(CallbackAnd.Xception cax) throws Exception {
+      if (isCancelled(cax.from))   // skip the rest of the chain
+         return;
+
+      Exception urException = cax.getException();
+      if (scheduleRetry(cax.from, urException))
+         return;
+
+      lastResultOrException.set(urException);
+
+      CallbackAnd.Input next = CallbackAnd.Input.fromXception(cax);
+      if (next == null)  // nobody to handle it
+         throw urException;
+      else if (next.pipeline != null)  // a Pipeline has no links for failSlow to follow, so pass it stage by stage
+         schedule(next);
+      else
+         next.callback.callback(urException, null);
+   }
+
+
+   /**
+    * If the failed link was a RetryingCallback with attempts left, schedule the retry on our timer
+    * (so that no thread is held while waiting)
+    * @return true if a retry was scheduled
+    */
+   protected boolean scheduleRetry(CallbackAnd.Input failed, Exception urException) {
+      RetryPolicy policy = failed.retryPolicyFor(urException);
+      if (policy == null)
+         return false;
+
+      final CallbackAnd.Input failedInput = failed;
+      if (failed.chain != null)
+         failed.chain.linkScheduled();   // the chain is not done while the retry waits
+      timer().schedule(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               dispatch(failedInput.retry());
+            }
+            catch (RejectedExecutionException ree) {
+               handleNormalCallbackException(ree);   // we have shut down
+            }
+         }
+      }, policy.delayNanos(failed.attempt), TimeUnit.NANOSECONDS);
+
+      return true;
+   }
+
+
    protected void submitMultiple(CallbackAnd.Output cao) {
       Object[] inputs = ((Callback.ProducesMultiple)cao.completedCallback).getMultiple();
-      Callback next = cao.completedCallback.getNextCallback();
+      Callback next = cao.from.getNextCallback();
       if (next == null)  {   // that was end of the line   TODO throw something???
          lastResultOrException.set(inputs);
       }
 
       else for (Object in : inputs) {
-         Callable c = new CallbackAnd.Input(next, null, in);
-         completionService.submit(c);
+         schedule(cao.from.next(null, in));
+      }
+   }
+
+
+   /**
+    * Schedule a link to be run, noting it as pending in its chain.  In work-stealing mode, if we are already on one of our workers,
+    * fork it onto that worker's deque, which keeps the chain on the same thread unless another steals it.
+    */
+   protected void schedule(CallbackAnd.Input caInput) {
+      if (caInput.chain != null)
+         caInput.chain.linkScheduled();
+      dispatch(caInput);
+   }
+
+   /**
+    * Hand a link to the callbackExecutorService, without any bookkeeping.
+    * If it is a LimitedCallback which may not run yet, its Limiter holds it, and runs it later.
+    */
+   void dispatch(final CallbackAnd.Input caInput) {
+      if ((caInput.callback instanceof BatchingCallback) && (caInput.ex == null)) {
+         ((BatchingCallback) caInput.callback).add(this, caInput);
+         return;
+      }
+
+      final Limiter limiter = caInput.limiter();
+      if (limiter != null) {
+         Runnable later = new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  execute(caInput);
+               }
+               catch (RejectedExecutionException ree) {
+                  rejected(caInput, limiter, ree);   // we have shut down
+               }
+            }
+         };
+
+         boolean now;
+         try {
+            now = limiter.acquire(later, timer());
+         }
+         catch (RejectedExecutionException ree) {
+            rejected(caInput, null, ree);   // our timer has shut down, nothing was acquired
+            return;
+         }
+         if (!now)
+            return;
+      }
+
+      execute(caInput);
+   }
+
+   /**
+    * A link in caInput's chain could not be run, e.g. because we have shut down.
+    * Since nobody else will, give back what it acquired, and finish it, failing its chain.
+    * @param acquired  Limiter to release, null if nothing was acquired
+    */
+   private void rejected(CallbackAnd.Input caInput, Limiter acquired, Exception why) {
+      handleNormalCallbackException(why);
+      if (acquired != null)
+         acquired.release();
+
+      CallbackChain chain = caInput.chain;
+      if (chain != null) {
+         chain.failure = why;
+         chain.abandoned = true;
+         if (chain.linkDone())
+            chainCompleted(chain);
+      }
+   }
+
+   private void execute(CallbackAnd.Input caInput) {
+      if (forkJoinPool == null)
+         completionService.submit(caInput);
+      else if (ForkJoinTask.getPool() == forkJoinPool)
+         new LinkTask(caInput).fork();
+      else
+         forkJoinPool.execute(new LinkTask(caInput));
+   }
+
+
+   /**
+    * Run a batch of links, which BatchingCallback has collected, as a single task.
+    * Each link then gets handled separately, in its own chain.
+    */
+   void runBatch(final BatchingCallback batching, final List<CallbackAnd.Input> batch) {
+      Runnable task = new Runnable() {
+         @Override
+         public void run() {
+            List<CallbackAnd.Input> live = new ArrayList<CallbackAnd.Input>(batch.size());
+            List<Object> inputs = new ArrayList<Object>(batch.size());
+            for (CallbackAnd.Input caInput : batch) {
+               Exception skip = (caInput.chain != null) ? caInput.chain.checkStart(caInput) : null;
+               if (skip != null)
+                  handleBatched(null, caInput.xception(skip));
+               else {
+                  live.add(caInput);
+                  inputs.add(caInput.input);
+               }
+            }
+            if (live.isEmpty())
+               return;
+
+            long startedAt = System.nanoTime();
+            List outputs = null;
+            Exception thrown = null;
+            try {
+               outputs = batching.callBatch(inputs);
+            }
+            catch (Exception e) {
+               thrown = e;
+            }
+            long finishedAt = System.nanoTime();
+
+            for (int i=0; i<live.size(); i++) {
+               CallbackAnd.Input caInput = live.get(i);
+               if (thrown != null) {
+                  CallbackAnd.Xception cax = caInput.xception(thrown);
+                  cax.startedAt = startedAt;
+                  cax.finishedAt = finishedAt;
+                  handleBatched(null, cax);
+               }
+               else
+                  handleBatched(new CallbackAnd.Output(caInput, outputs.get(i), startedAt, finishedAt, caInput.getMore()), null);
+            }
+         }
+      };
+
+      try {
+         callbackExecutorService.execute(task);
+      }
+      catch (RejectedExecutionException ree) {
+         handleNormalCallbackException(ree);   // we have shut down
+      }
+   }
+
+   private void handleBatched(CallbackAnd.Output caOutput, CallbackAnd.Xception cax) {
+      try {
+         handleLink(caOutput, cax);
+      }
+      catch (RejectedExecutionException ree) {
+         handleNormalCallbackException(ree);   // keep going, the rest of the batch still needs its bookkeeping
+      }
+   }
+
+
+   static boolean isCancelled(CallbackAnd.Input caInput) {
+      return (caInput.chain != null) && caInput.chain.isCancelled();
+   }
+
+
+   /**
+    * Timer for link timeouts, deadlines and retries, created when first needed
+    */
+   protected synchronized ScheduledExecutorService timer() {
+      if (timer == null) {
+         ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "CallbackExecutor-timer");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+         stpe.setRemoveOnCancelPolicy(true);
+         timer = stpe;
+      }
+
+      return timer;
+   }
+
+
+   protected void checkAccepting() {
+      if (!accepting)
+         throw new RejectedExecutionException("CallbackExecutor is shutting down");
+      if (forkJoinPool != null) {
+         if (forkJoinPool.isShutdown())
+            throw new RejectedExecutionException("ForkJoinPool isShutdown");
       }
+      else if (handlerExecutorService.isTerminated())
+         throw new RejectedExecutionException("Handler isTerminated");
    }
 
 
@@ -182,9 +655,13 @@ public class CallbackExecutor implements Runnable {
       final ExecutorService shutdownNext;
 
       MyThreadPoolExecutor(int nThreads, ExecutorService shutdownNext) {
+         this(nThreads, new LinkedBlockingQueue<Runnable>(), shutdownNext);
+      }
+
+      MyThreadPoolExecutor(int nThreads, BlockingQueue<Runnable> queue, ExecutorService shutdownNext) {
          super(nThreads, nThreads,
                0L, TimeUnit.MILLISECONDS,
-               new LinkedBlockingQueue<Runnable>());
+               queue);
 
          this.shutdownNext = shutdownNext;
       }
@@ -195,4 +672,101 @@ public class CallbackExecutor implements Runnable {
              shutdownNext.shutdownNow();
       }
    }
+
+
+   /**
+    * Like an ExecutorCompletionService, except that its tasks keep their link's lane, so that LaneQueue can see it
+    */
+   static class LinkCompletionService implements CompletionService<CallbackAnd.Output> {
+
+      final Executor executor;
+      final BlockingQueue<Future<CallbackAnd.Output>> completed = new LinkedBlockingQueue<Future<CallbackAnd.Output>>();
+
+      LinkCompletionService(Executor executor) {
+         this.executor = executor;
+      }
+
+      @Override
+      public Future<CallbackAnd.Output> submit(Callable<CallbackAnd.Output> task) {
+         LinkFuture future = new LinkFuture(task);
+         executor.execute(future);
+         return future;
+      }
+
+      @Override
+      public Future<CallbackAnd.Output> submit(Runnable task, CallbackAnd.Output result) {
+         return submit(Executors.callable(task, result));
+      }
+
+      @Override
+      public Future<CallbackAnd.Output> take() throws InterruptedException {
+         return completed.take();
+      }
+
+      @Override
+      public Future<CallbackAnd.Output> poll() {
+         return completed.poll();
+      }
+
+      @Override
+      public Future<CallbackAnd.Output> poll(long timeout, TimeUnit unit) throws InterruptedException {
+         return completed.poll(timeout, unit);
+      }
+
+      class LinkFuture extends FutureTask<CallbackAnd.Output> implements LaneQueue.Laned {
+         final int lane;
+
+         LinkFuture(Callable<CallbackAnd.Output> task) {
+            super(task);
+            CallbackChain chain = (task instanceof CallbackAnd.Input) ? ((CallbackAnd.Input) task).chain : null;
+            lane = (chain != null) ? chain.lane : 0;
+         }
+
+         @Override
+         public int getLane() {
+            return lane;
+         }
+
+         @Override
+         protected void done() {
+            completed.add(this);
+         }
+      }
+   }
+
+
+   /**
+    * Work-stealing mode:  runs one link, then handles the result right here on the worker thread
+    */
+   class LinkTask extends RecursiveAction {
+
+      final CallbackAnd.Input caInput;
+
+      LinkTask(CallbackAnd.Input caInput) {
+         this.caInput = caInput;
+      }
+
+      @Override
+      protected void compute() {
+         try {
+            CallbackAnd.Output caOutput = null;
+            CallbackAnd.Xception cax = null;
+            try {
+               caOutput = caInput.call();
+            }
+            catch (CallbackAnd.Xception x) {
+               cax = x;
+            }
+
+            handleLink(caOutput, cax);
+         }
+         catch (InterruptedException ie) {   // only thrown outside of a chain, so just our Limiter to give back
+            Thread.currentThread().interrupt();
+            rejected(caInput, caInput.limiter(), ie);
+         }
+         catch (RejectedExecutionException ree) {   // handleLink() finished us, but the next link it scheduled was dropped
+            rejected(caInput, null, ree);
+         }
+      }
+   }
 }
@@ -0,0 +1,52 @@
+package com.flyingspaniel.nava.callback;
+
+/**
+ * Service Provider Interface for observing a CallbackExecutor.  See CallbackStats for an implementation.
+ * <p>
+ * Methods are called on the executor's threads, often concurrently, so implementations must be thread-safe and fast.
+ * Use CallbackChain.getId() and getTraceContext() to tie links to a chain, and depth to find a link within it.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public interface CallbackMetrics {
+
+   /**
+    * A chain was submitted
+    */
+   public void chainStarted(CallbackChain chain);
+
+   /**
+    * A link of a chain completed, successfully or not
+    * @param chain       the chain
+    * @param callback    the Callback that ran
+    * @param depth       0-based position of the link in the chain
+    * @param queueNanos  time waiting to run
+    * @param runNanos    time running
+    * @param failure     null, or what the link threw (including a TimeoutException)
+    */
+   public void linkCompleted(CallbackChain chain, Callback callback, int depth,
+                             long queueNanos, long runNanos, Throwable failure);
+
+   /**
+    * All links of a chain are done
+    * @param chain         the chain
+    * @param elapsedNanos  from submission to completion
+    * @param failure       null, or the Exception that nobody handled
+    */
+   public void chainCompleted(CallbackChain chain, long elapsedNanos, Exception failure);
+
+
+   /**
+    * Does nothing, the default
+    */
+   public static final CallbackMetrics NONE = new CallbackMetrics() {
+      @Override public void chainStarted(CallbackChain chain) {}
+
+      @Override public void linkCompleted(CallbackChain chain, Callback callback, int depth,
+                                          long queueNanos, long runNanos, Throwable failure) {}
+
+      @Override public void chainCompleted(CallbackChain chain, long elapsedNanos, Exception failure) {}
+   };
+}
@@ -0,0 +1,248 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adapts a Pipeline, run by a CallbackExecutor, to a java.util.concurrent.Flow.Processor, with demand based backpressure.
+ * <p>
+ * Each item from upstream is submitted as its own CallbackChain, and the chain's result is published downstream.
+ * At most maxInFlight items are ever running or waiting to be published:  we request that many from upstream to start,
+ * then one more each time an item is published, so a fast producer or a slow subscriber can't overrun the executor.
+ * If ordered, results are published in the order the items arrived, else as soon as each chain completes.
+ * <p>
+ * A chain that fails (its final Exception was not handled) terminates the stream with onError(),
+ * cancelling upstream and any chains still in flight.  So does a chain whose result is null, which Flow forbids.
+ * Only one Subscriber is allowed.
+ * <p>
+ * Note:  java.util.concurrent.Flow requires Java 9 or later, unlike the rest of this package.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class CallbackProcessor<T, R> implements Flow.Processor<T, R> {
+
+   protected final CallbackExecutor executor;
+   protected final Pipeline pipeline;
+   protected final int maxInFlight;
+   protected final boolean ordered;
+
+   // completed (or, if ordered, all submitted) chains waiting to be published
+   private final Queue<Item> items = new ConcurrentLinkedQueue<Item>();
+   private final Set<CallbackChain> running = Collections.newSetFromMap(new ConcurrentHashMap<CallbackChain, Boolean>());
+   private final AtomicInteger outstanding = new AtomicInteger();   // submitted but not yet published
+   private final AtomicLong requested = new AtomicLong();           // downstream demand
+   private final AtomicInteger wip = new AtomicInteger();           // serializes drain()
+   private final AtomicBoolean subscribed = new AtomicBoolean();
+
+   private volatile Flow.Subscription upstream;
+   private volatile Flow.Subscriber<? super R> downstream;
+   private volatile boolean upstreamDone = false;
+   private volatile Throwable error = null;
+   private volatile boolean terminated = false;   // we sent onComplete or onError, or downstream cancelled
+
+
+   /**
+    * @param executor     runs the chains
+    * @param pipeline     non-empty
+    * @param maxInFlight  >= 1
+    * @param ordered      if true, publish results in the order items arrived
+    */
+   public CallbackProcessor(CallbackExecutor executor, Pipeline pipeline, int maxInFlight, boolean ordered) {
+      if (pipeline.size() == 0)
+         throw new IllegalArgumentException("empty Pipeline");
+      if (maxInFlight < 1)
+         throw new IllegalArgumentException("maxInFlight=" + maxInFlight);
+      this.executor = executor;
+      this.pipeline = pipeline;
+      this.maxInFlight = maxInFlight;
+      this.ordered = ordered;
+   }
+
+
+   /* Publisher side */
+
+   @Override
+   public void subscribe(Flow.Subscriber<? super R> subscriber) {
+      if (!subscribed.compareAndSet(false, true)) {
+         subscriber.onSubscribe(new Flow.Subscription() {
+            @Override public void request(long n) {}
+            @Override public void cancel() {}
+         });
+         subscriber.onError(new IllegalStateException("CallbackProcessor allows only one Subscriber"));
+         return;
+      }
+
+      downstream = subscriber;
+      subscriber.onSubscribe(new Flow.Subscription() {
+         @Override
+         public void request(long n) {
+            if (n <= 0L) {
+               fail(new IllegalArgumentException("request(" + n + ")"));
+               return;
+            }
+            for (;;) {
+               long r = requested.get();
+               long sum = r + n;
+               if (requested.compareAndSet(r, (sum < 0L) ? Long.MAX_VALUE : sum))
+                  break;
+            }
+            drain();
+         }
+
+         @Override
+         public void cancel() {
+            terminated = true;
+            cancelAll();
+         }
+      });
+      drain();
+   }
+
+
+   /* Subscriber side */
+
+   @Override
+   public void onSubscribe(Flow.Subscription subscription) {
+      if (upstream != null) {
+         subscription.cancel();   // Flow rule 2.5
+         return;
+      }
+      upstream = subscription;
+      subscription.request(maxInFlight);
+   }
+
+   @Override
+   public void onNext(T item) {
+      if (terminated)
+         return;
+
+      final Item submitted = new Item();
+      outstanding.incrementAndGet();
+      if (ordered)
+         items.add(submitted);
+
+      try {
+         submitted.chain = new CallbackChain(pipeline);
+         executor.submit(submitted.chain, item);
+      }
+      catch (RuntimeException re) {  // e.g. executor shutting down
+         fail(re);
+         return;
+      }
+
+      running.add(submitted.chain);
+      submitted.chain.whenDone(new Runnable() {
+         @Override
+         public void run() {
+            running.remove(submitted.chain);
+            submitted.done = true;
+            if (!ordered)
+               items.add(submitted);
+            drain();
+         }
+      });
+   }
+
+   @Override
+   public void onError(Throwable throwable) {
+      fail(throwable);
+   }
+
+   @Override
+   public void onComplete() {
+      upstreamDone = true;
+      drain();
+   }
+
+
+   /**
+    * @return number of items submitted but not yet published
+    */
+   public int getOutstanding() {
+      return outstanding.get();
+   }
+
+
+   private void fail(Throwable t) {
+      if (error == null)
+         error = t;
+      drain();
+   }
+
+   private void cancelAll() {
+      Flow.Subscription up = upstream;
+      if (up != null)
+         up.cancel();
+      for (CallbackChain chain : running)
+         chain.cancel();
+   }
+
+
+   /**
+    * Publish whatever we can.  Only one thread at a time gets past the wip check, the others just note that
+    * there's more to do, so all calls to downstream are serialized, as Flow requires.
+    */
+   @SuppressWarnings("unchecked")
+   private void drain() {
+      if (wip.getAndIncrement() != 0)
+         return;
+
+      int missed = 1;
+      do {
+         Flow.Subscriber<? super R> subscriber = downstream;
+         if ((subscriber != null) && !terminated) {
+            while (error == null) {
+               Item item = items.peek();
+               if ((item == null) || !item.done)
+                  break;
+
+               Exception failure = item.chain.getFailure();
+               Object result = item.chain.getResult();
+               if (failure != null)
+                  error = failure;
+               else if (result == null)
+                  error = new NullPointerException("chain " + item.chain.getId() + " produced null");
+               else if (requested.get() == 0L)
+                  break;
+               else {
+                  items.poll();
+                  outstanding.decrementAndGet();
+                  requested.decrementAndGet();
+                  subscriber.onNext((R) result);
+                  upstream.request(1L);
+               }
+            }
+
+            if (error != null) {
+               terminated = true;
+               cancelAll();
+               subscriber.onError(error);
+            }
+            else if (upstreamDone && (outstanding.get() == 0)) {
+               terminated = true;
+               subscriber.onComplete();
+            }
+         }
+
+         missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+   }
+
+
+   /**
+    * One item, and the chain running it
+    */
+   static final class Item {
+      volatile CallbackChain chain;
+      volatile boolean done = false;
+   }
+}
@@ -0,0 +1,267 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Structured concurrency for independent chains that serve one request, e.g. fetch user, fetch orders, fetch prefs.
+ * Fork each chain, then join them all, or the first to succeed.  Once one fails (or, for joinAny(), succeeds)
+ * the remaining branches are cancelled, interrupting their threads.  Latency is that of the slowest branch, not the sum.
+ * <pre>
+ *    try (CallbackScope scope = new CallbackScope(executor)) {
+ *       CallbackScope.Branch user = scope.fork(fetchUser, userId);
+ *       CallbackScope.Branch orders = scope.fork(fetchOrders, userId);
+ *       scope.joinAll(1, TimeUnit.SECONDS);
+ *       render(user.get(), orders.get());
+ *    }
+ * </pre>
+ * Each branch runs synchronously, as in Callbacks.runSync() or Pipeline.run(), on its own thread of the executor,
+ * so a blocking chain simply blocks that thread.  That makes a virtual thread per task executor
+ * (Executors.newVirtualThreadPerTaskExecutor(), Java 21) the natural choice, but any ExecutorService with enough threads works.
+ * <p>
+ * close() cancels anything still running and waits for all branches to finish, so none outlives the scope.
+ * A branch that the executor never started (e.g. one drained by shutdownNow()) finishes when cancelled.
+ * A scope is meant for a single thread to fork, join once, and close.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class CallbackScope implements AutoCloseable {
+
+   protected final ExecutorService executor;
+   private final boolean ownExecutor;
+
+   private final List<Branch<?>> branches = new ArrayList<Branch<?>>();
+   private final BlockingQueue<Branch<?>> completed = new LinkedBlockingQueue<Branch<?>>();
+   private int unjoined = 0;    // forked, but not yet taken from completed
+   private int running = 0;     // forked, and not yet exited, guarded by completed.  See Branch.exit()
+
+
+   /**
+    * Constructor using a cached thread pool, which is shut down by close()
+    */
+   public CallbackScope() {
+      this(Executors.newCachedThreadPool(), true);
+   }
+
+   /**
+    * @param executor  runs the branches, one task each.  Not shut down by close().
+    */
+   public CallbackScope(ExecutorService executor) {
+      this(executor, false);
+   }
+
+   private CallbackScope(ExecutorService executor, boolean ownExecutor) {
+      this.executor = executor;
+      this.ownExecutor = ownExecutor;
+   }
+
+
+   /**
+    * Fork a chain, linked via setNextCallback()
+    */
+   @SuppressWarnings("unchecked")
+   public <T> Branch<T> fork(Callback first, Object inData, Object...more) {
+      return fork((Callable<T>) Callbacks.callableRunSync(first, inData, more));
+   }
+
+   /**
+    * Fork a run of a Pipeline
+    */
+   @SuppressWarnings("unchecked")
+   public <T> Branch<T> fork(Pipeline pipeline, Object inData, Object...more) {
+      return fork((Callable<T>) pipeline.callable(inData, more));
+   }
+
+   /**
+    * Fork anything
+    * @throws RejectedExecutionException  if the executor won't take it
+    */
+   public <T> Branch<T> fork(Callable<T> callable) {
+      Branch<T> branch = new Branch<T>(callable);
+      synchronized (completed) {
+         running++;
+      }
+      try {
+         executor.execute(branch);
+      }
+      catch (RejectedExecutionException ree) {
+         branch.exit();
+         throw ree;
+      }
+
+      branches.add(branch);
+      unjoined++;
+      return branch;
+   }
+
+
+   /**
+    * Wait for every branch to succeed.  On the first failure, cancel the rest and throw it.
+    * @throws Exception  from the first branch to fail, or TimeoutException
+    */
+   public void joinAll(long timeout, TimeUnit unit) throws Exception {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (unjoined > 0) {
+         Branch<?> branch = next(deadline);
+         if (branch.isFailed()) {
+            cancel();
+            throw branch.getException();
+         }
+      }
+   }
+
+   /**
+    * Wait for the first branch to succeed, cancel the rest, and return its result.
+    * @throws Exception  from the first branch to fail, if they all do, or TimeoutException
+    */
+   public Object joinAny(long timeout, TimeUnit unit) throws Exception {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      Exception firstFailure = null;
+      while (unjoined > 0) {
+         Branch<?> branch = next(deadline);
+         if (!branch.isFailed()) {
+            cancel();
+            return branch.get();
+         }
+         if (firstFailure == null)
+            firstFailure = branch.getException();
+      }
+
+      if (firstFailure != null)
+         throw firstFailure;
+      throw new IllegalStateException("nothing was forked");
+   }
+
+
+   /**
+    * Cancel every branch that is not done, interrupting those running
+    */
+   public void cancel() {
+      for (Branch<?> branch : branches)
+         branch.cancel(true);
+   }
+
+   /**
+    * Cancel anything still running, and wait for every branch to exit.
+    * The wait is uninterruptible, since the cancelled branches exit promptly.  If interrupted, the interrupt is restored on return.
+    */
+   @Override
+   public void close() {
+      cancel();
+      boolean interrupted = false;
+      synchronized (completed) {
+         while (running > 0) {
+            try {
+               completed.wait();
+            }
+            catch (InterruptedException ie) {
+               interrupted = true;
+            }
+         }
+      }
+      if (ownExecutor)
+         executor.shutdown();
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+
+   private Branch<?> next(long deadline) throws InterruptedException, TimeoutException {
+      Branch<?> branch = completed.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      if (branch == null) {
+         cancel();
+         throw new TimeoutException("CallbackScope join timed out");
+      }
+      unjoined--;
+      return branch;
+   }
+
+   private void branchExited() {
+      synchronized (completed) {
+         if (--running == 0)
+            completed.notifyAll();
+      }
+   }
+
+
+   /**
+    * One forked chain.  It's a Future, so get() returns its result, or throws an ExecutionException
+    */
+   public final class Branch<T> extends FutureTask<T> {
+
+      private volatile boolean started = false;
+      private final AtomicBoolean exited = new AtomicBoolean(false);
+
+      Branch(Callable<T> callable) {
+         super(callable);
+      }
+
+      @Override
+      public void run() {
+         started = true;
+         try {
+            super.run();
+         }
+         finally {
+            exit();
+         }
+      }
+
+      @Override
+      protected void done() {
+         completed.add(this);
+         if (!started)
+            exit();   // cancelled before it ran, and it may never be
+      }
+
+      /**
+       * Count us out of running, just once, whether we ran or not
+       */
+      void exit() {
+         if (exited.compareAndSet(false, true))
+            branchExited();
+      }
+
+      /**
+       * @return true if done, but threw or was cancelled
+       */
+      public boolean isFailed() {
+         return getException() != null;
+      }
+
+      /**
+       * @return what the chain threw (a CancellationException if cancelled), null if it succeeded or isn't done
+       */
+      public Exception getException() {
+         if (!isDone())
+            return null;
+         try {
+            get();
+            return null;
+         }
+         catch (ExecutionException ee) {
+            return Callbacks.getCause(ee);
+         }
+         catch (CancellationException ce) {
+            return ce;
+         }
+         catch (InterruptedException ie) {
+            return ie;   // can't happen, we're done
+         }
+      }
+   }
+}
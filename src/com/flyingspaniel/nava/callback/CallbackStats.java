@@ -0,0 +1,217 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free implementation of CallbackMetrics, collecting: <ul>
+ *    <li>per stage (i.e. per Callback) histograms of queue wait time and run time, and failure counts</li>
+ *    <li>chains started, completed, failed, and in flight</li>
+ *    <li>chain latency histogram and throughput</li>
+ * </ul>
+ * report() sorts the stages by total run time, so the bottleneck is at the top.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class CallbackStats implements CallbackMetrics {
+
+   protected final ConcurrentMap<Callback, Stage> stages = new ConcurrentHashMap<Callback, Stage>();
+   protected final Histogram chainNanos = new Histogram();
+   protected final AtomicLong chainsStarted = new AtomicLong();
+   protected final AtomicLong chainsCompleted = new AtomicLong();
+   protected final AtomicLong chainsFailed = new AtomicLong();
+   protected final long createdAt = System.nanoTime();
+
+
+   @Override
+   public void chainStarted(CallbackChain chain) {
+      chainsStarted.incrementAndGet();
+   }
+
+   @Override
+   public void linkCompleted(CallbackChain chain, Callback callback, int depth,
+                             long queueNanos, long runNanos, Throwable failure) {
+      Stage stage = stages.get(callback);
+      if (stage == null) {
+         Stage newStage = new Stage(callback);
+         stage = stages.putIfAbsent(callback, newStage);
+         if (stage == null)
+            stage = newStage;
+      }
+
+      stage.queueNanos.record(queueNanos);
+      stage.runNanos.record(runNanos);
+      if (failure != null)
+         stage.failures.incrementAndGet();
+   }
+
+   @Override
+   public void chainCompleted(CallbackChain chain, long elapsedNanos, Exception failure) {
+      chainNanos.record(elapsedNanos);
+      if (failure != null)
+         chainsFailed.incrementAndGet();
+      chainsCompleted.incrementAndGet();
+   }
+
+
+   public long getChainsStarted() { return chainsStarted.get(); }
+   public long getChainsCompleted() { return chainsCompleted.get(); }
+   public long getChainsFailed() { return chainsFailed.get(); }
+   public long getChainsInFlight() { return chainsStarted.get() - chainsCompleted.get(); }
+   public Histogram getChainNanos() { return chainNanos; }
+
+   /**
+    * @return completed chains per second since we were created
+    */
+   public double getThroughput() {
+      double seconds = (System.nanoTime() - createdAt) / 1e9;
+      return (seconds > 0.0) ? chainsCompleted.get() / seconds : 0.0;
+   }
+
+   /**
+    * @return stats for a single Callback, or null if it never ran
+    */
+   public Stage getStage(Callback callback) {
+      return stages.get(callback);
+   }
+
+   /**
+    * @return all Stages, sorted by total run time, highest (the bottleneck) first
+    */
+   public List<Stage> getStages() {
+      List<Stage> list = new ArrayList<Stage>(stages.values());
+      Collections.sort(list, new Comparator<Stage>() {
+         @Override
+         public int compare(Stage s1, Stage s2) {
+            long t1 = s1.runNanos.getTotal();
+            long t2 = s2.runNanos.getTotal();
+            return (t1 < t2) ? 1 : ((t1 > t2) ? -1 : 0);
+         }
+      });
+      return list;
+   }
+
+
+   /**
+    * @return human readable multi-line summary
+    */
+   public String report() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("chains: started=%d completed=%d failed=%d inFlight=%d throughput=%.1f/s p50=%dus p99=%dus%n",
+            getChainsStarted(), getChainsCompleted(), getChainsFailed(), getChainsInFlight(), getThroughput(),
+            micros(chainNanos.percentile(50.0)), micros(chainNanos.percentile(99.0))));
+      for (Stage stage : getStages())
+         sb.append(stage).append(String.format("%n"));
+      return sb.toString();
+   }
+
+   static long micros(long nanos) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+   }
+
+
+   /**
+    * Stats for one Callback
+    */
+   public static class Stage {
+      public final Callback callback;
+      public final Histogram queueNanos = new Histogram();
+      public final Histogram runNanos = new Histogram();
+      public final AtomicLong failures = new AtomicLong();
+
+      Stage(Callback callback) {
+         this.callback = callback;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%s: count=%d failures=%d run p50=%dus p99=%dus total=%dus, queue p50=%dus p99=%dus",
+               callback, runNanos.getCount(), failures.get(),
+               micros(runNanos.percentile(50.0)), micros(runNanos.percentile(99.0)), micros(runNanos.getTotal()),
+               micros(queueNanos.percentile(50.0)), micros(queueNanos.percentile(99.0)));
+      }
+   }
+
+
+   /**
+    * Lock-free histogram of non-negative longs (e.g. nanoseconds), with buckets at powers of 2,
+    * each split into 4 sub-buckets, so percentiles are accurate to within 25%
+    */
+   public static class Histogram {
+      static final int SUB_BITS = 2;
+      static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+      final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+      final AtomicLong count = new AtomicLong();
+      final AtomicLong total = new AtomicLong();
+      final AtomicLong max = new AtomicLong();
+
+      public void record(long value) {
+         if (value < 0L)
+            value = 0L;
+         counts.incrementAndGet(index(value));
+         count.incrementAndGet();
+         total.addAndGet(value);
+
+         long was = max.get();
+         while ((value > was) && !max.compareAndSet(was, value))
+            was = max.get();
+      }
+
+      public long getCount() { return count.get(); }
+      public long getTotal() { return total.get(); }
+      public long getMax() { return max.get(); }
+
+      public double getMean() {
+         long n = count.get();
+         return (n > 0L) ? (double) total.get() / n : 0.0;
+      }
+
+      /**
+       * @param pct  0.0 to 100.0
+       * @return     approximate value at that percentile (the upper bound of its bucket), 0 if empty
+       */
+      public long percentile(double pct) {
+         long n = count.get();
+         if (n == 0L)
+            return 0L;
+
+         long target = Math.max(1L, (long) Math.ceil(n * pct / 100.0));
+         long seen = 0L;
+         for (int i=0; i<counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+               return Math.min(upperBound(i), max.get());
+         }
+
+         return max.get();
+      }
+
+      static int index(long value) {
+         if (value < SUB_BUCKETS)
+            return (int) value;
+         int exp = 63 - Long.numberOfLeadingZeros(value);
+         int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+         return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+      }
+
+      static long upperBound(int index) {
+         if (index < SUB_BUCKETS)
+            return index;
+         int shift = (index >> SUB_BITS) - 1;
+         int sub = index & (SUB_BUCKETS - 1);
+         if (shift + SUB_BITS + 1 >= 63)
+            return Long.MAX_VALUE;
+         return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1L;
+      }
+   }
+}
@@ -0,0 +1,475 @@
+package com.flyingspaniel.nava.callback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * An optional write-ahead journal, so that Pipeline chains survive the JVM dying.
+ * <p>
+ * The journal is an append-only, memory-mapped file of records: <ul>
+ *    <li>SUBMIT  a chain was submitted, with its Pipeline's name and input</li>
+ *    <li>LINK    a link completed, with the stage index and input of the next link</li>
+ *    <li>DONE    the chain completed (or failed, or was cancelled by the user)</li>
+ * </ul>
+ * Each record carries a CRC, so a record torn by a crash marks the end of the journal.
+ * When opened, the journal is scanned, and chains without a DONE record are unfinished.
+ * After register()ing the Pipelines by name, resume() resubmits each unfinished chain at the stage after its last completed link.
+ * <p>
+ * Durability uses group commit.  submit() returns once its SUBMIT record has been forced to disk, and concurrent submitters
+ * share a single force().  LINK and DONE records, which are written on executor threads, are not waited for,
+ * they are forced along with the next submission, or by flush() or close().  So execution is at-least-once:
+ * after a crash, a link may run again.  Stages should be idempotent.
+ * <p>
+ * Inputs, and the outputs passed between stages, must be Serializable.  Pipelines with a Callback.ProducesMultiple
+ * stage are not supported.  Chains abandoned by CallbackExecutor.shutdown() stay unfinished, to be resumed.
+ * When the file fills up, it is compacted down to the latest record of each unfinished chain.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class ChainJournal implements Closeable {
+
+   static final byte SUBMIT = 1;
+   static final byte LINK = 2;
+   static final byte DONE = 3;
+
+   static final int HEADER = 4 + 4;   // length, crc
+
+   protected final File file;
+   protected final int capacity;
+
+   private final Map<String, Pipeline> pipelines = new HashMap<String, Pipeline>();   // guarded by itself
+
+   // all guarded by this
+   private RandomAccessFile raf;
+   private FileChannel channel;
+   private MappedByteBuffer buffer;
+   private final Map<Long, byte[]> unfinished = new LinkedHashMap<Long, byte[]>();   // latest record of each
+   private final Set<Long> running = new HashSet<Long>();   // submitted or resumed by us, and not yet done
+   private long nextId = 1L;
+   private int written;         // end of the last record in the file
+   private long appended = 0L;  // total bytes ever appended, including before compaction
+   private long durable = 0L;   // how many of those are known to be on disk
+   private boolean forcing = false;
+   private boolean closed = false;
+   private volatile IOException lastDoneException = null;
+   int forces = 0;              // for testing
+   int compactions = 0;
+
+
+   /**
+    * Open, or create, a journal
+    * @param file      journal file
+    * @param capacity  bytes to map, at most 2GB.  If the file is already bigger, its size is used.
+    * @throws IOException
+    */
+   public ChainJournal(File file, int capacity) throws IOException {
+      this.file = file;
+      this.capacity = capacity;
+      open();
+      written = scan();
+   }
+
+
+   /**
+    * Register a Pipeline, which must be done before submitting, or resuming, chains that use it
+    * @param name      as recorded in the journal, should be the same from run to run
+    * @param pipeline  may not contain a Callback.ProducesMultiple
+    * @return this
+    */
+   public ChainJournal register(String name, Pipeline pipeline) {
+      for (Pipeline.Stage stage : pipeline.stages) {
+         if (stage.producesMultiple)
+            throw new IllegalArgumentException("ChainJournal does not support Callback.ProducesMultiple: " + stage.callback);
+      }
+      synchronized (pipelines) {
+         pipelines.put(name, pipeline);
+      }
+      return this;
+   }
+
+
+   /**
+    * Journal, then submit, a chain
+    * @param executor  runs it
+    * @param name      of a registered Pipeline
+    * @param inData    Serializable
+    * @return the CallbackChain
+    * @throws IOException  if it could not be journaled, in which case it was not submitted
+    * @throws RejectedExecutionException  if executor is shutting down.  It stays journaled, for resume().
+    */
+   public CallbackChain submit(CallbackExecutor executor, String name, Object inData, Object...more)
+         throws IOException, InterruptedException {
+      CallbackChain chain = new CallbackChain(pipeline(name));
+      chain.journal = this;
+      chain.journalName = name;
+
+      long end;
+      synchronized (this) {
+         chain.journalId = nextId++;
+         end = append(SUBMIT, chain.journalId, 0, name, serialize(inData, more));
+         running.add(chain.journalId);
+      }
+      awaitForced(end);
+
+      try {
+         return executor.submit(chain, inData, more);
+      }
+      catch (RuntimeException re) {   // e.g. shutting down, or a bad lane
+         synchronized (this) {
+            running.remove(chain.journalId);   // so resume() can run it
+         }
+         throw re;
+      }
+   }
+
+
+   /**
+    * @return number of chains that have not finished
+    */
+   public synchronized int getUnfinishedCount() {
+      return unfinished.size();
+   }
+
+
+   /**
+    * Resubmit every unfinished chain that is not already running, at the stage after its last completed link
+    * @param executor  runs them
+    * @return the chains
+    * @throws IOException  if a record can't be read, or refers to an unregistered Pipeline
+    */
+   public List<CallbackChain> resume(CallbackExecutor executor) throws IOException {
+      List<CallbackChain> resumed = new ArrayList<CallbackChain>();
+      for (Map.Entry<Long, byte[]> entry : toResume().entrySet()) {
+         ByteBuffer record = ByteBuffer.wrap(entry.getValue());
+         record.get();  // type
+         long id = record.getLong();
+         int stage = record.getInt();
+         String name = readName(record);
+         Object[] payload = deserialize(record);
+
+         CallbackChain chain = new CallbackChain(pipeline(name));
+         chain.journal = this;
+         chain.journalName = name;
+         chain.journalId = id;
+         chain.firstStage = stage;
+         resumed.add(executor.submit(chain, payload[0], (Object[]) payload[1]));
+      }
+
+      return resumed;
+   }
+
+
+   /**
+    * Force everything written so far to disk
+    */
+   public void flush() throws IOException {
+      long end;
+      synchronized (this) {
+         end = appended;
+      }
+      try {
+         awaitForced(end);
+      }
+      catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new IOException("interrupted while flushing", ie);
+      }
+   }
+
+   /**
+    * Flush, then close.  Later records from still running chains are dropped (they will run again on resume)
+    */
+   @Override
+   public void close() throws IOException {
+      flush();
+      synchronized (this) {
+         closed = true;
+         buffer = null;
+         channel.close();
+         raf.close();
+      }
+   }
+
+
+   /**
+    * Called by CallbackExecutor once a link completes, before the next one is scheduled
+    */
+   void linkCompleted(CallbackChain chain, CallbackAnd.Input next) {
+      try {
+         byte[] payload = serialize(next.input, next.more);
+         synchronized (this) {
+            if (!closed)
+               append(LINK, chain.journalId, next.stage, chain.journalName, payload);
+         }
+      }
+      catch (IOException ioe) {
+         throw new IllegalStateException("could not journal chain " + chain.journalId, ioe);
+      }
+   }
+
+   /**
+    * Called by the chain when it completes, before await() returns.  Unless it was abandoned, it is done for good.
+    */
+   void chainDone(CallbackChain chain) {
+      try {
+         synchronized (this) {
+            running.remove(chain.journalId);
+            if (chain.abandoned)
+               return;   // leave it for resume()
+            if (!closed)
+               append(DONE, chain.journalId, 0, null, null);
+         }
+      }
+      catch (IOException ioe) {
+         handleDoneException(chain, ioe);
+      }
+   }
+
+   /**
+    * A DONE record could not be written.  Not fatal, the chain will just run again on resume().
+    * By default, remembers it for getLastDoneException().  Subclasses may override to provide logging etc...
+    */
+   protected void handleDoneException(CallbackChain chain, IOException ioe) {
+      lastDoneException = ioe;
+   }
+
+   /**
+    * @return the last IOException writing a DONE record, null if none
+    */
+   public IOException getLastDoneException() {
+      return lastDoneException;
+   }
+
+
+   private Pipeline pipeline(String name) throws IOException {
+      Pipeline pipeline;
+      synchronized (pipelines) {
+         pipeline = pipelines.get(name);
+      }
+      if (pipeline == null)
+         throw new IOException("no Pipeline registered as " + name);
+      return pipeline;
+   }
+
+   /**
+    * @return unfinished chains that are not running, which are now considered running
+    */
+   private synchronized Map<Long, byte[]> toResume() {
+      Map<Long, byte[]> toResume = new LinkedHashMap<Long, byte[]>(unfinished);
+      toResume.keySet().removeAll(running);
+      running.addAll(toResume.keySet());
+      return toResume;
+   }
+
+
+   /**
+    * Wait until everything up to end is on disk.  Whoever gets here first forces for everybody waiting (group commit)
+    * @param end  as returned by append()
+    */
+   private void awaitForced(long end) throws InterruptedException {
+      MappedByteBuffer toForce;
+      long target;
+      synchronized (this) {
+         for (;;) {
+            if (durable >= end)
+               return;
+            if (!forcing)
+               break;
+            wait();
+         }
+         forcing = true;
+         target = appended;
+         toForce = buffer;
+      }
+
+      // others keep appending while we force
+      try {
+         if (toForce != null)
+            toForce.force();
+      }
+      finally {
+         synchronized (this) {
+            forcing = false;
+            if (toForce != null)
+               forces++;
+            if (durable < target)
+               durable = target;
+            notifyAll();
+         }
+      }
+   }
+
+
+   /**
+    * Append one record
+    * @return total bytes appended, for awaitForced()
+    */
+   private long append(byte type, long id, int stage, String name, byte[] payload) throws IOException {
+      if (closed)
+         throw new IOException("ChainJournal " + file + " is closed");
+      byte[] record = record(type, id, stage, name, payload);
+      if (written + HEADER + record.length + 4 > buffer.capacity()) {
+         compact();
+         if (written + HEADER + record.length + 4 > buffer.capacity())
+            throw new IOException("ChainJournal " + file + " is full");
+      }
+
+      write(buffer, written, record);
+      written += HEADER + record.length;
+      appended += HEADER + record.length;
+
+      if (type == DONE)
+         unfinished.remove(id);
+      else
+         unfinished.put(id, record);
+      return appended;
+   }
+
+   private static void write(ByteBuffer buffer, int at, byte[] record) {
+      CRC32 crc = new CRC32();
+      crc.update(record, 0, record.length);
+      ByteBuffer b = buffer.duplicate();
+      b.position(at + 4);
+      b.putInt((int) crc.getValue());
+      b.put(record);
+      b.putInt(0);   // end marker, overwritten by the next record
+      buffer.putInt(at, HEADER + record.length);   // length last, so a torn record looks like the end
+   }
+
+   private static byte[] record(byte type, long id, int stage, String name, byte[] payload) throws IOException {
+      byte[] nameBytes = (name != null) ? name.getBytes("UTF-8") : new byte[0];
+      int payloadLength = (payload != null) ? payload.length : 0;
+      ByteBuffer b = ByteBuffer.allocate(1 + 8 + 4 + 2 + nameBytes.length + payloadLength);
+      b.put(type).putLong(id).putInt(stage).putShort((short) nameBytes.length).put(nameBytes);
+      if (payload != null)
+         b.put(payload);
+      return b.array();
+   }
+
+   private static String readName(ByteBuffer record) throws IOException {
+      byte[] nameBytes = new byte[record.getShort()];
+      record.get(nameBytes);
+      return new String(nameBytes, "UTF-8");
+   }
+
+
+   /**
+    * Rebuild the file from the latest record of each unfinished chain
+    */
+   private void compact() throws IOException {
+      File temp = new File(file.getPath() + ".compact");
+      RandomAccessFile newRaf = new RandomAccessFile(temp, "rw");
+      FileChannel newChannel = newRaf.getChannel();
+      MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity());
+      int at = 0;
+      for (byte[] record : unfinished.values()) {
+         write(newBuffer, at, record);
+         at += HEADER + record.length;
+      }
+      newBuffer.force();
+
+      channel.close();
+      raf.close();
+      if (!temp.renameTo(file)) {
+         newChannel.close();
+         newRaf.close();
+         open();
+         throw new IOException("could not replace " + file + " with " + temp);
+      }
+
+      raf = newRaf;
+      channel = newChannel;
+      buffer = newBuffer;
+      written = at;
+      durable = appended;   // all that matters, the unfinished, was just forced
+      compactions++;
+   }
+
+
+   private void open() throws IOException {
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+      long size = Math.max(capacity, channel.size());
+      if (size > Integer.MAX_VALUE)
+         throw new IOException("ChainJournal " + file + " is too big to map, " + size);
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+   }
+
+   /**
+    * Read all the valid records, noting unfinished chains
+    * @return end of the last valid record
+    */
+   private int scan() {
+      int at = 0;
+      while (at + HEADER <= buffer.capacity()) {
+         int length = buffer.getInt(at);
+         if ((length <= HEADER) || (at + length > buffer.capacity()))
+            break;
+
+         byte[] record = new byte[length - HEADER];
+         ByteBuffer b = buffer.duplicate();
+         b.position(at + 4);
+         int crc = b.getInt();
+         b.get(record);
+         CRC32 check = new CRC32();
+         check.update(record, 0, record.length);
+         if ((int) check.getValue() != crc)
+            break;   // torn by a crash
+
+         ByteBuffer r = ByteBuffer.wrap(record);
+         byte type = r.get();
+         long id = r.getLong();
+         if (type == DONE)
+            unfinished.remove(id);
+         else
+            unfinished.put(id, record);
+         nextId = Math.max(nextId, id + 1);
+         at += length;
+      }
+
+      return at;
+   }
+
+
+   static byte[] serialize(Object inData, Object[] more) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(new Object[] { inData, more });
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   static Object[] deserialize(ByteBuffer record) throws IOException {
+      ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(record.array(), record.arrayOffset() + record.position(), record.remaining()));
+      try {
+         return (Object[]) in.readObject();
+      }
+      catch (ClassNotFoundException cnfe) {
+         throw new IOException(cnfe);
+      }
+      finally {
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,296 @@
+package com.flyingspaniel.nava.callback;
+
+import com.flyingspaniel.nava.fp.FP;
+import com.flyingspaniel.nava.fp.Fn;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decorates a Callback that calls a dependency which may die, so that, once it does, chains fail fast
+ * instead of all calling it and waiting for timeouts.
+ * <ul>
+ *    <li>CLOSED    calls go through.  Outcomes are counted in a sliding time window.  Once there have been
+ *                  at least minimumCalls in the window, and failureRate of them failed, the circuit opens.</li>
+ *    <li>OPEN      calls fail right away with a CircuitOpenException, which goes down the chain via failSlow
+ *                  like any other Exception.  After openFor(), the circuit goes half open.</li>
+ *    <li>HALF_OPEN up to probes calls go through, the rest fail fast.  If they all succeed the circuit closes,
+ *                  if any fails it opens again.</li>
+ * </ul>
+ * The window is a ring of time buckets in AtomicLongArrays, so counting is lock-free.
+ * The state, when it opened, and the probe counts are one immutable Circuit, swapped with a single CAS,
+ * so they always change together, e.g. late failures from calls begun while closed can't extend the open period.
+ * It is approximate:  an outcome counted while its bucket is being recycled may be lost.
+ * By default every Exception counts as a failure, see recordIf().  An incoming Exception is passed straight to the delegate.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class CircuitBreakerCallback<IN, OUT> extends CallbackDecorator<IN, OUT> {
+
+   public enum State { CLOSED, OPEN, HALF_OPEN }
+
+   protected double failureRate = 0.5;
+   protected int minimumCalls = 10;
+   protected long openNanos = TimeUnit.SECONDS.toNanos(30L);
+   protected int probes = 1;
+   protected Fn<Exception, ?> recordIf = null;
+
+   private final int buckets;
+   private final long bucketNanos;
+   private final AtomicLongArray epochs;     // which bucketNanos period each bucket is counting
+   private final AtomicLongArray calls;
+   private final AtomicLongArray failures;
+
+   private final AtomicReference<Circuit> circuit = new AtomicReference<Circuit>(Circuit.CLOSED);
+
+
+   /**
+    * Constructor with a 10 second window in 10 buckets
+    */
+   public CircuitBreakerCallback(Callback<IN, OUT> delegate) {
+      this(delegate, 10L, TimeUnit.SECONDS, 10);
+   }
+
+   /**
+    * @param window   length of the sliding window
+    * @param buckets  number of buckets it is divided into, >= 1
+    */
+   public CircuitBreakerCallback(Callback<IN, OUT> delegate, long window, TimeUnit unit, int buckets) {
+      super(delegate);
+      if (buckets < 1)
+         throw new IllegalArgumentException("buckets=" + buckets);
+      this.buckets = buckets;
+      this.bucketNanos = Math.max(1L, unit.toNanos(window) / buckets);
+      this.epochs = new AtomicLongArray(buckets);
+      this.calls = new AtomicLongArray(buckets);
+      this.failures = new AtomicLongArray(buckets);
+   }
+
+
+   /**
+    * @param failureRate   fraction of failed calls, 0..1, that opens the circuit, default is 0.5
+    * @param minimumCalls  calls needed in the window before we judge, default is 10
+    * @return this
+    */
+   public CircuitBreakerCallback<IN, OUT> openWhen(double failureRate, int minimumCalls) {
+      this.failureRate = failureRate;
+      this.minimumCalls = Math.max(1, minimumCalls);
+      return this;
+   }
+
+   /**
+    * @param duration  how long the circuit stays open before probing, default is 30 seconds
+    * @return this
+    */
+   public CircuitBreakerCallback<IN, OUT> openFor(long duration, TimeUnit unit) {
+      this.openNanos = Math.max(0L, unit.toNanos(duration));
+      return this;
+   }
+
+   /**
+    * @param probes  calls allowed through, and needed to succeed, while half open.  Default is 1.
+    * @return this
+    */
+   public CircuitBreakerCallback<IN, OUT> probes(int probes) {
+      this.probes = Math.max(1, probes);
+      return this;
+   }
+
+   /**
+    * @param recordIf  Exceptions for which this is true (see FP.isTrue) count as failures, others as successes
+    * @return this
+    */
+   public CircuitBreakerCallback<IN, OUT> recordIf(Fn<Exception, ?> recordIf) {
+      this.recordIf = recordIf;
+      return this;
+   }
+
+
+   @Override
+   public OUT callback(Exception ex, IN in, Object...more) throws Exception {
+      if (ex != null)
+         return delegate.callback(ex, in, more);
+
+      Circuit probe = acquire();
+      OUT output;
+      try {
+         output = delegate.callback(null, in, more);
+      }
+      catch (Exception e) {
+         if ((recordIf == null) || FP.isTrue(recordIf.fn1(e)))
+            onFailure(probe);
+         else
+            onSuccess(probe);
+         throw e;
+      }
+
+      onSuccess(probe);
+      return output;
+   }
+
+
+   public State getState() {
+      return circuit.get().state;
+   }
+
+   /**
+    * @return {calls, failures} in the current window
+    */
+   public long[] getWindowCounts() {
+      long current = System.nanoTime() / bucketNanos;
+      long c = 0L, f = 0L;
+      for (int b=0; b<buckets; b++) {
+         if (current - epochs.get(b) < buckets) {
+            c += calls.get(b);
+            f += failures.get(b);
+         }
+      }
+      return new long[] { c, f };
+   }
+
+   /**
+    * Force the circuit closed, and forget the window
+    */
+   public void reset() {
+      clearWindow();
+      circuit.set(Circuit.CLOSED);
+   }
+
+   @Override
+   public String toString() {
+      return "CircuitBreakerCallback(" + delegate + ", " + getState() + ")";
+   }
+
+
+   /**
+    * @return the HALF_OPEN Circuit if this call is one of its probes, else null
+    * @throws CircuitOpenException  if the call may not go through
+    */
+   private Circuit acquire() throws CircuitOpenException {
+      for (;;) {
+         Circuit c = circuit.get();
+         Circuit next;
+         switch (c.state) {
+            case CLOSED:
+               return null;
+            case OPEN:
+               if (System.nanoTime() - c.openedAt < openNanos)
+                  throw new CircuitOpenException(this);
+               next = new Circuit(State.HALF_OPEN, c.openedAt, 1, 0);   // we are the first probe
+               break;
+            default:
+               if (c.probesStarted >= probes)
+                  throw new CircuitOpenException(this);   // enough probes already
+               next = new Circuit(State.HALF_OPEN, c.openedAt, c.probesStarted + 1, c.probesSucceeded);
+               break;
+         }
+         if (circuit.compareAndSet(c, next))
+            return next;
+      }
+   }
+
+   private void onSuccess(Circuit probe) {
+      if (probe == null) {
+         record(false);
+         return;
+      }
+
+      for (;;) {
+         Circuit c = circuit.get();
+         if (!c.sameHalfOpen(probe))
+            return;   // another probe failed, or we were reset
+         boolean close = (c.probesSucceeded + 1 >= probes);
+         Circuit next = close ? Circuit.CLOSED : new Circuit(State.HALF_OPEN, c.openedAt, c.probesStarted, c.probesSucceeded + 1);
+         if (circuit.compareAndSet(c, next)) {
+            if (close)
+               clearWindow();
+            return;
+         }
+      }
+   }
+
+   private void onFailure(Circuit probe) {
+      if (probe == null) {
+         record(true);
+         long[] counts = getWindowCounts();
+         if ((counts[0] >= minimumCalls) && (counts[1] >= failureRate * counts[0]))
+            open(State.CLOSED, null);
+      }
+      else
+         open(State.HALF_OPEN, probe);
+   }
+
+   /**
+    * Open, but only if we are still in the state the failure happened in, so a late failure doesn't restart the open period
+    * @param probe  if from HALF_OPEN, the Circuit that the failed probe started in
+    */
+   private void open(State from, Circuit probe) {
+      for (;;) {
+         Circuit c = circuit.get();
+         if ((c.state != from) || ((probe != null) && !c.sameHalfOpen(probe)))
+            return;
+         if (circuit.compareAndSet(c, new Circuit(State.OPEN, System.nanoTime(), 0, 0)))
+            return;
+      }
+   }
+
+   private void clearWindow() {
+      for (int b=0; b<buckets; b++) {
+         calls.set(b, 0L);
+         failures.set(b, 0L);
+      }
+   }
+
+   private void record(boolean failed) {
+      long epoch = System.nanoTime() / bucketNanos;
+      int b = (int) (((epoch % buckets) + buckets) % buckets);   // nanoTime() may be negative
+      long old = epochs.get(b);
+      if ((old != epoch) && epochs.compareAndSet(b, old, epoch)) {   // recycle a stale bucket
+         calls.set(b, 0L);
+         failures.set(b, 0L);
+      }
+      calls.incrementAndGet(b);
+      if (failed)
+         failures.incrementAndGet(b);
+   }
+
+
+   /**
+    * Immutable state of the circuit
+    */
+   static final class Circuit {
+      static final Circuit CLOSED = new Circuit(State.CLOSED, 0L, 0, 0);
+
+      final State state;
+      final long openedAt;         // System.nanoTime() when last opened
+      final int probesStarted;     // while HALF_OPEN
+      final int probesSucceeded;
+
+      Circuit(State state, long openedAt, int probesStarted, int probesSucceeded) {
+         this.state = state;
+         this.openedAt = openedAt;
+         this.probesStarted = probesStarted;
+         this.probesSucceeded = probesSucceeded;
+      }
+
+      /**
+       * @return true if we are HALF_OPEN after the same opening as probe
+       */
+      boolean sameHalfOpen(Circuit probe) {
+         return (state == State.HALF_OPEN) && (openedAt == probe.openedAt);
+      }
+   }
+
+
+   /**
+    * Thrown, instead of calling the delegate, while the circuit is open
+    */
+   public static class CircuitOpenException extends Exception {
+      public CircuitOpenException(CircuitBreakerCallback breaker) {
+         super("circuit open: " + breaker.getDelegate());
+      }
+   }
+}
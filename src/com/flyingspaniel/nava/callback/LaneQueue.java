@@ -0,0 +1,368 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The work queue for CallbackExecutor's callback threads, with a FIFO lane for each priority,
+ * so that e.g. a burst of bulk backfill chains doesn't queue up in front of interactive ones.
+ * <p>
+ * Lanes are served by smooth weighted round robin:  while several lanes have work, each gets a share of the threads
+ * in proportion to its weight, so a low priority lane still makes progress.  In addition, to bound its latency,
+ * once the oldest task in any lane has waited longer than maxWait, it goes next.
+ * <p>
+ * A task's lane is that of its CallbackChain (see CallbackChain.lane()), other tasks use lane 0.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public final class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+   /**
+    * A task that knows its lane
+    */
+   interface Laned {
+      int getLane();
+   }
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition notEmpty = lock.newCondition();
+
+   // all guarded by lock
+   private final Lane[] lanes;
+   private int count = 0;
+   private long maxWaitNanos = TimeUnit.SECONDS.toNanos(1L);
+
+
+   /**
+    * @param weights  one per lane, each >= 1.  Lane 0 is the first.
+    */
+   LaneQueue(int...weights) {
+      if (weights.length == 0)
+         throw new IllegalArgumentException("need at least one lane");
+      lanes = new Lane[weights.length];
+      for (int i=0; i<weights.length; i++) {
+         if (weights[i] < 1)
+            throw new IllegalArgumentException("lane " + i + " weight=" + weights[i]);
+         lanes[i] = new Lane(i, weights[i]);
+      }
+   }
+
+
+   public int getLaneCount() {
+      return lanes.length;
+   }
+
+   /**
+    * @param maxWait  once the oldest task in a lane has waited this long, it goes next.  If <= 0, never.
+    */
+   public void setMaxWait(long maxWait, TimeUnit unit) {
+      lock.lock();
+      try {
+         maxWaitNanos = unit.toNanos(maxWait);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return a snapshot of one lane's metrics
+    */
+   public Stats getStats(int lane) {
+      lock.lock();
+      try {
+         return new Stats(lanes[lane]);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+
+   @Override
+   public boolean offer(Runnable task) {
+      if (task == null)
+         throw new NullPointerException();
+      int lane = (task instanceof Laned) ? ((Laned) task).getLane() : 0;
+      if ((lane < 0) || (lane >= lanes.length))
+         lane = 0;
+
+      lock.lock();
+      try {
+         lanes[lane].add(task);
+         count++;
+         notEmpty.signal();
+         return true;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public void put(Runnable task) {
+      offer(task);
+   }
+
+   @Override
+   public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+      return offer(task);
+   }
+
+   @Override
+   public Runnable poll() {
+      lock.lock();
+      try {
+         return (count > 0) ? dequeue() : null;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public Runnable take() throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+         while (count == 0)
+            notEmpty.await();
+         return dequeue();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+      long nanos = unit.toNanos(timeout);
+      lock.lockInterruptibly();
+      try {
+         while (count == 0) {
+            if (nanos <= 0L)
+               return null;
+            nanos = notEmpty.awaitNanos(nanos);
+         }
+         return dequeue();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public Runnable peek() {
+      lock.lock();
+      try {
+         for (Lane lane : lanes) {
+            if (!lane.tasks.isEmpty())
+               return lane.tasks.peekFirst().task;
+         }
+         return null;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int size() {
+      lock.lock();
+      try {
+         return count;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int remainingCapacity() {
+      return Integer.MAX_VALUE;
+   }
+
+   @Override
+   public boolean remove(Object o) {
+      lock.lock();
+      try {
+         for (Lane lane : lanes) {
+            for (Iterator<Entry> it = lane.tasks.iterator(); it.hasNext(); ) {
+               if (it.next().task.equals(o)) {
+                  it.remove();
+                  count--;
+                  return true;
+               }
+            }
+         }
+         return false;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int drainTo(Collection<? super Runnable> c) {
+      return drainTo(c, Integer.MAX_VALUE);
+   }
+
+   @Override
+   public int drainTo(Collection<? super Runnable> c, int maxElements) {
+      lock.lock();
+      try {
+         int n = 0;
+         while ((n < maxElements) && (count > 0)) {
+            c.add(dequeue());
+            n++;
+         }
+         return n;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Snapshot, in lane order
+    */
+   @Override
+   public Iterator<Runnable> iterator() {
+      lock.lock();
+      try {
+         List<Runnable> all = new ArrayList<Runnable>(count);
+         for (Lane lane : lanes) {
+            for (Entry entry : lane.tasks)
+               all.add(entry.task);
+         }
+         return all.iterator();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+
+   /**
+    * Pick the next task.  Caller holds lock, and count > 0.
+    */
+   private Runnable dequeue() {
+      long now = System.nanoTime();
+      Lane next = null;
+
+      // anti-starvation:  the oldest task that has waited too long
+      if (maxWaitNanos > 0L) {
+         long oldest = Long.MIN_VALUE;
+         for (Lane lane : lanes) {
+            if (!lane.tasks.isEmpty()) {
+               long waited = now - lane.tasks.peekFirst().enqueuedAt;
+               if ((waited > maxWaitNanos) && (waited > oldest)) {
+                  oldest = waited;
+                  next = lane;
+               }
+            }
+         }
+      }
+
+      // smooth weighted round robin among the lanes with work
+      if (next == null) {
+         int total = 0;
+         for (Lane lane : lanes) {
+            if (!lane.tasks.isEmpty()) {
+               lane.current += lane.weight;
+               total += lane.weight;
+               if ((next == null) || (lane.current > next.current))
+                  next = lane;
+            }
+         }
+         next.current -= total;
+      }
+
+      count--;
+      return next.take(now);
+   }
+
+
+   private static final class Entry {
+      final Runnable task;
+      final long enqueuedAt = System.nanoTime();
+
+      Entry(Runnable task) {
+         this.task = task;
+      }
+   }
+
+   private static final class Lane {
+      final int index;
+      final int weight;
+      final ArrayDeque<Entry> tasks = new ArrayDeque<Entry>();
+      int current = 0;   // for weighted round robin
+      long added = 0L;
+      long taken = 0L;
+      long totalWaitNanos = 0L;
+      long maxWaitNanos = 0L;
+
+      Lane(int index, int weight) {
+         this.index = index;
+         this.weight = weight;
+      }
+
+      void add(Runnable task) {
+         tasks.addLast(new Entry(task));
+         added++;
+      }
+
+      Runnable take(long now) {
+         Entry entry = tasks.pollFirst();
+         long waited = now - entry.enqueuedAt;
+         taken++;
+         totalWaitNanos += waited;
+         maxWaitNanos = Math.max(maxWaitNanos, waited);
+         return entry.task;
+      }
+   }
+
+
+   /**
+    * Metrics for one lane
+    */
+   public static final class Stats {
+      public final int lane;
+      public final int weight;
+      public final int queued;              // right now
+      public final long added;
+      public final long taken;
+      public final long totalWaitNanos;     // by those taken
+      public final long maxWaitNanos;
+
+      Stats(Lane l) {
+         lane = l.index;
+         weight = l.weight;
+         queued = l.tasks.size();
+         added = l.added;
+         taken = l.taken;
+         totalWaitNanos = l.totalWaitNanos;
+         maxWaitNanos = l.maxWaitNanos;
+      }
+
+      public double getMeanWaitNanos() {
+         return (taken == 0L) ? 0.0 : (double) totalWaitNanos / taken;
+      }
+
+      @Override
+      public String toString() {
+         return "lane " + lane + " (weight " + weight + "): queued=" + queued + " taken=" + taken +
+               " meanWait=" + TimeUnit.NANOSECONDS.toMicros((long) getMeanWaitNanos()) + "us" +
+               " maxWait=" + TimeUnit.NANOSECONDS.toMicros(maxWaitNanos) + "us";
+      }
+   }
+}
@@ -0,0 +1,63 @@
+package com.flyingspaniel.nava.callback;
+
+/**
+ * Decorates a Callback so that it only runs when its Limiter allows, e.g. to cap concurrent calls,
+ * or calls per second, to an external system.
+ * <p>
+ * When run by a CallbackExecutor, the executor asks the Limiter before running the link,
+ * and a link that must wait is parked in the Limiter (or on the executor's timer) without holding a thread.
+ * When run synchronously (e.g. Callbacks.runSync() or Pipeline.run()) the calling thread blocks until allowed.
+ * <p>
+ * An incoming Exception is passed straight to the delegate without waiting, it isn't going to call out anywhere.
+ * <p>
+ * May wrap, or be wrapped by, a RetryingCallback, see CallbackDecorator, but not another LimitedCallback:
+ * to apply two Limiters, combine them in a Limiter subclass.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class LimitedCallback<IN, OUT> extends CallbackDecorator<IN, OUT> {
+
+   protected final Limiter limiter;
+
+   public LimitedCallback(Callback<IN, OUT> delegate, Limiter limiter) {
+      super(delegate);
+      if (limiter == null)
+         throw new NullPointerException("limiter");
+      if (find(delegate, LimitedCallback.class) != null)
+         throw new IllegalArgumentException("LimitedCallback may not wrap another: " + delegate);
+      this.limiter = limiter;
+   }
+
+   public Limiter getLimiter() {
+      return limiter;
+   }
+
+
+   /**
+    * Synchronous version, blocks until the Limiter allows
+    */
+   @Override
+   public OUT callback(Exception ex, IN in, Object...more) throws Exception {
+      if (ex != null)
+         return delegate.callback(ex, in, more);
+
+      limiter.acquireSync();
+      try {
+         return delegate.callback(null, in, more);
+      }
+      finally {
+         limiter.release();
+      }
+   }
+
+
+   /**
+    * CallbackExecutor has already acquired, and will release, so just run
+    */
+   @Override
+   protected OUT callbackInExecutor(int attempt, Exception ex, IN in, Object...more) throws Exception {
+      return delegateInExecutor(attempt, ex, in, more);
+   }
+}
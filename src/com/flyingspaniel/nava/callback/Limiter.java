@@ -0,0 +1,233 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often, or how many at once, the links of a LimitedCallback may run.
+ * <p>
+ * A Limiter never blocks a CallbackExecutor thread.  When a link may not run yet, acquire() keeps it,
+ * as a Runnable, and runs it once it may, so a waiting link holds no thread and other chains carry on.
+ * Only synchronous use (e.g. Callbacks.runSync() or Pipeline.run()) blocks, in acquireSync().
+ * <p>
+ * A single Limiter may be shared by several LimitedCallbacks, e.g. all the stages that call the same server.
+ * <ul>
+ *    <li>Bulkhead    at most N links run at once, the rest wait, in order, for one to finish</li>
+ *    <li>TokenBucket at most rate links per second, with bursts of up to burst links</li>
+ * </ul>
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public abstract class Limiter {
+
+   /**
+    * Ask to run a link now
+    * @param later  if the link may not run now, this is run (on some other thread, it must not block) once it may
+    * @param timer  for deferring work, may be null only if the Limiter never defers to a timer
+    * @return true if the link may run now, false if later will be run when it may
+    */
+   public abstract boolean acquire(Runnable later, ScheduledExecutorService timer);
+
+   /**
+    * Called once for every link that ran, after acquire() returned true or later was run
+    */
+   public abstract void release();
+
+
+   /**
+    * Blocking version of acquire(), for synchronous use.  The default waits for later to be run.
+    * @throws InterruptedException  in which case we did not acquire
+    */
+   public void acquireSync() throws InterruptedException {
+      final CountDownLatch latch = new CountDownLatch(1);
+      Runnable later = new Runnable() {
+         @Override
+         public void run() {
+            latch.countDown();
+         }
+      };
+
+      if (!acquire(later, null)) {
+         try {
+            latch.await();
+         }
+         catch (InterruptedException ie) {
+            if (!cancel(later))
+               release();   // too late, we already acquired
+            throw ie;
+         }
+      }
+   }
+
+   /**
+    * Stop waiting
+    * @param later  as passed to acquire()
+    * @return true if later was waiting, and now will never be run
+    */
+   protected boolean cancel(Runnable later) {
+      return false;
+   }
+
+
+
+   /**
+    * Concurrency limit, like a Semaphore, except that waiters are queued as Runnables instead of blocking
+    */
+   public static class Bulkhead extends Limiter {
+
+      private final int maxConcurrent;
+      private final AtomicInteger available;
+      private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+      /**
+       * @param maxConcurrent  >= 1
+       */
+      public Bulkhead(int maxConcurrent) {
+         if (maxConcurrent < 1)
+            throw new IllegalArgumentException("maxConcurrent=" + maxConcurrent);
+         this.maxConcurrent = maxConcurrent;
+         this.available = new AtomicInteger(maxConcurrent);
+      }
+
+      @Override
+      public boolean acquire(Runnable later, ScheduledExecutorService timer) {
+         if (waiting.isEmpty() && tryTake())   // don't barge in front of waiters
+            return true;
+
+         waiting.add(later);
+         grant();   // in case a permit was released meanwhile
+         return false;
+      }
+
+      @Override
+      public void release() {
+         available.incrementAndGet();
+         grant();
+      }
+
+      @Override
+      protected boolean cancel(Runnable later) {
+         return waiting.remove(later);
+      }
+
+      /**
+       * Hand available permits to waiters, in order
+       */
+      private void grant() {
+         while (!waiting.isEmpty() && tryTake()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+               // lost a race with another grant(), give it back.  Anybody added after our poll() will grant() themselves
+               available.incrementAndGet();
+               return;
+            }
+            next.run();
+         }
+      }
+
+      private boolean tryTake() {
+         for (;;) {
+            int n = available.get();
+            if (n <= 0)
+               return false;
+            if (available.compareAndSet(n, n - 1))
+               return true;
+         }
+      }
+
+      public int getMaxConcurrent() {
+         return maxConcurrent;
+      }
+
+      /**
+       * @return number of links running
+       */
+      public int getRunning() {
+         return maxConcurrent - available.get();
+      }
+
+      /**
+       * @return number of links waiting to run
+       */
+      public int getWaiting() {
+         return waiting.size();
+      }
+
+      @Override
+      public String toString() {
+         return "Bulkhead(" + getRunning() + "/" + maxConcurrent + " running, " + getWaiting() + " waiting)";
+      }
+   }
+
+
+
+   /**
+    * Rate limit.  Lock-free:  the bucket is a single AtomicLong "theoretical arrival time" (as in GCRA)
+    * which each link advances by one interval with a CAS.  A link that arrives too soon reserves its slot
+    * anyway, and is deferred on the timer until then, so links run in the order they arrived.
+    */
+   public static class TokenBucket extends Limiter {
+
+      private final long intervalNanos;
+      private final long burstNanos;
+      private final AtomicLong nextFree;   // System.nanoTime() of the next free slot, if in the past the bucket is full
+
+      /**
+       * @param perSecond  sustained rate, > 0
+       * @param burst      how many may run at once after an idle period, >= 1
+       */
+      public TokenBucket(double perSecond, int burst) {
+         if ((perSecond <= 0.0) || (burst < 1))
+            throw new IllegalArgumentException("perSecond=" + perSecond + " burst=" + burst);
+         this.intervalNanos = Math.max(1L, (long)(TimeUnit.SECONDS.toNanos(1) / perSecond));
+         this.burstNanos = (burst - 1) * intervalNanos;
+         this.nextFree = new AtomicLong(System.nanoTime());
+      }
+
+      /**
+       * Take a token, now or in the future
+       * @return nanoseconds until our token is available, 0 if it is now
+       */
+      public long reserve() {
+         for (;;) {
+            long now = System.nanoTime();
+            long tat = nextFree.get();
+            long start = (tat - now < 0) ? now : tat;   // an idle bucket is only so full
+            long wait = start - burstNanos - now;
+            if (nextFree.compareAndSet(tat, start + intervalNanos))
+               return Math.max(0L, wait);
+         }
+      }
+
+      @Override
+      public boolean acquire(Runnable later, ScheduledExecutorService timer) {
+         long wait = reserve();
+         if (wait == 0L)
+            return true;
+
+         timer.schedule(later, wait, TimeUnit.NANOSECONDS);
+         return false;
+      }
+
+      @Override
+      public void acquireSync() throws InterruptedException {
+         TimeUnit.NANOSECONDS.sleep(reserve());
+      }
+
+      @Override
+      public void release() {
+         // nothing to give back
+      }
+
+      @Override
+      public String toString() {
+         return "TokenBucket(" + (TimeUnit.SECONDS.toNanos(1) / intervalNanos) + "/s, burst " + (burstNanos / intervalNanos + 1) + ")";
+      }
+   }
+}
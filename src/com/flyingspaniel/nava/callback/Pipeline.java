@@ -0,0 +1,172 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+
+/**
+ * An immutable, "compiled" chain of Callbacks.
+ * <p>
+ * Callbacks.chainUp() links Callbacks by calling setNextCallback(), so a Callback can only be in one chain at a time,
+ * and every run re-walks getNextCallback() and re-checks each link for ProducesMore / ProducesMultiple.
+ * A Pipeline instead copies the chain, once, into a flat array of Stages with those capabilities already resolved.
+ * It never calls setNextCallback(), so the same Callback may appear in any number of Pipelines.
+ * <p>
+ * A Pipeline holds no per-run state, so a single instance may be run concurrently, for many inputs, from many threads.
+ * That is only as safe as the Callbacks themselves:  ProducesMore and ProducesMultiple Callbacks usually keep state
+ * between callback() and getMore() / getMultiple(), so be wary of sharing those.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public final class Pipeline {
+
+   static final Pipeline EMPTY = new Pipeline(new Stage[0]);
+
+   final Stage[] stages;
+
+   private Pipeline(Stage[] stages) {
+      this.stages = stages;
+   }
+
+
+   /**
+    * Create a Pipeline from Callbacks in order.  Unlike Callbacks.chainUp() the Callbacks are not modified.
+    * @param first   non-null
+    * @param others  following Callbacks, none may be null
+    * @return Pipeline
+    */
+   public static Pipeline of(Callback first, Callback...others) {
+      Stage[] stages = new Stage[others.length + 1];
+      stages[0] = new Stage(first);
+      for (int i=0; i<others.length; i++)
+         stages[i+1] = new Stage(others[i]);
+
+      return new Pipeline(stages);
+   }
+
+
+   /**
+    * Compile an existing chain (linked via setNextCallback(), e.g. by Callbacks.chainUp()) into a Pipeline.
+    * The chain is walked exactly once, here.  Later changes to the chain do not affect the Pipeline.
+    *
+    * @param first  if null, returns an empty Pipeline
+    * @return Pipeline
+    * @throws IllegalArgumentException if the chain loops back on itself
+    */
+   public static Pipeline compile(Callback first) {
+      if (first == null)
+         return EMPTY;
+
+      ArrayList<Stage> stages = new ArrayList<Stage>();
+      IdentityHashMap<Callback, Boolean> seen = new IdentityHashMap<Callback, Boolean>();
+      for (Callback c = first; c != null; c = c.getNextCallback()) {
+         if (seen.put(c, Boolean.TRUE) != null)
+            throw new IllegalArgumentException("Callback chain contains a loop at " + c);
+         stages.add(new Stage(c));
+      }
+
+      return new Pipeline(stages.toArray(new Stage[stages.size()]));
+   }
+
+
+   /**
+    * @return number of Stages
+    */
+   public int size() {
+      return stages.length;
+   }
+
+   /**
+    * Get the Callback at a given Stage
+    * @param idx  0-based
+    * @return     null if idx is past the end of the Pipeline
+    */
+   public Callback getCallback(int idx) {
+      return (idx < stages.length) ? stages[idx].callback : null;
+   }
+
+
+   /**
+    * Runs the Pipeline synchronously, the equivalent of Callbacks.runSync()<p>
+    * Unlike runSync(), a Stage that handles an incoming Exception and returns normally clears it,
+    * and a Callback.ProducesMultiple is allowed.  Each of its outputs runs through the rest of the Pipeline,
+    * and the result is an Object[] of their final results.
+    *
+    * @param data  input to first Stage
+    * @param more  input to first Stage
+    * @return      result from the final Stage
+    * @throws Exception  if the final Stage threw, or passed along, an Exception
+    */
+   public Object run(Object data, Object...more) throws Exception {
+      return runFrom(0, null, data, more);
+   }
+
+
+   /**
+    * Wraps run() in a Callable so it can be run in another thread.  The Pipeline may be shared across many of these.
+    */
+   public Callable callable(final Object inData, final Object...more) {
+      return new Callable() {
+         @Override
+         public Object call() throws Exception {
+            return run(inData, more);
+         }
+      };
+   }
+
+
+   @SuppressWarnings("unchecked")
+   Object runFrom(int idx, Exception ex, Object data, Object...more) throws Exception {
+
+      for (; idx < stages.length; idx++) {
+         Stage stage = stages[idx];
+
+         try {
+            data = stage.callback.callback(ex, data, more);
+            ex = null;
+         } catch (Exception e) {
+            ex = e;
+         }
+
+         more = stage.getMore();
+
+         if (stage.producesMultiple && (ex == null)) {
+            Object[] multiple = ((Callback.ProducesMultiple) stage.callback).getMultiple();
+            Object[] results = new Object[multiple.length];
+            for (int m=0; m<multiple.length; m++)
+               results[m] = runFrom(idx+1, null, multiple[m], Callbacks.EMPTY);
+
+            return results;
+         }
+      }
+
+      if (ex != null)
+         throw ex;
+
+      return data;
+   }
+
+
+   /**
+    * One link of the Pipeline, with its capabilities resolved when compiled
+    */
+   static final class Stage {
+      final Callback callback;
+      final boolean producesMore;
+      final boolean producesMultiple;
+
+      Stage(Callback callback) {
+         if (callback == null)
+            throw new NullPointerException("Pipeline Stages may not be null");
+         this.callback = callback;
+         this.producesMore = callback instanceof Callback.ProducesMore;
+         this.producesMultiple = callback instanceof Callback.ProducesMultiple;
+      }
+
+      Object[] getMore() {
+         return producesMore ? ((Callback.ProducesMore) callback).getMore() : Callbacks.EMPTY;
+      }
+   }
+}
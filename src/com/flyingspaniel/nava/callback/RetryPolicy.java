@@ -0,0 +1,164 @@
+package com.flyingspaniel.nava.callback;
+
+import com.flyingspaniel.nava.fp.FP;
+import com.flyingspaniel.nava.fp.Fn;
+
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings for how a RetryingCallback retries:  max attempts,
+ * jittered exponential backoff, and which Exceptions (or results) are worth retrying.
+ * <p>
+ * Options are set fluent style, e.g.
+ * <pre>
+ *    new RetryPolicy().maxAttempts(5).backoff(100, 10000, TimeUnit.MILLISECONDS).multiplier(2.0).jitter(0.5)
+ * </pre>
+ * Delay before retry n (1-based) is  min(maxDelay, initialDelay * multiplier^(n-1)),  less a random jitter
+ * fraction of that.  A jitter of 1.0 is "full jitter", uniformly between 0 and the delay.
+ * <p>
+ * A policy may be shared by many running chains.  The settings are volatile, so changing one takes effect,
+ * on every thread, from the next retry decision on.  (backoff() sets two values, which a concurrent decision may see half done.)
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class RetryPolicy {
+
+   volatile int maxAttempts = 3;
+   volatile long initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(100L);
+   volatile long maxDelayNanos = TimeUnit.SECONDS.toNanos(30L);
+   volatile double multiplier = 2.0;
+   volatile double jitter = 0.0;
+   volatile Fn<Exception, ?> retryIf = null;   // null means retry any Exception
+   volatile Fn<Object, ?> retryIfResult = null;   // null means all results are fine
+
+   private final Random random = new Random();
+
+
+   /**
+    * @param maxAttempts  total attempts including the first, must be >= 1
+    * @return this
+    */
+   public RetryPolicy maxAttempts(int maxAttempts) {
+      if (maxAttempts < 1)
+         throw new IllegalArgumentException("maxAttempts must be >= 1");
+      this.maxAttempts = maxAttempts;
+      return this;
+   }
+
+   /**
+    * @param initialDelay  delay before the first retry
+    * @param maxDelay      upper limit for any delay
+    * @return this
+    */
+   public RetryPolicy backoff(long initialDelay, long maxDelay, TimeUnit unit) {
+      this.initialDelayNanos = unit.toNanos(initialDelay);
+      this.maxDelayNanos = unit.toNanos(maxDelay);
+      return this;
+   }
+
+   /**
+    * @param multiplier  each delay is this many times the previous, must be >= 1.0
+    * @return this
+    */
+   public RetryPolicy multiplier(double multiplier) {
+      if (multiplier < 1.0)
+         throw new IllegalArgumentException("multiplier must be >= 1.0");
+      this.multiplier = multiplier;
+      return this;
+   }
+
+   /**
+    * @param jitter  fraction, 0.0 (none) to 1.0 (full jitter), of each delay that is randomized
+    * @return this
+    */
+   public RetryPolicy jitter(double jitter) {
+      if ((jitter < 0.0) || (jitter > 1.0))
+         throw new IllegalArgumentException("jitter must be between 0.0 and 1.0");
+      this.jitter = jitter;
+      return this;
+   }
+
+   /**
+    * @param retryIf  return null or Boolean.FALSE for Exceptions that should not be retried.  null retries all.
+    * @return this
+    */
+   public RetryPolicy retryIf(Fn<Exception, ?> retryIf) {
+      this.retryIf = retryIf;
+      return this;
+   }
+
+   /**
+    * For results that, though not Exceptions, are worth retrying, e.g. a Response with a 5xx status code
+    * @param retryIfResult  return null or Boolean.FALSE for good results.  null means all results are good.
+    * @return this
+    */
+   public RetryPolicy retryIfResult(Fn<Object, ?> retryIfResult) {
+      this.retryIfResult = retryIfResult;
+      return this;
+   }
+
+
+   /**
+    * Should we try again?
+    * @param attempt  1-based number of the attempt that just failed
+    * @param ex       what it threw
+    * @return true to retry
+    */
+   public boolean shouldRetry(int attempt, Exception ex) {
+      if (attempt >= maxAttempts)
+         return false;
+      if ((ex instanceof InterruptedException) || (ex instanceof CancellationException))
+         return false;
+      if (ex instanceof RetryableResult)
+         return true;
+
+      Fn<Exception, ?> retryIf = this.retryIf;
+      return (retryIf == null) || FP.isTrue(retryIf.fn1(ex));
+   }
+
+   /**
+    * Is this result, though not an Exception, worth retrying?
+    */
+   public boolean isRetryableResult(Object result) {
+      Fn<Object, ?> retryIfResult = this.retryIfResult;
+      return (retryIfResult != null) && FP.isTrue(retryIfResult.fn1(result));
+   }
+
+
+   /**
+    * How long to wait before the next attempt
+    * @param attempt  1-based number of the attempt that just failed
+    * @return         delay in nanoseconds
+    */
+   public long delayNanos(int attempt) {
+      double delay = initialDelayNanos * Math.pow(multiplier, attempt - 1);
+      delay = Math.min(delay, maxDelayNanos);
+      double jitter = this.jitter;
+      if (jitter > 0.0) {
+         double r;
+         synchronized (random) {
+            r = random.nextDouble();
+         }
+         delay -= delay * jitter * r;
+      }
+
+      return (long) delay;
+   }
+
+
+   /**
+    * Thrown internally for a result that isRetryableResult(), so that it can be retried like an Exception
+    */
+   public static class RetryableResult extends Exception {
+      public final Object result;
+
+      public RetryableResult(Object result) {
+         super("retryable result: " + result);
+         this.result = result;
+      }
+   }
+}
@@ -0,0 +1,86 @@
+package com.flyingspaniel.nava.callback;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decorates a Callback so that it gets retried, according to a RetryPolicy, when it fails.
+ * <p>
+ * When run by a CallbackExecutor, each attempt is a separate link.  After a failure, the next attempt is scheduled
+ * on the executor's timer, so a waiting retry holds no threads.
+ * When run synchronously (e.g. Callbacks.runSync() or Pipeline.run()) there's no choice but to sleep between attempts.
+ * <p>
+ * An incoming Exception is never retried, it is passed to the delegate for failFast or failSlow handling.
+ * <p>
+ * May wrap, or be wrapped by, a LimitedCallback, see CallbackDecorator, but not another RetryingCallback.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public class RetryingCallback<IN, OUT> extends CallbackDecorator<IN, OUT> {
+
+   protected final RetryPolicy policy;
+
+   public RetryingCallback(Callback<IN, OUT> delegate, RetryPolicy policy) {
+      super(delegate);
+      if (find(delegate, RetryingCallback.class) != null)
+         throw new IllegalArgumentException("RetryingCallback may not wrap another: " + delegate);
+      this.policy = policy;
+   }
+
+   public RetryPolicy getRetryPolicy() {
+      return policy;
+   }
+
+
+   /**
+    * Synchronous version, sleeps between attempts
+    */
+   @Override
+   public OUT callback(Exception ex, IN in, Object...more) throws Exception {
+      if (ex != null)
+         return delegate.callback(ex, in, more);
+
+      for (int attempt = 1; ; attempt++) {
+         try {
+            return attempt(attempt, in, more);
+         }
+         catch (Exception e) {
+            if (!policy.shouldRetry(attempt, e))
+               throw e;
+            TimeUnit.NANOSECONDS.sleep(policy.delayNanos(attempt));
+         }
+      }
+   }
+
+
+   /**
+    * CallbackExecutor handles the retries, so we make a single attempt
+    */
+   @Override
+   protected OUT callbackInExecutor(int attempt, Exception ex, IN in, Object...more) throws Exception {
+      if (ex != null)
+         return delegateInExecutor(attempt, ex, in, more);
+      return checkResult(attempt, delegateInExecutor(attempt, null, in, more));
+   }
+
+
+   /**
+    * A single attempt.
+    * @param attempt  1-based
+    * @throws RetryPolicy.RetryableResult  if the result is retryable and there are attempts left
+    */
+   protected OUT attempt(int attempt, IN in, Object...more) throws Exception {
+      return checkResult(attempt, delegate.callback(null, in, more));
+   }
+
+   /**
+    * @throws RetryPolicy.RetryableResult  if out is retryable and there are attempts left
+    */
+   protected OUT checkResult(int attempt, OUT out) throws RetryPolicy.RetryableResult {
+      if ((attempt < policy.maxAttempts) && policy.isRetryableResult(out))
+         throw new RetryPolicy.RetryableResult(out);
+
+      return out;
+   }
+}
@@ -15,8 +15,20 @@
  *     <li>If your callback returns lots of "optional extra" information, (rare) extend Callback.ProducesMore</li>
  *     <li>If it produces multiple results that can be processed in parallel, extend Callback.ProducesMultiple</li>
  *     <li>Hook up your callbacks, either manually, or by using Callbacks.chainUp()</li>
+ *     <li>Or compile them into an immutable Pipeline, which may be shared by many threads and chains</li>
  *     <li>You can run them synchronously (nice for testing) using Callbacks.runSync()</li>
  *     <li>Run them asynchronously ("fire and forget" mode) using CallbackExecutor.submitCallback()</li>
+ *     <li>On many cores, construct the CallbackExecutor with a ForkJoinPool to use work-stealing instead of handler threads</li>
+ *     <li>Keep bulk chains from delaying interactive ones with priority lanes:  new CallbackExecutor(threads, handlers, laneWeights...)</li>
+ *     <li>To set a deadline or per-link timeout, or to cancel a running chain, submit a CallbackChain</li>
+ *     <li>Wrap a Callback subject to transient failures in a RetryingCallback</li>
+ *     <li>Cache a pure but expensive Callback, e.g. URL signing, with a CachingCallback</li>
+ *     <li>Cap the concurrency or rate of a Callback that calls an external system with a LimitedCallback</li>
+ *     <li>Fail fast, instead of waiting on timeouts, when a dependency dies, with a CircuitBreakerCallback</li>
+ *     <li>Group inputs from many chains into one bulk operation (e.g. a database write) with a BatchingCallback</li>
+ *     <li>Plug a Pipeline into java.util.concurrent.Flow streams, with backpressure, using a CallbackProcessor</li>
+ *     <li>Run several independent chains for one request, joining all or any, in a CallbackScope</li>
+ *     <li>To survive the JVM dying, submit Pipeline chains through a ChainJournal, and resume() them on restart</li>
  *     <li>There are many examples in AbstractCallback, or the code in CallbacksTest</li>
  *  </ol>
  *
@@ -0,0 +1,37 @@
+package com.flyingspaniel.nava.fp;
+
+/**
+ * Mutable partial state, e.g. a running sum, that doubles are added to one at a time, and that can be combined
+ * with another covering later values.  That makes it usable both in a plain loop and, via FP.parAccumulatep(),
+ * in parallel, where each slice gets its own empty() Accumulator, and the slices are combined in order.
+ * <p>
+ * Implementations need not be thread safe, since each is only used by one thread at a time.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public interface Accumulator<A extends Accumulator<A>> {
+
+   /**
+    * @return  this
+    */
+   public A add(double d);
+
+   /**
+    * Add ds[from, to)
+    * @return  this
+    */
+   public A add(double[] ds, int from, int to);
+
+   /**
+    * Merge in other, which covers values after those already added.  other is unchanged.
+    * @return  this
+    */
+   public A combine(A other);
+
+   /**
+    * @return  a new, empty, Accumulator of the same kind and settings
+    */
+   public A empty();
+}
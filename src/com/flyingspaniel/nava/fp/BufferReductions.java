@@ -0,0 +1,194 @@
+package com.flyingspaniel.nava.fp;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reductions over DoubleBuffers and IntBuffers, typically of a memory mapped file, behind FP's Buffer and FileChannel methods.
+ * <p>
+ * Buffers are read with absolute gets, or through a duplicate(), so their position is never changed.
+ * A Fn.Pdouble.N (or Fn.Pint.N) is handed CHUNK values at a time, bulk copied into a small array,
+ * and the chunk results combined with fn2(), so fn must be associative.
+ * <p>
+ * A single mapping is limited to 2GB, so files are mapped one region at a time.
+ * Mappings are released by the garbage collector, so a region's pages stay mapped (but not necessarily resident) until then.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+final class BufferReductions {
+
+   /**
+    * Values per chunk, small enough to stay in L1 cache
+    */
+   static final int CHUNK = 4096;
+
+   /**
+    * Bytes per mapped region of a file
+    */
+   static final long REGION_BYTES = 1L << 30;
+
+   private BufferReductions() {}
+
+
+   static double foldp(double seed, DoubleBuffer ins, Fn.Pdouble fn) {
+      for (int i=ins.position(), limit=ins.limit(); i<limit; i++)
+         seed = fn.fn2(seed, ins.get(i));
+
+      return seed;
+   }
+
+   static int foldp(int seed, IntBuffer ins, Fn.Pint fn) {
+      for (int i=ins.position(), limit=ins.limit(); i<limit; i++)
+         seed = fn.fn2(seed, ins.get(i));
+
+      return seed;
+   }
+
+
+   static double reducep(DoubleBuffer ins, Fn.Pdouble fn) {
+      int from = ins.position();
+      int limit = ins.limit();
+      if (from >= limit)
+         throw new BufferUnderflowException();
+      if (ins.hasArray())
+         return Reductions.reduce(ins.array(), ins.arrayOffset() + from, ins.arrayOffset() + limit, fn);
+
+      if (!(fn instanceof Fn.Pdouble.N)) {
+         double v = ins.get(from);
+         for (int i=from+1; i<limit; i++)
+            v = fn.fn2(v, ins.get(i));
+         return v;
+      }
+
+      DoubleBuffer source = ins.duplicate();
+      double[] chunk = new double[Math.min(CHUNK, limit - from)];
+      double v = 0.0;
+      for (boolean first = true; source.hasRemaining(); first = false) {
+         int n = Math.min(chunk.length, source.remaining());
+         source.get(chunk, 0, n);
+         double r = Reductions.reduce(chunk, 0, n, fn);
+         v = first ? r : fn.fn2(v, r);
+      }
+      return v;
+   }
+
+   static int reducep(IntBuffer ins, Fn.Pint fn) {
+      int from = ins.position();
+      int limit = ins.limit();
+      if (from >= limit)
+         throw new BufferUnderflowException();
+      if (ins.hasArray())
+         return Reductions.reduce(ins.array(), ins.arrayOffset() + from, ins.arrayOffset() + limit, fn);
+
+      if (!(fn instanceof Fn.Pint.N)) {
+         int v = ins.get(from);
+         for (int i=from+1; i<limit; i++)
+            v = fn.fn2(v, ins.get(i));
+         return v;
+      }
+
+      IntBuffer source = ins.duplicate();
+      int[] chunk = new int[Math.min(CHUNK, limit - from)];
+      int v = 0;
+      for (boolean first = true; source.hasRemaining(); first = false) {
+         int n = Math.min(chunk.length, source.remaining());
+         source.get(chunk, 0, n);
+         int r = Reductions.reduce(chunk, 0, n, fn);
+         v = first ? r : fn.fn2(v, r);
+      }
+      return v;
+   }
+
+
+   static <A extends Accumulator<A>> A accumulate(DoubleBuffer ins, A acc) {
+      if (ins.hasArray())
+         return acc.add(ins.array(), ins.arrayOffset() + ins.position(), ins.arrayOffset() + ins.limit());
+
+      DoubleBuffer source = ins.duplicate();
+      double[] chunk = new double[Math.min(CHUNK, source.remaining())];
+      while (source.hasRemaining()) {
+         int n = Math.min(chunk.length, source.remaining());
+         source.get(chunk, 0, n);
+         acc.add(chunk, 0, n);
+      }
+      return acc;
+   }
+
+
+   static DoubleBuffer mapDoubles(FileChannel channel, ByteOrder order, long position, long bytes) throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(order).asDoubleBuffer();
+   }
+
+   static IntBuffer mapInts(FileChannel channel, ByteOrder order, long position, long bytes) throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(order).asIntBuffer();
+   }
+
+
+   /**
+    * @param regionBytes  how much to map at once, rounded down to a whole number of doubles
+    */
+   static double foldp(double seed, FileChannel channel, ByteOrder order, Fn.Pdouble fn, long regionBytes) throws IOException {
+      long total = channel.size() & ~7L;
+      regionBytes &= ~7L;
+      for (long position = 0L; position < total; position += regionBytes)
+         seed = foldp(seed, mapDoubles(channel, order, position, Math.min(regionBytes, total - position)), fn);
+
+      return seed;
+   }
+
+   static int foldp(int seed, FileChannel channel, ByteOrder order, Fn.Pint fn, long regionBytes) throws IOException {
+      long total = channel.size() & ~3L;
+      regionBytes &= ~3L;
+      for (long position = 0L; position < total; position += regionBytes)
+         seed = foldp(seed, mapInts(channel, order, position, Math.min(regionBytes, total - position)), fn);
+
+      return seed;
+   }
+
+   /**
+    * Each region is reduced (in parallel if requested), then the region results are combined in order
+    */
+   static double reducep(FileChannel channel, ByteOrder order, Fn.Pdouble fn, boolean parallel, long regionBytes) throws IOException {
+      long total = channel.size() & ~7L;
+      if (total == 0L)
+         throw new BufferUnderflowException();
+      regionBytes &= ~7L;
+
+      double v = 0.0;
+      for (long position = 0L; position < total; position += regionBytes) {
+         DoubleBuffer region = mapDoubles(channel, order, position, Math.min(regionBytes, total - position));
+         double r = parallel ? ParallelFP.reducep(region, fn, threshold(region.remaining())) : reducep(region, fn);
+         v = (position == 0L) ? r : fn.fn2(v, r);
+      }
+      return v;
+   }
+
+   static int reducep(FileChannel channel, ByteOrder order, Fn.Pint fn, boolean parallel, long regionBytes) throws IOException {
+      long total = channel.size() & ~3L;
+      if (total == 0L)
+         throw new BufferUnderflowException();
+      regionBytes &= ~3L;
+
+      int v = 0;
+      for (long position = 0L; position < total; position += regionBytes) {
+         IntBuffer region = mapInts(channel, order, position, Math.min(regionBytes, total - position));
+         int r = parallel ? ParallelFP.reducep(region, fn, threshold(region.remaining())) : reducep(region, fn);
+         v = (position == 0L) ? r : fn.fn2(v, r);
+      }
+      return v;
+   }
+
+
+   /**
+    * Parallel slices are at least a CHUNK
+    */
+   static int threshold(int size) {
+      return Math.max(CHUNK, ParallelFP.threshold(size));
+   }
+}
@@ -0,0 +1,104 @@
+package com.flyingspaniel.nava.fp;
+
+/**
+ * A running sum of doubles using Neumaier's improvement of Kahan summation:  the low order bits lost by each add are
+ * kept in a separate compensation term.  The error is about 2<sup>-53</sup> * |sum| + n * 2<sup>-106</sup> * sum(|d|),
+ * i.e. essentially independent of how many values are added, where a plain loop's grows with n.
+ * It is also accurate when big values cancel, e.g. 1.0, 1e100, 1.0, -1e100 sums to 2.0, not 0.0.
+ * <p>
+ * Partial sums combine without losing their compensation, so FP.parAccumulatep() gives the same result, to within the
+ * above error, as a sequential sum, and exactly the same result each time for the same input.
+ * It costs about four times as much per value as a plain loop.  For speed with less accuracy, see Fns.SUM_PAIRWISEpdouble.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public final class CompensatedSum implements Accumulator<CompensatedSum> {
+
+   private double sum = 0.0;
+   private double compensation = 0.0;
+   private double simpleSum = 0.0;   // for when sum overflows, and the compensation is NaN
+   private long count = 0L;
+
+
+   @Override
+   public CompensatedSum add(double d) {
+      double t = sum + d;
+      if (Math.abs(sum) >= Math.abs(d))
+         compensation += (sum - t) + d;
+      else
+         compensation += (d - t) + sum;
+      sum = t;
+      simpleSum += d;
+      count++;
+      return this;
+   }
+
+   @Override
+   public CompensatedSum add(double[] ds, int from, int to) {
+      double s = sum, c = compensation, simple = simpleSum;   // locals, so the loop stays in registers
+      for (int i=from; i<to; i++) {
+         double d = ds[i];
+         double t = s + d;
+         if (Math.abs(s) >= Math.abs(d))
+            c += (s - t) + d;
+         else
+            c += (d - t) + s;
+         s = t;
+         simple += d;
+      }
+      sum = s;
+      compensation = c;
+      simpleSum = simple;
+      count += to - from;
+      return this;
+   }
+
+   @Override
+   public CompensatedSum combine(CompensatedSum other) {
+      double otherSum = other.sum;   // copies, in case other == this
+      double otherCompensation = other.compensation;
+      double otherSimple = other.simpleSum;
+      long otherCount = other.count;
+
+      double t = sum + otherSum;
+      if (Math.abs(sum) >= Math.abs(otherSum))
+         compensation += (sum - t) + otherSum;
+      else
+         compensation += (otherSum - t) + sum;
+      sum = t;
+      compensation += otherCompensation;
+      simpleSum += otherSimple;
+      count += otherCount;
+      return this;
+   }
+
+   @Override
+   public CompensatedSum empty() {
+      return new CompensatedSum();
+   }
+
+
+   /**
+    * @return the sum, 0.0 if empty
+    */
+   public double getSum() {
+      double v = sum + compensation;
+      if (Double.isNaN(v) && Double.isInfinite(simpleSum))
+         return simpleSum;
+      return v;
+   }
+
+   /**
+    * @return how many values were added
+    */
+   public long getCount() {
+      return count;
+   }
+
+   @Override
+   public String toString() {
+      return "sum=" + getSum() + " count=" + count;
+   }
+}
@@ -1,6 +1,13 @@
 package com.flyingspaniel.nava.fp;
 
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -13,6 +20,11 @@ import java.util.List;
  */
 public class FP {
 
+   /**
+    * Default slice length for parAccumulatep()
+    */
+   public static final int ACCUMULATE_THRESHOLD = 8192;
+
    /**
     * Fold objects using a generified Fn function
     */
@@ -43,6 +55,26 @@ public class FP {
       return seed;
    }
 
+   /**
+    * Fold longs using a primitive long (Fn.Plong) function
+    */
+   public static long foldp(long seed, long[] ins, Fn.Plong fn) {
+      for (long in : ins)
+         seed = fn.fn2(seed, in);
+
+      return seed;
+   }
+
+   /**
+    * Fold floats using a primitive float (Fn.Pfloat) function
+    */
+   public static float foldp(float seed, float[] ins, Fn.Pfloat fn) {
+      for (float in : ins)
+         seed = fn.fn2(seed, in);
+
+      return seed;
+   }
+
 
    /**
     * FoldRight objects using a generified Fn function
@@ -77,6 +109,28 @@ public class FP {
       return seed;
    }
 
+   /**
+    * FoldRight longs using a primitive long (Fn.Plong) function
+    */
+   public static long foldRightp(long seed, long[] ins, Fn.Plong fn) {
+      int idx = ins.length;
+      while (--idx >= 0)
+         seed = fn.fn2(seed, ins[idx]);
+
+      return seed;
+   }
+
+   /**
+    * FoldRight floats using a primitive float (Fn.Pfloat) function
+    */
+   public static float foldRightp(float seed, float[] ins, Fn.Pfloat fn) {
+      int idx = ins.length;
+      while (--idx >= 0)
+         seed = fn.fn2(seed, ins[idx]);
+
+      return seed;
+   }
+
    /**
     * Reduce Objects using a generified Fn function
     */
@@ -117,6 +171,34 @@ public class FP {
       return v;
    }
 
+   /**
+    * Reduce longs using a primitive long (Fn.Plong) function
+    */
+   public static long reducep(long[] ins, Fn.Plong fn) {
+      if (fn instanceof Fn.Plong.N)
+         return ((Fn.Plong.N)fn).fnN(ins);
+
+      long v = ins[0];
+      for (int i=1; i<ins.length; i++)
+         v = fn.fn2(v, ins[i]);
+
+      return v;
+   }
+
+   /**
+    * Reduce floats using a primitive float (Fn.Pfloat) function
+    */
+   public static float reducep(float[] ins, Fn.Pfloat fn) {
+      if (fn instanceof Fn.Pfloat.N)
+         return ((Fn.Pfloat.N)fn).fnN(ins);
+
+      float v = ins[0];
+      for (int i=1; i<ins.length; i++)
+         v = fn.fn2(v, ins[i]);
+
+      return v;
+   }
+
 
    /**
     * Filter (keep) Objects accepted by Fn to a new ArrayList.  Shallow copy.
@@ -151,6 +233,391 @@ public class FP {
       return mapped;
    }
 
+   /**
+    * Map doubles to a new array, transforming them via fn1()
+    * @return  new array, same length as ins
+    */
+   public static double[] mapp(double[] ins, Fn.Pdouble fn) {
+      return mapp(ins, fn, new double[ins.length]);
+   }
+
+   /**
+    * Map doubles into out, which may be ins itself, to map in place
+    * @param out  at least as long as ins
+    * @return     out
+    */
+   public static double[] mapp(double[] ins, Fn.Pdouble fn, double[] out) {
+      for (int i=0; i<ins.length; i++)
+         out[i] = fn.fn1(ins[i]);
+
+      return out;
+   }
+
+   /**
+    * Map ints to a new array, transforming them via fn1()
+    * @return  new array, same length as ins
+    */
+   public static int[] mapp(int[] ins, Fn.Pint fn) {
+      return mapp(ins, fn, new int[ins.length]);
+   }
+
+   /**
+    * Map ints into out, which may be ins itself, to map in place
+    * @param out  at least as long as ins
+    * @return     out
+    */
+   public static int[] mapp(int[] ins, Fn.Pint fn, int[] out) {
+      for (int i=0; i<ins.length; i++)
+         out[i] = fn.fn1(ins[i]);
+
+      return out;
+   }
+
+   /**
+    * Map longs to a new array, transforming them via fn1()
+    * @return  new array, same length as ins
+    */
+   public static long[] mapp(long[] ins, Fn.Plong fn) {
+      return mapp(ins, fn, new long[ins.length]);
+   }
+
+   /**
+    * Map longs into out, which may be ins itself, to map in place
+    * @param out  at least as long as ins
+    * @return     out
+    */
+   public static long[] mapp(long[] ins, Fn.Plong fn, long[] out) {
+      for (int i=0; i<ins.length; i++)
+         out[i] = fn.fn1(ins[i]);
+
+      return out;
+   }
+
+   /**
+    * Map floats to a new array, transforming them via fn1()
+    * @return  new array, same length as ins
+    */
+   public static float[] mapp(float[] ins, Fn.Pfloat fn) {
+      return mapp(ins, fn, new float[ins.length]);
+   }
+
+   /**
+    * Map floats into out, which may be ins itself, to map in place
+    * @param out  at least as long as ins
+    * @return     out
+    */
+   public static float[] mapp(float[] ins, Fn.Pfloat fn, float[] out) {
+      for (int i=0; i<ins.length; i++)
+         out[i] = fn.fn1(ins[i]);
+
+      return out;
+   }
+
+   /**
+    * Filter (keep) doubles accepted by filter to a new array
+    * @return  new array, may be empty
+    */
+   public static double[] filterp(double[] ins, Fn.Pdouble.Filter filter) {
+      double[] passed = new double[ins.length];
+      int n = filterp(ins, filter, passed);
+      return (n == passed.length) ? passed : Arrays.copyOf(passed, n);
+   }
+
+   /**
+    * Filter (keep) doubles accepted by filter into out, which may be ins itself, to filter in place
+    * @param out  at least as long as ins
+    * @return     how many were kept, at the start of out
+    */
+   public static int filterp(double[] ins, Fn.Pdouble.Filter filter, double[] out) {
+      int n = 0;
+      for (double in : ins)
+         if (filter.accept(in))
+            out[n++] = in;
+
+      return n;
+   }
+
+   /**
+    * Filter (keep) ints accepted by filter to a new array
+    * @return  new array, may be empty
+    */
+   public static int[] filterp(int[] ins, Fn.Pint.Filter filter) {
+      int[] passed = new int[ins.length];
+      int n = filterp(ins, filter, passed);
+      return (n == passed.length) ? passed : Arrays.copyOf(passed, n);
+   }
+
+   /**
+    * Filter (keep) ints accepted by filter into out, which may be ins itself, to filter in place
+    * @param out  at least as long as ins
+    * @return     how many were kept, at the start of out
+    */
+   public static int filterp(int[] ins, Fn.Pint.Filter filter, int[] out) {
+      int n = 0;
+      for (int in : ins)
+         if (filter.accept(in))
+            out[n++] = in;
+
+      return n;
+   }
+
+   /**
+    * Filter (keep) longs accepted by filter to a new array
+    * @return  new array, may be empty
+    */
+   public static long[] filterp(long[] ins, Fn.Plong.Filter filter) {
+      long[] passed = new long[ins.length];
+      int n = filterp(ins, filter, passed);
+      return (n == passed.length) ? passed : Arrays.copyOf(passed, n);
+   }
+
+   /**
+    * Filter (keep) longs accepted by filter into out, which may be ins itself, to filter in place
+    * @param out  at least as long as ins
+    * @return     how many were kept, at the start of out
+    */
+   public static int filterp(long[] ins, Fn.Plong.Filter filter, long[] out) {
+      int n = 0;
+      for (long in : ins)
+         if (filter.accept(in))
+            out[n++] = in;
+
+      return n;
+   }
+
+   /**
+    * Filter (keep) floats accepted by filter to a new array
+    * @return  new array, may be empty
+    */
+   public static float[] filterp(float[] ins, Fn.Pfloat.Filter filter) {
+      float[] passed = new float[ins.length];
+      int n = filterp(ins, filter, passed);
+      return (n == passed.length) ? passed : Arrays.copyOf(passed, n);
+   }
+
+   /**
+    * Filter (keep) floats accepted by filter into out, which may be ins itself, to filter in place
+    * @param out  at least as long as ins
+    * @return     how many were kept, at the start of out
+    */
+   public static int filterp(float[] ins, Fn.Pfloat.Filter filter, float[] out) {
+      int n = 0;
+      for (float in : ins)
+         if (filter.accept(in))
+            out[n++] = in;
+
+      return n;
+   }
+
+
+   /**
+    * Parallel map(), using fork/join with the default sequential threshold.  Order is kept.
+    * fn should be pure, since it is called from several threads at once.
+    * @param ins   a RandomAccess List is split by index, anything else is first copied into one
+    */
+   public static<IN,OUT> ArrayList<OUT> parMap(Iterable<IN> ins, Fn<IN,OUT> fn) {
+      List<IN> list = ParallelFP.splittable(ins);
+      return ParallelFP.map(list, fn, ParallelFP.threshold(list.size()));
+   }
+
+   /**
+    * Parallel map()
+    * @param threshold  slices no longer than this are mapped sequentially.  Make it smaller for an expensive fn.
+    */
+   public static<IN,OUT> ArrayList<OUT> parMap(Iterable<IN> ins, Fn<IN,OUT> fn, int threshold) {
+      return ParallelFP.map(ins, fn, threshold);
+   }
+
+   /**
+    * Parallel filter(), using fork/join with the default sequential threshold.  Order is kept.
+    */
+   public static<IN> ArrayList<IN> parFilter(Iterable<IN> ins, Fn<IN,?> filterFn) {
+      List<IN> list = ParallelFP.splittable(ins);
+      return ParallelFP.filter(list, filterFn, ParallelFP.threshold(list.size()));
+   }
+
+   /**
+    * Parallel filter()
+    * @param threshold  slices no longer than this are filtered sequentially
+    */
+   public static<IN> ArrayList<IN> parFilter(Iterable<IN> ins, Fn<IN,?> filterFn, int threshold) {
+      return ParallelFP.filter(ins, filterFn, threshold);
+   }
+
+   /**
+    * Parallel reduce(), using fork/join with the default sequential threshold.
+    * fn must be associative, e.g. SUM, MIN, MAX, but need not be commutative.
+    * @throws java.util.NoSuchElementException  if ins is empty
+    */
+   public static <IN> IN parReduce(Iterable<IN> ins, Fn<IN,IN> fn) {
+      List<IN> list = ParallelFP.splittable(ins);
+      return ParallelFP.reduce(list, fn, ParallelFP.threshold(list.size()));
+   }
+
+   /**
+    * Parallel reduce()
+    * @param threshold  slices no longer than this are reduced sequentially
+    */
+   public static <IN> IN parReduce(Iterable<IN> ins, Fn<IN,IN> fn, int threshold) {
+      return ParallelFP.reduce(ins, fn, threshold);
+   }
+
+   /**
+    * Parallel fold(), for an associative fn.  Same as fn.fn2(seed, parReduce(ins, fn)), or seed if ins is empty.
+    */
+   public static <IN> IN parFold(IN seed, Iterable<IN> ins, Fn<IN,IN> fn) {
+      List<IN> list = ParallelFP.splittable(ins);
+      return list.isEmpty() ? seed : fn.fn2(seed, parReduce(list, fn));
+   }
+
+   /**
+    * Parallel reducep() of doubles, for an associative fn.  Each slice uses fnN() if fn is a Fn.Pdouble.N
+    * For Fns.SUM_COMPENSATEDpdouble and SUM_PAIRWISEpdouble, slices are ACCUMULATE_THRESHOLD long,
+    * whatever the number of cores, so the result is reproducible.
+    */
+   public static double parReducep(double[] ins, Fn.Pdouble fn) {
+      boolean stableSum = (fn == Fns.SUM_COMPENSATEDpdouble) || (fn == Fns.SUM_PAIRWISEpdouble);
+      return ParallelFP.reducep(ins, fn, stableSum ? ACCUMULATE_THRESHOLD : ParallelFP.threshold(ins.length));
+   }
+
+   public static double parReducep(double[] ins, Fn.Pdouble fn, int threshold) {
+      return ParallelFP.reducep(ins, fn, threshold);
+   }
+
+   /**
+    * Parallel reducep() of ints, for an associative fn.  Each slice uses fnN() if fn is a Fn.Pint.N
+    */
+   public static int parReducep(int[] ins, Fn.Pint fn) {
+      return ParallelFP.reducep(ins, fn, ParallelFP.threshold(ins.length));
+   }
+
+   public static int parReducep(int[] ins, Fn.Pint fn, int threshold) {
+      return ParallelFP.reducep(ins, fn, threshold);
+   }
+
+
+   /**
+    * Add all of ins to acc, e.g. a CompensatedSum or Stats
+    * @return  acc
+    */
+   public static <A extends Accumulator<A>> A accumulatep(double[] ins, A acc) {
+      return acc.add(ins, 0, ins.length);
+   }
+
+   /**
+    * Add all of a DoubleBuffer, e.g. a mapped file, from its position to its limit, to acc.  The buffer's position is unchanged.
+    * @return  acc
+    */
+   public static <A extends Accumulator<A>> A accumulatep(DoubleBuffer ins, A acc) {
+      return BufferReductions.accumulate(ins, acc);
+   }
+
+   /**
+    * Add the doubleValue() of all of ins to acc
+    * @return  acc
+    */
+   public static <A extends Accumulator<A>> A accumulate(Iterable<? extends Number> ins, A acc) {
+      for (Number in : ins)
+         acc.add(in.doubleValue());
+      return acc;
+   }
+
+   /**
+    * Parallel accumulatep(), with each slice of ins added to its own acc.empty(), and the slices combined in order into acc.
+    * Slices are ACCUMULATE_THRESHOLD long, whatever the number of cores, so the result is reproducible.
+    * @return  acc
+    */
+   public static <A extends Accumulator<A>> A parAccumulatep(double[] ins, A acc) {
+      return ParallelFP.accumulate(ins, acc, ACCUMULATE_THRESHOLD);
+   }
+
+   /**
+    * Parallel accumulatep()
+    * @param threshold  slices no longer than this are added sequentially
+    */
+   public static <A extends Accumulator<A>> A parAccumulatep(double[] ins, A acc, int threshold) {
+      return ParallelFP.accumulate(ins, acc, threshold);
+   }
+
+   /**
+    * Fold doubles from a DoubleBuffer, e.g. a memory mapped file, from its position to its limit.
+    * The buffer's position is unchanged.
+    */
+   public static double foldp(double seed, DoubleBuffer ins, Fn.Pdouble fn) {
+      return BufferReductions.foldp(seed, ins, fn);
+   }
+
+   /**
+    * Fold ints from an IntBuffer, from its position to its limit.  The buffer's position is unchanged.
+    */
+   public static int foldp(int seed, IntBuffer ins, Fn.Pint fn) {
+      return BufferReductions.foldp(seed, ins, fn);
+   }
+
+   /**
+    * Reduce doubles from a DoubleBuffer, from its position to its limit, which are unchanged.
+    * A Fn.Pdouble.N gets a few thousand at a time, copied to a small array, so fn must be associative.
+    * @throws java.nio.BufferUnderflowException  if there are none
+    */
+   public static double reducep(DoubleBuffer ins, Fn.Pdouble fn) {
+      return BufferReductions.reducep(ins, fn);
+   }
+
+   /**
+    * Reduce ints from an IntBuffer, from its position to its limit, which are unchanged.
+    * A Fn.Pint.N gets a few thousand at a time, copied to a small array, so fn must be associative.
+    * @throws java.nio.BufferUnderflowException  if there are none
+    */
+   public static int reducep(IntBuffer ins, Fn.Pint fn) {
+      return BufferReductions.reducep(ins, fn);
+   }
+
+   /**
+    * Parallel reducep() of a DoubleBuffer, for an associative fn
+    */
+   public static double parReducep(DoubleBuffer ins, Fn.Pdouble fn) {
+      return ParallelFP.reducep(ins, fn, BufferReductions.threshold(ins.remaining()));
+   }
+
+   /**
+    * Parallel reducep() of an IntBuffer, for an associative fn
+    */
+   public static int parReducep(IntBuffer ins, Fn.Pint fn) {
+      return ParallelFP.reducep(ins, fn, BufferReductions.threshold(ins.remaining()));
+   }
+
+   /**
+    * Fold a file of doubles, of any size, without reading it onto the heap.
+    * It is memory mapped a region (1GB) at a time.  Any trailing partial double is ignored.
+    * @param order  of the file's bytes, e.g. ByteOrder.BIG_ENDIAN if written by a DataOutputStream
+    */
+   public static double foldp(double seed, FileChannel channel, ByteOrder order, Fn.Pdouble fn) throws IOException {
+      return BufferReductions.foldp(seed, channel, order, fn, BufferReductions.REGION_BYTES);
+   }
+
+   /**
+    * Fold a file of ints, of any size, memory mapped a region at a time
+    */
+   public static int foldp(int seed, FileChannel channel, ByteOrder order, Fn.Pint fn) throws IOException {
+      return BufferReductions.foldp(seed, channel, order, fn, BufferReductions.REGION_BYTES);
+   }
+
+   /**
+    * Reduce a file of doubles, of any size, memory mapped a region at a time, for an associative fn.
+    * @param parallel  if true, each region is reduced with fork/join, as in parReducep()
+    * @throws java.nio.BufferUnderflowException  if the file holds no doubles
+    */
+   public static double reducep(FileChannel channel, ByteOrder order, Fn.Pdouble fn, boolean parallel) throws IOException {
+      return BufferReductions.reducep(channel, order, fn, parallel, BufferReductions.REGION_BYTES);
+   }
+
+   /**
+    * Reduce a file of ints, of any size, memory mapped a region at a time, for an associative fn.
+    */
+   public static int reducep(FileChannel channel, ByteOrder order, Fn.Pint fn, boolean parallel) throws IOException {
+      return BufferReductions.reducep(channel, order, fn, parallel, BufferReductions.REGION_BYTES);
+   }
+
 
    /**
     * Check if every Object passes Fn  (same as forAll())
@@ -195,6 +662,73 @@ public class FP {
    }
 
 
+   /**
+    * Parallel every(), using fork/join.  As soon as any slice finds an Object that fails, the others stop.
+    * filterFn should be pure, since it is called from several threads at once.
+    */
+   public static<IN> boolean parEvery(Iterable<IN> ins, Fn<IN,?> filterFn) {
+      List<IN> list = ParallelFP.splittable(ins);
+      return parEvery(list, filterFn, ParallelFP.threshold(list.size()));
+   }
+
+   /**
+    * Parallel every()
+    * @param threshold  slices no longer than this are checked sequentially.  Make it small for an expensive filterFn.
+    */
+   public static<IN> boolean parEvery(Iterable<IN> ins, Fn<IN,?> filterFn, int threshold) {
+      return ParallelFP.search(ins, filterFn, false, false, threshold) < 0;
+   }
+
+   /**
+    * Parallel exists(), using fork/join.  As soon as any slice finds an Object that passes, the others stop.
+    */
+   public static<IN> boolean parExists(Iterable<IN> ins, Fn<IN,?> filterFn) {
+      List<IN> list = ParallelFP.splittable(ins);
+      return parExists(list, filterFn, ParallelFP.threshold(list.size()));
+   }
+
+   /**
+    * Parallel exists()
+    * @param threshold  slices no longer than this are checked sequentially
+    */
+   public static<IN> boolean parExists(Iterable<IN> ins, Fn<IN,?> filterFn, int threshold) {
+      return ParallelFP.search(ins, filterFn, true, false, threshold) >= 0;
+   }
+
+   /**
+    * Parallel search for the first (lowest index) Object that passes filterFn.
+    * Once one is found, slices to its right stop, but those to its left continue, in case they have a lower one.
+    * @return index, or -1 if none pass
+    */
+   public static<IN> int parIndexOf(Iterable<IN> ins, Fn<IN,?> filterFn) {
+      List<IN> list = ParallelFP.splittable(ins);
+      return parIndexOf(list, filterFn, ParallelFP.threshold(list.size()));
+   }
+
+   /**
+    * Parallel search for the first Object that passes filterFn
+    * @param threshold  slices no longer than this are checked sequentially
+    * @return index, or -1 if none pass
+    */
+   public static<IN> int parIndexOf(Iterable<IN> ins, Fn<IN,?> filterFn, int threshold) {
+      return ParallelFP.search(ins, filterFn, true, true, threshold);
+   }
+
+   /**
+    * Parallel indexOf(grail, array), using equals(), or == if grail is null
+    * @return lowest index, or -1 if not found
+    */
+   public static int parIndexOf(final Object grail, Object...array) {
+      Fn<Object,Boolean> matches = new Fn.Base<Object,Boolean>() {
+         @Override
+         public Boolean fn1(Object in) {
+            return (grail == null) ? (in == null) : grail.equals(in);
+         }
+      };
+      return parIndexOf(Arrays.asList(array), matches, ParallelFP.threshold(array.length));
+   }
+
+
    /**
     * Find index of grail in array, usually using equals()
     * @param grail
@@ -230,19 +764,13 @@ public class FP {
 
    /**
     * Join Objects into a String.  nulls become empty Strings
+    * If ins is a Collection of CharSequences (e.g. Strings) the exact length is computed first, so nothing is copied twice.
     * @param delim  delimiter, non-null but may be ""
     * @param ins
     * @return
     */
    public static String join(String delim, Iterable ins) {
-      StringBuilder sb = new StringBuilder();
-      for (Object in : ins) {
-         sb.append(delim);
-         String s = (in != null) ? in.toString() : "";
-         sb.append(s);
-      }
-
-      return sb.substring(delim.length());
+      return join(new StringBuilder(joinedLength(delim, ins)), delim, ins).toString();
    }
 
 
@@ -257,7 +785,73 @@ public class FP {
 
 
    public static String join(Object...ins) {
-      return join( ",", ins);
+      return join( ",", Arrays.asList(ins));
+   }
+
+
+   /**
+    * Join Objects, appending them to sb, e.g. to reuse one StringBuilder for many joins.  nulls become empty Strings
+    * @param sb     appended to
+    * @param delim  delimiter, non-null but may be "", only goes between Objects
+    * @return sb
+    */
+   public static StringBuilder join(StringBuilder sb, String delim, Iterable ins) {
+      boolean first = true;
+      for (Object in : ins) {
+         if (!first)
+            sb.append(delim);
+         first = false;
+         if (in instanceof CharSequence)
+            sb.append((CharSequence) in);
+         else if (in != null)
+            sb.append(in.toString());
+      }
+
+      return sb;
+   }
+
+
+   /**
+    * Join Objects, appending them to out as they are iterated, so a huge (or lazy) ins can be streamed,
+    * e.g. to a Writer, without ever building the whole String.  A CharBuffer works too, but throws
+    * BufferOverflowException once full.  nulls become empty Strings
+    * @param out    appended to
+    * @param delim  delimiter, non-null but may be "", only goes between Objects
+    * @return out
+    * @throws IOException  from out
+    */
+   public static <A extends Appendable> A join(A out, String delim, Iterable ins) throws IOException {
+      boolean first = true;
+      for (Object in : ins) {
+         if (!first)
+            out.append(delim);
+         first = false;
+         if (in instanceof CharSequence)
+            out.append((CharSequence) in);
+         else if (in != null)
+            out.append(in.toString());
+      }
+
+      return out;
+   }
+
+
+   /**
+    * @return exact length of join(delim, ins) if ins is a Collection of CharSequences (or nulls), else a guess
+    */
+   static int joinedLength(String delim, Iterable ins) {
+      if (!(ins instanceof Collection))
+         return 16;   // StringBuilder's default
+
+      Collection<?> collection = (Collection<?>) ins;
+      long length = (long) delim.length() * Math.max(0, collection.size() - 1);
+      for (Object in : collection) {
+         if (in instanceof CharSequence)
+            length += ((CharSequence) in).length();
+         else if (in != null)
+            return (int) Math.min(length + 16L * collection.size(), Integer.MAX_VALUE - 8);   // don't toString() twice
+      }
+      return (int) Math.min(length, Integer.MAX_VALUE - 8);
    }
 
    /**
@@ -6,12 +6,14 @@ package com.flyingspaniel.nava.fp;
  * The main interface, Fn, is genericized by an input IN and output OUT.  It has 1arg and 2arg methods fn1 and fn2,
  * It accepts an extension interface, Fn.N, if you support a varargs method.
  * 
- * For efficiency, two "inner sub-interfaces" are provided <ul>
+ * For efficiency, four "inner sub-interfaces" are provided <ul>
  *    <li>Fn.Pdouble for dealing with primitive doubles</li>
  *    <li>Fn.Pint for dealing with primitive ints</li>
+ *    <li>Fn.Plong for dealing with primitive longs, e.g. timestamps and counters</li>
+ *    <li>Fn.Pfloat for dealing with primitive floats</li>
  * </ul>
  * 
- * "Abstract" Base classes that throw UnsupportedOperationExceptions for all functions are provided for all three types.
+ * "Abstract" Base classes that throw UnsupportedOperationExceptions for all functions are provided for Fn and all four primitive types.
  *
  * @author Morgan Conrad
  * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
@@ -76,6 +78,13 @@ public interface Fn<IN, OUT> {
 
       public static interface AndN extends Pdouble, Pdouble.N {}
 
+      /**
+       * For filterp(), accepts or rejects a single double, without boxing
+       */
+      public static interface Filter {
+         public boolean accept(double d);
+      }
+
       /**
        * Base class that throws UnsupportedOperationExceptions for all methods.  Subclass this as needed.
        */
@@ -108,6 +117,13 @@ public interface Fn<IN, OUT> {
 
       public static interface AndN extends Pint, Pint.N {}
 
+      /**
+       * For filterp(), accepts or rejects a single int, without boxing
+       */
+      public static interface Filter {
+         public boolean accept(int i);
+      }
+
       /**
        * Base class that throws UnsupportedOperationExceptions for all methods.  Subclass this as needed.
        */
@@ -125,6 +141,82 @@ public interface Fn<IN, OUT> {
       
    }
 
-   
+   /**
+    * "Efficiency interface for dealing with primitive longs
+    */
+   public static interface Plong {
+      public long fn1(long l1);
+      public long fn2(long l1, long l2);
+
+      /**
+       *  Optional additional interface if we can take an array / varargs
+       */
+      public static interface N {
+         public long fnN(long...longs);
+      }
+
+      public static interface AndN extends Plong, Plong.N {}
+
+      /**
+       * For filterp(), accepts or rejects a single long, without boxing
+       */
+      public static interface Filter {
+         public boolean accept(long l);
+      }
+
+      /**
+       * Base class that throws UnsupportedOperationExceptions for all methods.  Subclass this as needed.
+       */
+      public static class Base implements Plong.AndN {
+
+         protected Base() {}  // not to be directly instantiated
+
+         // calling the varargs works, but allocates an array.  Override these if speed matters.
+         @Override public long fn1(long l1) { return fnN(l1); }
+
+         @Override public long fn2(long l1, long l2) { return fnN(l1, l2); }
+
+         @Override public long fnN(long...longs) { throw new UnsupportedOperationException(); }
+      }
+   }
+
+   /**
+    * "Efficiency interface for dealing with primitive floats
+    */
+   public static interface Pfloat {
+      public float fn1(float f1);
+      public float fn2(float f1, float f2);
+
+      /**
+       *  Optional additional interface if we can take an array / varargs
+       */
+      public static interface N {
+         public float fnN(float...floats);
+      }
+
+      public static interface AndN extends Pfloat, Pfloat.N {}
+
+      /**
+       * For filterp(), accepts or rejects a single float, without boxing
+       */
+      public static interface Filter {
+         public boolean accept(float f);
+      }
+
+      /**
+       * Base class that throws UnsupportedOperationExceptions for all methods.  Subclass this as needed.
+       */
+      public static class Base implements Pfloat.AndN {
+
+         protected Base() {}  // not to be directly instantiated
+
+         // calling the varargs works, but allocates an array.  Override these if speed matters.
+         @Override public float fn1(float f1) { return fnN(f1); }
+
+         @Override public float fn2(float f1, float f2) { return fnN(f1, f2); }
+
+         @Override public float fnN(float...floats) { throw new UnsupportedOperationException(); }
+      }
+   }
    
 }
@@ -3,7 +3,9 @@ package com.flyingspaniel.nava.fp;
 /**
  * A bunch of implementations of basic Fns 
  * Mimics Scala's collection : min, max, sum, product
- * Suffixes of "pdouble" or "pint" indicate that they deal with primitives
+ * Suffixes of "pdouble", "pint", "plong" or "pfloat" indicate that they deal with primitives.
+ * The plong and pfloat ones implement fn2() directly, so never allocate.  SUMplong is exact, where SUM, via double, is not.
+ * Their fnN() methods loop in a way the JIT compiles well, see Reductions for the floating point details.
  * 
  * @author Morgan Conrad
  * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
@@ -39,26 +41,40 @@ public class Fns {
    public static final Fn.Pdouble.AndN MINpdouble = new Fn.Pdouble.Base() {
       
       @Override public double fnN(double[] ds) {
-         double min = ds[0];
-         for (int i=0; i<ds.length; i++) {
-            if (ds[i] < min)
-               min = ds[i];
-         }
-
-         return min;
+         return Reductions.min(ds, 0, ds.length);
       }
    };
 
    public static final Fn.Pint.AndN MINpint = new Fn.Pint.Base() {
 
       @Override public int fnN(int[] ds) {
-         int min = ds[0];
-         for (int i=0; i<ds.length; i++) {
-            if (ds[i] < min)
-               min = ds[i];
-         }
+         return Reductions.min(ds, 0, ds.length);
+      }
+   };
 
-         return min;
+   public static final Fn.Plong.AndN MINplong = new Fn.Plong.Base() {
+
+      @Override public long fn1(long n1) { return n1; }
+
+      @Override
+      public long fn2(long n1, long n2) { return Math.min(n1, n2); }
+
+      @Override
+      public long fnN(long...ins) {
+         return Reductions.min(ins, 0, ins.length);
+      }
+   };
+
+   public static final Fn.Pfloat.AndN MINpfloat = new Fn.Pfloat.Base() {
+
+      @Override public float fn1(float n1) { return n1; }
+
+      @Override
+      public float fn2(float n1, float n2) { return (n2 < n1) ? n2 : n1; }
+
+      @Override
+      public float fnN(float...ins) {
+         return Reductions.min(ins, 0, ins.length);
       }
    };
    
@@ -89,26 +105,40 @@ public class Fns {
    public static final Fn.Pdouble.AndN MAXpdouble = new Fn.Pdouble.Base() {
 
       @Override public double fnN(double[] ds) {
-         double max = ds[0];
-         for (int i=0; i<ds.length; i++) {
-            if (ds[i] > max)
-               max = ds[i];
-         }
-
-         return max;
+         return Reductions.max(ds, 0, ds.length);
       }
    };
 
    public static final Fn.Pint.AndN MAXpint = new Fn.Pint.Base() {
 
       @Override public int fnN(int[] ds) {
-         int max = ds[0];
-         for (int i=0; i<ds.length; i++) {
-            if (ds[i] > max)
-               max = ds[i];
-         }
+         return Reductions.max(ds, 0, ds.length);
+      }
+   };
 
-         return max;
+   public static final Fn.Plong.AndN MAXplong = new Fn.Plong.Base() {
+
+      @Override public long fn1(long n1) { return n1; }
+
+      @Override
+      public long fn2(long n1, long n2) { return Math.max(n1, n2); }
+
+      @Override
+      public long fnN(long...ins) {
+         return Reductions.max(ins, 0, ins.length);
+      }
+   };
+
+   public static final Fn.Pfloat.AndN MAXpfloat = new Fn.Pfloat.Base() {
+
+      @Override public float fn1(float n1) { return n1; }
+
+      @Override
+      public float fn2(float n1, float n2) { return (n2 > n1) ? n2 : n1; }
+
+      @Override
+      public float fnN(float...ins) {
+         return Reductions.max(ins, 0, ins.length);
       }
    };
    
@@ -125,7 +155,7 @@ public class Fns {
       @Override
       public Number fnN(Number...numbers) {
          double sum = numbers[0].doubleValue();
-         for (int i=0; i<numbers.length; i++) {
+         for (int i=1; i<numbers.length; i++) {
             sum += numbers[i].doubleValue();
          }
 
@@ -143,10 +173,7 @@ public class Fns {
 
       @Override
       public double fnN(double...doubles) {
-         double sum = 0.0;
-         for (double d : doubles)
-            sum += d;
-         return sum;
+         return Reductions.sum(doubles, 0, doubles.length);
       }
    };
 
@@ -159,10 +186,69 @@ public class Fns {
 
       @Override
       public int fnN(int...ints) {
-         int sum = 0;
-         for (int i : ints)
-            sum += i;
-         return sum;
+         return Reductions.sum(ints, 0, ints.length);
+      }
+   };
+
+   public static final Fn.Plong.AndN SUMplong = new Fn.Plong.Base() {
+
+      @Override public long fn1(long n1) { return n1; }
+
+      @Override
+      public long fn2(long n1, long n2) { return n1 + n2; }
+
+      @Override
+      public long fnN(long...ins) {
+         return Reductions.sum(ins, 0, ins.length);
+      }
+   };
+
+   public static final Fn.Pfloat.AndN SUMpfloat = new Fn.Pfloat.Base() {
+
+      @Override public float fn1(float n1) { return n1; }
+
+      @Override
+      public float fn2(float n1, float n2) { return n1 + n2; }
+
+      @Override
+      public float fnN(float...ins) {
+         return Reductions.sum(ins, 0, ins.length);
+      }
+   };
+
+   /**
+    * Sums doubles with Neumaier compensated summation, accurate to about the last bit however many there are.
+    * See CompensatedSum, which can also be used as a running sum, and combined across threads via FP.parAccumulatep().
+    * fn2() is a plain add, but FP.parReducep() sums the slices with CompensatedSums, so it stays compensated and reproducible.
+    */
+   public static final Fn.Pdouble.AndN SUM_COMPENSATEDpdouble = new Fn.Pdouble.Base() {
+
+      @Override public double fn1(double n1) { return n1; }
+
+      @Override
+      public double fn2(double n1, double n2) { return n1 + n2; }
+
+      @Override
+      public double fnN(double...doubles) {
+         return new CompensatedSum().add(doubles, 0, doubles.length).getSum();
+      }
+   };
+
+   /**
+    * Sums doubles pairwise, so the error grows with log(n) instead of n, at nearly the speed of SUMpdouble.
+    * fn2() is a plain add.  FP.parReducep() halves down to fixed length slices, so the slices are also added pairwise,
+    * and the result doesn't depend on the number of cores.
+    */
+   public static final Fn.Pdouble.AndN SUM_PAIRWISEpdouble = new Fn.Pdouble.Base() {
+
+      @Override public double fn1(double n1) { return n1; }
+
+      @Override
+      public double fn2(double n1, double n2) { return n1 + n2; }
+
+      @Override
+      public double fnN(double...doubles) {
+         return Reductions.pairwiseSum(doubles, 0, doubles.length);
       }
    };
 
@@ -179,7 +265,7 @@ public class Fns {
       @Override
       public Number fnN(Number...numbers) {
          double prod = numbers[0].doubleValue();
-         for (int i=0; i<numbers.length; i++) {
+         for (int i=1; i<numbers.length; i++) {
             prod *= numbers[i].doubleValue();
          }
 
@@ -197,10 +283,7 @@ public class Fns {
 
       @Override
       public double fnN(double...doubles) {
-         double prod = 1.0;
-         for (double d : doubles)
-            prod *= d;
-         return prod;
+         return Reductions.product(doubles, 0, doubles.length);
       }
    };
 
@@ -213,10 +296,33 @@ public class Fns {
 
       @Override
       public int fnN(int...ints) {
-         int prod = 1;
-         for (int i : ints)
-            prod *= i;
-         return prod;
+         return Reductions.product(ints, 0, ints.length);
+      }
+   };
+
+   public static final Fn.Plong.AndN PRODUCTplong = new Fn.Plong.Base() {
+
+      @Override public long fn1(long n1) { return n1; }
+
+      @Override
+      public long fn2(long n1, long n2) { return n1 * n2; }
+
+      @Override
+      public long fnN(long...ins) {
+         return Reductions.product(ins, 0, ins.length);
+      }
+   };
+
+   public static final Fn.Pfloat.AndN PRODUCTpfloat = new Fn.Pfloat.Base() {
+
+      @Override public float fn1(float n1) { return n1; }
+
+      @Override
+      public float fn2(float n1, float n2) { return n1 * n2; }
+
+      @Override
+      public float fnN(float...ins) {
+         return Reductions.product(ins, 0, ins.length);
       }
    };
 
@@ -0,0 +1,485 @@
+package com.flyingspaniel.nava.fp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fork/join tasks behind FP's parXXX() methods.  Each splits an index range in half until it is
+ * no longer than the sequential threshold, then runs the plain sequential loop on that slice.
+ * <p>
+ * Sources are split by index, so Lists that are RandomAccess (and arrays) are used as is,
+ * anything else is first copied into an ArrayList.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+final class ParallelFP {
+
+   /**
+    * The default threshold is never below this, since forking a task costs about as much as a few hundred cheap Fn calls
+    */
+   static final int MIN_THRESHOLD = 512;
+
+   private ParallelFP() {}
+
+
+   /**
+    * Default sequential threshold: about four slices per thread, so a slow slice doesn't hold everybody up
+    */
+   static int threshold(int size) {
+      int parallelism = ForkJoinPool.getCommonPoolParallelism();
+      return Math.max(MIN_THRESHOLD, size / (4 * parallelism));
+   }
+
+   @SuppressWarnings("unchecked")
+   static <T> List<T> splittable(Iterable<T> ins) {
+      if ((ins instanceof List) && (ins instanceof RandomAccess))
+         return (List<T>) ins;
+
+      ArrayList<T> copy = new ArrayList<T>();
+      for (T in : ins)
+         copy.add(in);
+      return copy;
+   }
+
+   /**
+    * Run in the current pool if already in one (e.g. a parMap inside an Fn), else in the common pool
+    */
+   static <T> T invoke(ForkJoinTask<T> task) {
+      return ForkJoinTask.inForkJoinPool() ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+   }
+
+   static void checkThreshold(int threshold) {
+      if (threshold < 1)
+         throw new IllegalArgumentException("threshold=" + threshold);
+   }
+
+
+   static <IN,OUT> ArrayList<OUT> map(Iterable<IN> ins, Fn<IN,OUT> fn, int threshold) {
+      checkThreshold(threshold);
+      List<IN> list = splittable(ins);
+      ArrayList<OUT> mapped = new ArrayList<OUT>(Collections.<OUT>nCopies(list.size(), null));
+      invoke(new MapTask<IN,OUT>(list, fn, mapped, 0, list.size(), threshold));
+      return mapped;
+   }
+
+   static <IN> ArrayList<IN> filter(Iterable<IN> ins, Fn<IN,?> filterFn, int threshold) {
+      checkThreshold(threshold);
+      List<IN> list = splittable(ins);
+      int slices = (int) (((long) list.size() + threshold - 1) / threshold);   // long, in case threshold is huge
+      List<IN>[] passed = newListArray(slices);
+      invoke(new FilterTask<IN>(list, filterFn, passed, 0, slices, threshold));
+
+      int total = 0;
+      for (List<IN> slice : passed)
+         total += slice.size();
+      ArrayList<IN> result = new ArrayList<IN>(total);
+      for (List<IN> slice : passed)
+         result.addAll(slice);
+      return result;
+   }
+
+   static <IN> IN reduce(Iterable<IN> ins, Fn<IN,IN> fn, int threshold) {
+      checkThreshold(threshold);
+      List<IN> list = splittable(ins);
+      if (list.isEmpty())
+         throw new NoSuchElementException("cannot reduce an empty Iterable");
+      return invoke(new ReduceTask<IN>(list, fn, 0, list.size(), threshold));
+   }
+
+   static double reducep(double[] ins, Fn.Pdouble fn, int threshold) {
+      checkThreshold(threshold);
+      if (ins.length == 0)
+         throw new ArrayIndexOutOfBoundsException(0);   // same as reducep()
+      if (fn == Fns.SUM_COMPENSATEDpdouble)   // keep the compensation across slices, fn2() would drop it
+         return accumulate(ins, new CompensatedSum(), threshold).getSum();
+      return invoke(new ReducePdouble(ins, fn, 0, ins.length, threshold));
+   }
+
+   static int reducep(int[] ins, Fn.Pint fn, int threshold) {
+      checkThreshold(threshold);
+      if (ins.length == 0)
+         throw new ArrayIndexOutOfBoundsException(0);
+      return invoke(new ReducePint(ins, fn, 0, ins.length, threshold));
+   }
+
+
+   /**
+    * @param lookFor  true to find an element that filterFn accepts, false to find one it rejects
+    * @param lowest   if true, find the lowest such index, else any
+    * @return index found, or -1
+    */
+   static <IN> int search(Iterable<IN> ins, Fn<IN,?> filterFn, boolean lookFor, boolean lowest, int threshold) {
+      checkThreshold(threshold);
+      List<IN> list = splittable(ins);
+      AtomicInteger found = new AtomicInteger(Integer.MAX_VALUE);
+      invoke(new SearchTask<IN>(list, filterFn, lookFor, lowest, found, 0, list.size(), threshold));
+      int index = found.get();
+      return (index == Integer.MAX_VALUE) ? -1 : index;
+   }
+
+   static <A extends Accumulator<A>> A accumulate(double[] ins, A acc, int threshold) {
+      checkThreshold(threshold);
+      return acc.combine(invoke(new AccumulateTask<A>(ins, acc, 0, ins.length, threshold)));
+   }
+
+   static double reducep(DoubleBuffer ins, Fn.Pdouble fn, int threshold) {
+      checkThreshold(threshold);
+      if (!ins.hasRemaining())
+         throw new BufferUnderflowException();
+      return invoke(new ReduceDoubleBuffer(ins, fn, ins.position(), ins.limit(), threshold));
+   }
+
+   static int reducep(IntBuffer ins, Fn.Pint fn, int threshold) {
+      checkThreshold(threshold);
+      if (!ins.hasRemaining())
+         throw new BufferUnderflowException();
+      return invoke(new ReduceIntBuffer(ins, fn, ins.position(), ins.limit(), threshold));
+   }
+
+
+   @SuppressWarnings("unchecked")
+   private static <T> List<T>[] newListArray(int n) {
+      return (List<T>[]) new List[n];
+   }
+
+
+   /**
+    * Writes fn(ins[i]) to mapped[i].  mapped is pre-sized, and set() on distinct indices is not a structural change
+    */
+   static final class MapTask<IN,OUT> extends RecursiveAction {
+      final List<IN> ins;
+      final Fn<IN,OUT> fn;
+      final List<OUT> mapped;
+      final int from, to, threshold;
+
+      MapTask(List<IN> ins, Fn<IN,OUT> fn, List<OUT> mapped, int from, int to, int threshold) {
+         this.ins = ins;
+         this.fn = fn;
+         this.mapped = mapped;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected void compute() {
+         if (to - from <= threshold) {
+            for (int i=from; i<to; i++)
+               mapped.set(i, fn.fn1(ins.get(i)));
+         }
+         else {
+            int mid = (from + to) >>> 1;
+            invokeAll(new MapTask<IN,OUT>(ins, fn, mapped, from, mid, threshold),
+                      new MapTask<IN,OUT>(ins, fn, mapped, mid, to, threshold));
+         }
+      }
+   }
+
+
+   /**
+    * Works on whole slices of threshold elements, each filtered into its own List, which the caller concatenates in order
+    */
+   static final class FilterTask<IN> extends RecursiveAction {
+      final List<IN> ins;
+      final Fn<IN,?> filterFn;
+      final List<IN>[] passed;
+      final int fromSlice, toSlice, threshold;
+
+      FilterTask(List<IN> ins, Fn<IN,?> filterFn, List<IN>[] passed, int fromSlice, int toSlice, int threshold) {
+         this.ins = ins;
+         this.filterFn = filterFn;
+         this.passed = passed;
+         this.fromSlice = fromSlice;
+         this.toSlice = toSlice;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected void compute() {
+         if (toSlice - fromSlice <= 1) {
+            for (int s=fromSlice; s<toSlice; s++) {
+               int end = (int) Math.min((long) (s + 1) * threshold, ins.size());
+               passed[s] = FP.filter(ins.subList(s * threshold, end), filterFn);
+            }
+         }
+         else {
+            int mid = (fromSlice + toSlice) >>> 1;
+            invokeAll(new FilterTask<IN>(ins, filterFn, passed, fromSlice, mid, threshold),
+                      new FilterTask<IN>(ins, filterFn, passed, mid, toSlice, threshold));
+         }
+      }
+   }
+
+
+   /**
+    * Left slice reduced before the right, so fn need only be associative, not commutative
+    */
+   static final class ReduceTask<IN> extends RecursiveTask<IN> {
+      final List<IN> ins;
+      final Fn<IN,IN> fn;
+      final int from, to, threshold;
+
+      ReduceTask(List<IN> ins, Fn<IN,IN> fn, int from, int to, int threshold) {
+         this.ins = ins;
+         this.fn = fn;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected IN compute() {
+         if (to - from <= threshold) {
+            IN v = ins.get(from);
+            for (int i=from+1; i<to; i++)
+               v = fn.fn2(v, ins.get(i));
+            return v;
+         }
+
+         int mid = (from + to) >>> 1;
+         ReduceTask<IN> right = new ReduceTask<IN>(ins, fn, mid, to, threshold);
+         right.fork();
+         IN left = new ReduceTask<IN>(ins, fn, from, mid, threshold).compute();
+         return fn.fn2(left, right.join());
+      }
+   }
+
+
+   static final class ReducePdouble extends RecursiveTask<Double> {
+      final double[] ins;
+      final Fn.Pdouble fn;
+      final int from, to, threshold;
+
+      ReducePdouble(double[] ins, Fn.Pdouble fn, int from, int to, int threshold) {
+         this.ins = ins;
+         this.fn = fn;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected Double compute() {
+         return Double.valueOf(reduce());
+      }
+
+      double reduce() {
+         if (to - from <= threshold)
+            return Reductions.reduce(ins, from, to, fn);
+
+         int mid = (from + to) >>> 1;
+         ReducePdouble right = new ReducePdouble(ins, fn, mid, to, threshold);
+         right.fork();
+         double left = new ReducePdouble(ins, fn, from, mid, threshold).reduce();
+         return fn.fn2(left, right.join().doubleValue());
+      }
+   }
+
+
+   static final class ReducePint extends RecursiveTask<Integer> {
+      final int[] ins;
+      final Fn.Pint fn;
+      final int from, to, threshold;
+
+      ReducePint(int[] ins, Fn.Pint fn, int from, int to, int threshold) {
+         this.ins = ins;
+         this.fn = fn;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected Integer compute() {
+         return Integer.valueOf(reduce());
+      }
+
+      int reduce() {
+         if (to - from <= threshold)
+            return Reductions.reduce(ins, from, to, fn);
+
+         int mid = (from + to) >>> 1;
+         ReducePint right = new ReducePint(ins, fn, mid, to, threshold);
+         right.fork();
+         int left = new ReducePint(ins, fn, from, mid, threshold).reduce();
+         return fn.fn2(left, right.join().intValue());
+      }
+   }
+
+
+   /**
+    * Each slice is reduced through its own duplicate of the buffer, so none changes another's position
+    */
+   static final class ReduceDoubleBuffer extends RecursiveTask<Double> {
+      final DoubleBuffer ins;
+      final Fn.Pdouble fn;
+      final int from, to, threshold;
+
+      ReduceDoubleBuffer(DoubleBuffer ins, Fn.Pdouble fn, int from, int to, int threshold) {
+         this.ins = ins;
+         this.fn = fn;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected Double compute() {
+         return Double.valueOf(reduce());
+      }
+
+      double reduce() {
+         if (to - from <= threshold) {
+            DoubleBuffer slice = ins.duplicate();
+            slice.limit(to);
+            slice.position(from);
+            return BufferReductions.reducep(slice, fn);
+         }
+
+         int mid = (from + to) >>> 1;
+         ReduceDoubleBuffer right = new ReduceDoubleBuffer(ins, fn, mid, to, threshold);
+         right.fork();
+         double left = new ReduceDoubleBuffer(ins, fn, from, mid, threshold).reduce();
+         return fn.fn2(left, right.join().doubleValue());
+      }
+   }
+
+
+   static final class ReduceIntBuffer extends RecursiveTask<Integer> {
+      final IntBuffer ins;
+      final Fn.Pint fn;
+      final int from, to, threshold;
+
+      ReduceIntBuffer(IntBuffer ins, Fn.Pint fn, int from, int to, int threshold) {
+         this.ins = ins;
+         this.fn = fn;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected Integer compute() {
+         return Integer.valueOf(reduce());
+      }
+
+      int reduce() {
+         if (to - from <= threshold) {
+            IntBuffer slice = ins.duplicate();
+            slice.limit(to);
+            slice.position(from);
+            return BufferReductions.reducep(slice, fn);
+         }
+
+         int mid = (from + to) >>> 1;
+         ReduceIntBuffer right = new ReduceIntBuffer(ins, fn, mid, to, threshold);
+         right.fork();
+         int left = new ReduceIntBuffer(ins, fn, from, mid, threshold).reduce();
+         return fn.fn2(left, right.join().intValue());
+      }
+   }
+
+
+   /**
+    * Each slice adds to its own empty() Accumulator, combined left to right.
+    * The slices depend only on the length and threshold, so the result is the same every time.
+    */
+   static final class AccumulateTask<A extends Accumulator<A>> extends RecursiveTask<A> {
+      final double[] ins;
+      final A prototype;
+      final int from, to, threshold;
+
+      AccumulateTask(double[] ins, A prototype, int from, int to, int threshold) {
+         this.ins = ins;
+         this.prototype = prototype;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      @Override
+      protected A compute() {
+         if (to - from <= threshold)
+            return prototype.empty().add(ins, from, to);
+
+         int mid = (from + to) >>> 1;
+         AccumulateTask<A> right = new AccumulateTask<A>(ins, prototype, mid, to, threshold);
+         right.fork();
+         A left = new AccumulateTask<A>(ins, prototype, from, mid, threshold).compute();
+         return left.combine(right.join());
+      }
+   }
+
+
+   /**
+    * Searches its slice until it finds a match, or another slice has made the rest of the search pointless:
+    * for any match, once any slice has found one, for the lowest, once one has been found at a lower index.
+    * The left half is searched first, so a low match is found early, and stops the slices to its right.
+    */
+   static final class SearchTask<IN> extends RecursiveAction {
+      final List<IN> ins;
+      final Fn<IN,?> filterFn;
+      final boolean lookFor;
+      final boolean lowest;
+      final AtomicInteger found;   // lowest index found so far, MAX_VALUE if none
+      final int from, to, threshold;
+
+      SearchTask(List<IN> ins, Fn<IN,?> filterFn, boolean lookFor, boolean lowest, AtomicInteger found,
+                 int from, int to, int threshold) {
+         this.ins = ins;
+         this.filterFn = filterFn;
+         this.lookFor = lookFor;
+         this.lowest = lowest;
+         this.found = found;
+         this.from = from;
+         this.to = to;
+         this.threshold = threshold;
+      }
+
+      boolean pointless(int index) {
+         int f = found.get();
+         return lowest ? (index >= f) : (f != Integer.MAX_VALUE);
+      }
+
+      @Override
+      protected void compute() {
+         if (pointless(from))
+            return;
+
+         if (to - from <= threshold) {
+            for (int i=from; i<to; i++) {
+               if (pointless(i))
+                  return;
+               if (FP.isTrue(filterFn.fn1(ins.get(i))) == lookFor) {
+                  int f;
+                  while ((i < (f = found.get())) && !found.compareAndSet(f, i))
+                     ;
+                  return;
+               }
+            }
+            return;
+         }
+
+         int mid = (from + to) >>> 1;
+         SearchTask<IN> right = new SearchTask<IN>(ins, filterFn, lookFor, lowest, found, mid, to, threshold);
+         right.fork();
+         new SearchTask<IN>(ins, filterFn, lookFor, lowest, found, from, mid, threshold).compute();
+         if (pointless(mid) && right.tryUnfork())
+            return;   // never started, and not needed
+         right.join();
+      }
+   }
+}
@@ -0,0 +1,251 @@
+package com.flyingspaniel.nava.fp;
+
+/**
+ * Approximate quantiles (median, p99...) in a single pass, in small, mergeable state, following DDSketch
+ * (Masson, Rim and Lee, VLDB 2019).  Values are counted in buckets whose bounds grow geometrically, so any quantile
+ * is returned to within the relative accuracy, e.g. 0.01 means 1%, whatever the distribution.
+ * <p>
+ * With 1% accuracy, the default 2048 buckets per sign cover values over 17 orders of magnitude.
+ * Should they be exceeded, the buckets closest to zero are collapsed together, losing accuracy only for those.
+ * Values smaller in magnitude than about 1e-307 count as zero.
+ * <p>
+ * Two sketches with the same accuracy and maxBuckets combine into exactly the sketch of all their values,
+ * so sketches from parallel slices (see FP.parAccumulatep()) can be merged.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public final class QuantileSketch implements Accumulator<QuantileSketch> {
+
+   public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+   private final double relativeAccuracy;
+   private final int maxBuckets;
+   private final double logGamma;
+   private final double multiplier;      // 1 / logGamma
+   private final double minIndexable;
+
+   private final Store positives;
+   private final Store negatives;       // by magnitude
+   private long zeroCount = 0L;
+   private long count = 0L;
+   private double min = Double.POSITIVE_INFINITY;
+   private double max = Double.NEGATIVE_INFINITY;
+
+
+   /**
+    * @param relativeAccuracy  e.g. 0.01 for 1%, between 0 and 1
+    */
+   public QuantileSketch(double relativeAccuracy) {
+      this(relativeAccuracy, DEFAULT_MAX_BUCKETS);
+   }
+
+   /**
+    * @param relativeAccuracy  e.g. 0.01 for 1%, between 0 and 1
+    * @param maxBuckets        for each of positive and negative values
+    */
+   public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+      if (!(relativeAccuracy > 0.0) || !(relativeAccuracy < 1.0))
+         throw new IllegalArgumentException("relativeAccuracy=" + relativeAccuracy);
+      if (maxBuckets < 1)
+         throw new IllegalArgumentException("maxBuckets=" + maxBuckets);
+
+      this.relativeAccuracy = relativeAccuracy;
+      this.maxBuckets = maxBuckets;
+      double gamma = (1.0 + relativeAccuracy) / (1.0 - relativeAccuracy);
+      logGamma = Math.log(gamma);
+      multiplier = 1.0 / logGamma;
+      minIndexable = Math.max(Double.MIN_NORMAL * gamma, Math.exp((Integer.MIN_VALUE + 1) * logGamma));
+      positives = new Store(maxBuckets);
+      negatives = new Store(maxBuckets);
+   }
+
+
+   @Override
+   public QuantileSketch add(double d) {
+      if (d >= minIndexable)
+         positives.add(index(d), 1L);
+      else if (d <= -minIndexable)
+         negatives.add(index(-d), 1L);
+      else if (d == d)
+         zeroCount++;
+      else
+         return this;   // NaN, ignored
+
+      count++;
+      if (d < min)
+         min = d;
+      if (d > max)
+         max = d;
+      return this;
+   }
+
+   @Override
+   public QuantileSketch add(double[] ds, int from, int to) {
+      for (int i=from; i<to; i++)
+         add(ds[i]);
+      return this;
+   }
+
+   /**
+    * @throws IllegalArgumentException  if other has a different accuracy or maxBuckets
+    */
+   @Override
+   public QuantileSketch combine(QuantileSketch other) {
+      if ((other.relativeAccuracy != relativeAccuracy) || (other.maxBuckets != maxBuckets))
+         throw new IllegalArgumentException("cannot combine sketches of different accuracy");
+      if (other == this)
+         other = empty().combine(this);
+
+      positives.addAll(other.positives);
+      negatives.addAll(other.negatives);
+      zeroCount += other.zeroCount;
+      count += other.count;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+      return this;
+   }
+
+   @Override
+   public QuantileSketch empty() {
+      return new QuantileSketch(relativeAccuracy, maxBuckets);
+   }
+
+
+   /**
+    * @param q  between 0.0 and 1.0, e.g. 0.5 for the median, 0.99 for p99
+    * @return   the value of that quantile, to within the relative accuracy, or NaN if empty
+    */
+   public double getQuantile(double q) {
+      if (!(q >= 0.0) || !(q <= 1.0))
+         throw new IllegalArgumentException("q=" + q);
+      if (count == 0L)
+         return Double.NaN;
+
+      long rank = (long) (q * (count - 1));
+      if (rank == 0L)
+         return min;   // exact at the ends
+      if (rank == count - 1L)
+         return max;
+
+      long seen = 0L;
+      double v = max;
+      found: {
+         for (int i=negatives.maxIndex; i>=negatives.minIndex; i--) {   // most negative first
+            seen += negatives.get(i);
+            if (seen > rank) {
+               v = -value(i);
+               break found;
+            }
+         }
+         seen += zeroCount;
+         if (seen > rank) {
+            v = 0.0;
+            break found;
+         }
+         for (int i=positives.minIndex; i<=positives.maxIndex; i++) {
+            seen += positives.get(i);
+            if (seen > rank) {
+               v = value(i);
+               break found;
+            }
+         }
+      }
+
+      return Math.max(min, Math.min(max, v));
+   }
+
+   public double getRelativeAccuracy() {
+      return relativeAccuracy;
+   }
+
+   /**
+    * @return how many (non NaN) values were added
+    */
+   public long getCount() {
+      return count;
+   }
+
+   @Override
+   public String toString() {
+      return "count=" + count + " p50=" + getQuantile(0.5) + " p99=" + getQuantile(0.99);
+   }
+
+
+   private int index(double magnitude) {
+      return (int) Math.ceil(Math.log(magnitude) * multiplier);
+   }
+
+   /**
+    * Bucket index holds (gamma^(index-1), gamma^index]
+    * @return the value within relativeAccuracy of anything in it
+    */
+   private double value(int index) {
+      return Math.exp(index * logGamma) * (1.0 - relativeAccuracy);   // 2 * gamma^index / (gamma + 1)
+   }
+
+
+   /**
+    * Counts for a contiguous range of bucket indices, grown as needed
+    */
+   static final class Store {
+      static final int INITIAL = 64;
+
+      final int maxBuckets;
+      long[] counts = null;
+      int offset;            // index of counts[0]
+      int minIndex = 0;      // the range in use, empty if counts == null
+      int maxIndex = -1;
+
+      Store(int maxBuckets) {
+         this.maxBuckets = maxBuckets;
+      }
+
+      long get(int index) {
+         return counts[index - offset];
+      }
+
+      void add(int index, long n) {
+         if (counts == null) {
+            counts = new long[INITIAL];
+            offset = index - INITIAL / 2;
+            minIndex = maxIndex = index;
+         }
+
+         int lo = Math.min(minIndex, index);
+         int hi = Math.max(maxIndex, index);
+         if ((long) hi - lo >= maxBuckets)
+            lo = hi - maxBuckets + 1;   // collapse the lowest, those closest to zero
+         if ((lo < offset) || (hi >= offset + counts.length) || (lo > minIndex))
+            resize(lo, hi);
+
+         counts[Math.max(index, lo) - offset] += n;
+         minIndex = lo;
+         maxIndex = hi;
+      }
+
+      void addAll(Store other) {
+         for (int i=other.minIndex; i<=other.maxIndex; i++) {
+            long n = other.get(i);
+            if (n != 0L)
+               add(i, n);
+         }
+      }
+
+      /**
+       * New counts covering [lo, hi] with room to spare.  Anything below lo goes in lo.
+       */
+      private void resize(int lo, int hi) {
+         int span = hi - lo + 1;
+         int length = Math.max(INITIAL, 2 * span);
+         int newOffset = lo - (length - span) / 2;
+         long[] newCounts = new long[length];
+         for (int i=minIndex; i<=maxIndex; i++)
+            newCounts[Math.max(i, lo) - newOffset] += counts[i - offset];
+
+         counts = newCounts;
+         offset = newOffset;
+      }
+   }
+}
@@ -0,0 +1,277 @@
+package com.flyingspaniel.nava.fp;
+
+import java.util.Arrays;
+
+/**
+ * The array loops behind the primitive Fns' fnN(), written so that HotSpot's C2 compiler runs them fast.
+ * <ul>
+ *    <li>int and long loops use a single accumulator and Math.min/max, the shape C2 recognizes as a reduction and vectorizes</li>
+ *    <li>double and float loops use four independent accumulators.  C2 won't reorder floating point adds or multiplies itself,
+ *        so a single accumulator waits out the full latency of each add.  Four chains keep the pipeline busy.</li>
+ * </ul>
+ * int and long results are identical to a plain left to right loop (+ and * wrap, so they are associative).
+ * <p>
+ * For doubles, sum and product add in a different order than a plain loop, so may differ in the last bits.
+ * Either way the error of a sum is bounded by about (n-1) * 2<sup>-53</sup> * sum(|d|), and the two results differ by
+ * at most twice that.  For a product, the relative error is bounded by about (n-1) * 2<sup>-53</sup>.
+ * For floats, read 2<sup>-24</sup> for 2<sup>-53</sup>.
+ * min and max return the same value as a plain loop, except that of equal values (0.0 and -0.0) either may be returned.
+ * As before, NaNs are skipped, unless the first element is NaN.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+final class Reductions {
+
+   static final int PAIRWISE_BLOCK = 128;
+
+   private Reductions() {}
+
+
+   /**
+    * Reduce ins[from, to) with fn, using the loops below for the Fns that have them, else fnN() if fn has it
+    */
+   static double reduce(double[] ins, int from, int to, Fn.Pdouble fn) {
+      if (fn == Fns.SUMpdouble)
+         return sum(ins, from, to);
+      if (fn == Fns.MINpdouble)
+         return min(ins, from, to);
+      if (fn == Fns.MAXpdouble)
+         return max(ins, from, to);
+      if (fn == Fns.PRODUCTpdouble)
+         return product(ins, from, to);
+      if (fn == Fns.SUM_PAIRWISEpdouble)
+         return pairwiseSum(ins, from, to);
+      if (fn == Fns.SUM_COMPENSATEDpdouble)
+         return new CompensatedSum().add(ins, from, to).getSum();
+      if (fn instanceof Fn.Pdouble.N)
+         return ((Fn.Pdouble.N)fn).fnN(((from == 0) && (to == ins.length)) ? ins : Arrays.copyOfRange(ins, from, to));
+
+      double v = ins[from];
+      for (int i=from+1; i<to; i++)
+         v = fn.fn2(v, ins[i]);
+      return v;
+   }
+
+   static int reduce(int[] ins, int from, int to, Fn.Pint fn) {
+      if (fn == Fns.SUMpint)
+         return sum(ins, from, to);
+      if (fn == Fns.MINpint)
+         return min(ins, from, to);
+      if (fn == Fns.MAXpint)
+         return max(ins, from, to);
+      if (fn == Fns.PRODUCTpint)
+         return product(ins, from, to);
+      if (fn instanceof Fn.Pint.N)
+         return ((Fn.Pint.N)fn).fnN(((from == 0) && (to == ins.length)) ? ins : Arrays.copyOfRange(ins, from, to));
+
+      int v = ins[from];
+      for (int i=from+1; i<to; i++)
+         v = fn.fn2(v, ins[i]);
+      return v;
+   }
+
+
+   static double sum(double[] ds, int from, int to) {
+      double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+      int i = from;
+      for (int end = to - 3; i < end; i += 4) {
+         s0 += ds[i];
+         s1 += ds[i+1];
+         s2 += ds[i+2];
+         s3 += ds[i+3];
+      }
+      for (; i < to; i++)
+         s0 += ds[i];
+
+      return (s0 + s1) + (s2 + s3);
+   }
+
+   /**
+    * Blocks of up to PAIRWISE_BLOCK are summed as above, and the block sums added in a balanced tree.
+    * The error grows with log(n), not n, for little more than the cost of sum().
+    */
+   static double pairwiseSum(double[] ds, int from, int to) {
+      if (to - from <= PAIRWISE_BLOCK)
+         return sum(ds, from, to);
+
+      int mid = from + (((to - from) / 2 + PAIRWISE_BLOCK - 1) / PAIRWISE_BLOCK) * PAIRWISE_BLOCK;   // on a block boundary
+      return pairwiseSum(ds, from, mid) + pairwiseSum(ds, mid, to);
+   }
+
+   static double product(double[] ds, int from, int to) {
+      double p0 = 1.0, p1 = 1.0, p2 = 1.0, p3 = 1.0;
+      int i = from;
+      for (int end = to - 3; i < end; i += 4) {
+         p0 *= ds[i];
+         p1 *= ds[i+1];
+         p2 *= ds[i+2];
+         p3 *= ds[i+3];
+      }
+      for (; i < to; i++)
+         p0 *= ds[i];
+
+      return (p0 * p1) * (p2 * p3);
+   }
+
+   /**
+    * Uses < (not Math.min) so that NaNs are skipped, as before
+    */
+   static double min(double[] ds, int from, int to) {
+      double m0 = ds[from], m1 = m0, m2 = m0, m3 = m0;
+      int i = from + 1;
+      for (int end = to - 3; i < end; i += 4) {
+         if (ds[i] < m0)   m0 = ds[i];
+         if (ds[i+1] < m1) m1 = ds[i+1];
+         if (ds[i+2] < m2) m2 = ds[i+2];
+         if (ds[i+3] < m3) m3 = ds[i+3];
+      }
+      for (; i < to; i++)
+         if (ds[i] < m0) m0 = ds[i];
+
+      if (m1 < m0) m0 = m1;
+      if (m3 < m2) m2 = m3;
+      return (m2 < m0) ? m2 : m0;
+   }
+
+   static double max(double[] ds, int from, int to) {
+      double m0 = ds[from], m1 = m0, m2 = m0, m3 = m0;
+      int i = from + 1;
+      for (int end = to - 3; i < end; i += 4) {
+         if (ds[i] > m0)   m0 = ds[i];
+         if (ds[i+1] > m1) m1 = ds[i+1];
+         if (ds[i+2] > m2) m2 = ds[i+2];
+         if (ds[i+3] > m3) m3 = ds[i+3];
+      }
+      for (; i < to; i++)
+         if (ds[i] > m0) m0 = ds[i];
+
+      if (m1 > m0) m0 = m1;
+      if (m3 > m2) m2 = m3;
+      return (m2 > m0) ? m2 : m0;
+   }
+
+
+   static int sum(int[] ints, int from, int to) {
+      int sum = 0;
+      for (int i=from; i<to; i++)
+         sum += ints[i];
+      return sum;
+   }
+
+   static int product(int[] ints, int from, int to) {
+      int prod = 1;
+      for (int i=from; i<to; i++)
+         prod *= ints[i];
+      return prod;
+   }
+
+   static int min(int[] ints, int from, int to) {
+      int min = ints[from];
+      for (int i=from+1; i<to; i++)
+         min = Math.min(min, ints[i]);
+      return min;
+   }
+
+   static int max(int[] ints, int from, int to) {
+      int max = ints[from];
+      for (int i=from+1; i<to; i++)
+         max = Math.max(max, ints[i]);
+      return max;
+   }
+
+
+   static long sum(long[] longs, int from, int to) {
+      long sum = 0L;
+      for (int i=from; i<to; i++)
+         sum += longs[i];
+      return sum;
+   }
+
+   static long product(long[] longs, int from, int to) {
+      long prod = 1L;
+      for (int i=from; i<to; i++)
+         prod *= longs[i];
+      return prod;
+   }
+
+   static long min(long[] longs, int from, int to) {
+      long min = longs[from];
+      for (int i=from+1; i<to; i++)
+         min = Math.min(min, longs[i]);
+      return min;
+   }
+
+   static long max(long[] longs, int from, int to) {
+      long max = longs[from];
+      for (int i=from+1; i<to; i++)
+         max = Math.max(max, longs[i]);
+      return max;
+   }
+
+
+   static float sum(float[] fs, int from, int to) {
+      float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+      int i = from;
+      for (int end = to - 3; i < end; i += 4) {
+         s0 += fs[i];
+         s1 += fs[i+1];
+         s2 += fs[i+2];
+         s3 += fs[i+3];
+      }
+      for (; i < to; i++)
+         s0 += fs[i];
+
+      return (s0 + s1) + (s2 + s3);
+   }
+
+   static float product(float[] fs, int from, int to) {
+      float p0 = 1.0f, p1 = 1.0f, p2 = 1.0f, p3 = 1.0f;
+      int i = from;
+      for (int end = to - 3; i < end; i += 4) {
+         p0 *= fs[i];
+         p1 *= fs[i+1];
+         p2 *= fs[i+2];
+         p3 *= fs[i+3];
+      }
+      for (; i < to; i++)
+         p0 *= fs[i];
+
+      return (p0 * p1) * (p2 * p3);
+   }
+
+   static float min(float[] fs, int from, int to) {
+      float m0 = fs[from], m1 = m0, m2 = m0, m3 = m0;
+      int i = from + 1;
+      for (int end = to - 3; i < end; i += 4) {
+         if (fs[i] < m0)   m0 = fs[i];
+         if (fs[i+1] < m1) m1 = fs[i+1];
+         if (fs[i+2] < m2) m2 = fs[i+2];
+         if (fs[i+3] < m3) m3 = fs[i+3];
+      }
+      for (; i < to; i++)
+         if (fs[i] < m0) m0 = fs[i];
+
+      if (m1 < m0) m0 = m1;
+      if (m3 < m2) m2 = m3;
+      return (m2 < m0) ? m2 : m0;
+   }
+
+   static float max(float[] fs, int from, int to) {
+      float m0 = fs[from], m1 = m0, m2 = m0, m3 = m0;
+      int i = from + 1;
+      for (int end = to - 3; i < end; i += 4) {
+         if (fs[i] > m0)   m0 = fs[i];
+         if (fs[i+1] > m1) m1 = fs[i+1];
+         if (fs[i+2] > m2) m2 = fs[i+2];
+         if (fs[i+3] > m3) m3 = fs[i+3];
+      }
+      for (; i < to; i++)
+         if (fs[i] > m0) m0 = fs[i];
+
+      if (m1 > m0) m0 = m1;
+      if (m3 > m2) m2 = m3;
+      return (m2 > m0) ? m2 : m0;
+   }
+}
@@ -0,0 +1,311 @@
+package com.flyingspaniel.nava.fp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazy sequence.  map(), filter(), take() etc. just record a step, and nothing happens until a terminal method
+ * such as toList(), fold() or exists() is called.  That then makes a single pass over the source, pushing each element
+ * through all of the steps in turn, so there are no intermediate Lists, e.g.
+ * <pre>
+ *    ArrayList&lt;Number&gt; big = Seq.of(numbers).map(times2).filter(gt100).take(10).toList();
+ * </pre>
+ * calls times2 and gt100 only until 10 have passed.  exists(), every(), first() and take() stop the pass early.
+ * <p>
+ * A Seq is immutable and may be run any number of times, each run iterating over its source again.
+ * As in FP, filter functions reject a value by returning null or Boolean.FALSE.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public abstract class Seq<T> {
+
+   /**
+    * Receives each element of a pass
+    */
+   interface Sink<T> {
+      /**
+       * @return false to end the pass
+       */
+      boolean accept(T t);
+   }
+
+
+   Seq() {}   // only the sources and steps below
+
+   /**
+    * Push every element (until one returns false) to sink
+    */
+   abstract void push(Sink<? super T> sink);
+
+
+   public static <T> Seq<T> of(final Iterable<T> ins) {
+      return new Seq<T>() {
+         @Override
+         void push(Sink<? super T> sink) {
+            for (T in : ins)
+               if (!sink.accept(in))
+                  return;
+         }
+      };
+   }
+
+   public static <T> Seq<T> of(final T...ins) {
+      return new Seq<T>() {
+         @Override
+         void push(Sink<? super T> sink) {
+            for (T in : ins)
+               if (!sink.accept(in))
+                  return;
+         }
+      };
+   }
+
+
+   // steps
+
+   public <OUT> Seq<OUT> map(final Fn<? super T, ? extends OUT> fn) {
+      final Seq<T> upstream = this;
+      return new Seq<OUT>() {
+         @Override
+         void push(final Sink<? super OUT> sink) {
+            upstream.push(new Sink<T>() {
+               @Override
+               public boolean accept(T t) {
+                  return sink.accept(fn.fn1(t));
+               }
+            });
+         }
+      };
+   }
+
+   /**
+    * @param filterFn  return null or Boolean.FALSE to drop an element
+    */
+   public Seq<T> filter(final Fn<? super T, ?> filterFn) {
+      final Seq<T> upstream = this;
+      return new Seq<T>() {
+         @Override
+         void push(final Sink<? super T> sink) {
+            upstream.push(new Sink<T>() {
+               @Override
+               public boolean accept(T t) {
+                  return FP.isFalse(filterFn.fn1(t)) || sink.accept(t);
+               }
+            });
+         }
+      };
+   }
+
+   /**
+    * Only the first n elements.  The pass ends once it has them.
+    */
+   public Seq<T> take(final long n) {
+      final Seq<T> upstream = this;
+      return new Seq<T>() {
+         @Override
+         void push(final Sink<? super T> sink) {
+            if (n <= 0L)
+               return;
+            upstream.push(new Sink<T>() {
+               long left = n;
+
+               @Override
+               public boolean accept(T t) {
+                  return sink.accept(t) && (--left > 0L);
+               }
+            });
+         }
+      };
+   }
+
+   /**
+    * Elements while takeFn accepts them.  The pass ends at the first one it rejects.
+    */
+   public Seq<T> takeWhile(final Fn<? super T, ?> takeFn) {
+      final Seq<T> upstream = this;
+      return new Seq<T>() {
+         @Override
+         void push(final Sink<? super T> sink) {
+            upstream.push(new Sink<T>() {
+               @Override
+               public boolean accept(T t) {
+                  return FP.isTrue(takeFn.fn1(t)) && sink.accept(t);
+               }
+            });
+         }
+      };
+   }
+
+   /**
+    * Skip the first n elements
+    */
+   public Seq<T> drop(final long n) {
+      final Seq<T> upstream = this;
+      return new Seq<T>() {
+         @Override
+         void push(final Sink<? super T> sink) {
+            upstream.push(new Sink<T>() {
+               long skip = n;
+
+               @Override
+               public boolean accept(T t) {
+                  if (skip > 0L) {
+                     skip--;
+                     return true;
+                  }
+                  return sink.accept(t);
+               }
+            });
+         }
+      };
+   }
+
+
+   // terminals
+
+   /**
+    * @return ArrayList, may be empty
+    */
+   public ArrayList<T> toList() {
+      final ArrayList<T> list = new ArrayList<T>();
+      push(new Sink<T>() {
+         @Override
+         public boolean accept(T t) {
+            list.add(t);
+            return true;
+         }
+      });
+      return list;
+   }
+
+   /**
+    * Same as FP.fold(seed, toList(), fn), without the List
+    */
+   public T fold(T seed, Fn<T,T> fn) {
+      Folder<T> folder = new Folder<T>(fn, seed, true);
+      push(folder);
+      return folder.acc;
+   }
+
+   /**
+    * Same as FP.reduce(toList(), fn), without the List
+    * @throws NoSuchElementException  if empty
+    */
+   public T reduce(Fn<T,T> fn) {
+      Folder<T> folder = new Folder<T>(fn, null, false);
+      push(folder);
+      if (!folder.started)
+         throw new NoSuchElementException("cannot reduce an empty Seq");
+      return folder.acc;
+   }
+
+   /**
+    * @return true if any element passes filterFn.  Stops at the first one that does.
+    */
+   public boolean exists(Fn<? super T, ?> filterFn) {
+      Finder<T> finder = new Finder<T>(filterFn, true);
+      push(finder);
+      return finder.found;
+   }
+
+   /**
+    * @return true if every element passes filterFn (or there are none).  Stops at the first one that doesn't.
+    */
+   public boolean every(Fn<? super T, ?> filterFn) {
+      Finder<T> finder = new Finder<T>(filterFn, false);
+      push(finder);
+      return !finder.found;
+   }
+
+   /**
+    * @return the first element, or null if empty
+    */
+   public T first() {
+      Finder<T> finder = new Finder<T>(null, true);
+      push(finder);
+      return finder.first;
+   }
+
+   public long count() {
+      final long[] count = { 0L };
+      push(new Sink<T>() {
+         @Override
+         public boolean accept(T t) {
+            count[0]++;
+            return true;
+         }
+      });
+      return count[0];
+   }
+
+   /**
+    * Call fn.fn1() with each element, for its side effects
+    */
+   public void forEach(final Fn<? super T, ?> fn) {
+      push(new Sink<T>() {
+         @Override
+         public boolean accept(T t) {
+            fn.fn1(t);
+            return true;
+         }
+      });
+   }
+
+
+   @Override
+   public String toString() {
+      return Arrays.toString(toList().toArray());
+   }
+
+
+   static final class Folder<T> implements Sink<T> {
+      final Fn<T,T> fn;
+      T acc;
+      boolean started;
+
+      Folder(Fn<T,T> fn, T seed, boolean started) {
+         this.fn = fn;
+         this.acc = seed;
+         this.started = started;
+      }
+
+      @Override
+      public boolean accept(T t) {
+         if (started)
+            acc = fn.fn2(acc, t);
+         else {
+            acc = t;
+            started = true;
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Looks for the first element for which filterFn is true (or false, for every()).  A null filterFn matches anything.
+    */
+   static final class Finder<T> implements Sink<T> {
+      final Fn<? super T, ?> filterFn;
+      final boolean lookFor;
+      boolean found = false;
+      T first = null;
+
+      Finder(Fn<? super T, ?> filterFn, boolean lookFor) {
+         this.filterFn = filterFn;
+         this.lookFor = lookFor;
+      }
+
+      @Override
+      public boolean accept(T t) {
+         if ((filterFn == null) || (FP.isTrue(filterFn.fn1(t)) == lookFor)) {
+            found = true;
+            first = t;
+            return false;
+         }
+         return true;
+      }
+   }
+}
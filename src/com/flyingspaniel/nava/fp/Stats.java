@@ -0,0 +1,200 @@
+package com.flyingspaniel.nava.fp;
+
+/**
+ * Count, sum, min, max, mean and variance of doubles in a single pass, optionally with quantiles.
+ * Instead of four calls to FP.reducep() with MINpdouble, MAXpdouble, SUMpdouble..., use
+ * <pre>
+ *    Stats stats = FP.accumulatep(doubles, new Stats());   // or FP.parAccumulatep()
+ *    stats.getMean() ... stats.getStandardDeviation()
+ * </pre>
+ * The sum is a CompensatedSum, and the variance uses Welford's update, so both stay accurate over many values.
+ * Partial Stats combine with Chan et al's formula, so those from parallel slices merge into the same result as one pass.
+ * <p>
+ * Call trackQuantiles() to also keep a QuantileSketch, for the median, p99 etc.
+ * <p>
+ * A NaN propagates to the sum, mean and variance (min and max skip it), as it would with a plain loop.
+ *
+ * @author Morgan Conrad
+ * @see <a href="http://opensource.org/licenses/MIT">This software is released under the MIT License</a>
+ * @since Copyright (c) 2013 by Morgan Conrad
+ */
+public final class Stats implements Accumulator<Stats> {
+
+   private long count = 0L;
+   private final CompensatedSum sum = new CompensatedSum();
+   private double min = Double.POSITIVE_INFINITY;
+   private double max = Double.NEGATIVE_INFINITY;
+   private double mean = 0.0;
+   private double m2 = 0.0;      // sum of squared differences from the mean
+   private QuantileSketch sketch = null;
+
+
+   /**
+    * Also keep a QuantileSketch, so getQuantile() works.  Call before adding anything.
+    * @param relativeAccuracy  e.g. 0.01 for 1%
+    * @return this
+    */
+   public Stats trackQuantiles(double relativeAccuracy) {
+      if (count > 0L)
+         throw new IllegalStateException("call trackQuantiles() before adding values");
+      sketch = new QuantileSketch(relativeAccuracy);
+      return this;
+   }
+
+
+   @Override
+   public Stats add(double d) {
+      count++;
+      sum.add(d);
+      if (d < min)
+         min = d;
+      if (d > max)
+         max = d;
+      double delta = d - mean;
+      mean += delta / count;
+      m2 += delta * (d - mean);
+      if (sketch != null)
+         sketch.add(d);
+      return this;
+   }
+
+   @Override
+   public Stats add(double[] ds, int from, int to) {
+      long n = count;
+      double lo = min, hi = max, mu = mean, squares = m2;   // locals, so the loop stays in registers
+      for (int i=from; i<to; i++) {
+         double d = ds[i];
+         n++;
+         if (d < lo)
+            lo = d;
+         if (d > hi)
+            hi = d;
+         double delta = d - mu;
+         mu += delta / n;
+         squares += delta * (d - mu);
+      }
+      count = n;
+      min = lo;
+      max = hi;
+      mean = mu;
+      m2 = squares;
+
+      sum.add(ds, from, to);
+      if (sketch != null)
+         sketch.add(ds, from, to);
+      return this;
+   }
+
+   /**
+    * @throws IllegalArgumentException  if only one of the two tracks quantiles, or they track them differently
+    */
+   @Override
+   public Stats combine(Stats other) {
+      if ((sketch == null) != (other.sketch == null))
+         throw new IllegalArgumentException("cannot combine Stats with and without quantiles");
+      if (other.count == 0L)
+         return this;
+
+      long n = count + other.count;
+      double delta = other.mean - mean;
+      double otherM2 = other.m2;   // in case other == this
+      long otherCount = other.count;
+      mean += delta * otherCount / n;
+      m2 += otherM2 + delta * delta * ((double) count * otherCount / n);
+      count = n;
+      sum.combine(other.sum);
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+      if (sketch != null)
+         sketch.combine(other.sketch);
+      return this;
+   }
+
+   /**
+    * @return empty Stats, tracking quantiles to the same accuracy if these do
+    */
+   @Override
+   public Stats empty() {
+      Stats empty = new Stats();
+      if (sketch != null)
+         empty.sketch = sketch.empty();
+      return empty;
+   }
+
+
+   public long getCount() {
+      return count;
+   }
+
+   /**
+    * @return compensated sum, 0.0 if empty
+    */
+   public double getSum() {
+      return sum.getSum();
+   }
+
+   /**
+    * @return POSITIVE_INFINITY if empty
+    */
+   public double getMin() {
+      return min;
+   }
+
+   /**
+    * @return NEGATIVE_INFINITY if empty
+    */
+   public double getMax() {
+      return max;
+   }
+
+   /**
+    * @return the compensated sum / count, more accurate than the running mean used for the variance.  NaN if empty
+    */
+   public double getMean() {
+      return (count > 0L) ? sum.getSum() / count : Double.NaN;
+   }
+
+   /**
+    * @return the sample variance, dividing by count-1.  NaN if count < 2
+    */
+   public double getVariance() {
+      return (count > 1L) ? m2 / (count - 1L) : Double.NaN;
+   }
+
+   /**
+    * @return the population variance, dividing by count.  NaN if empty
+    */
+   public double getPopulationVariance() {
+      return (count > 0L) ? m2 / count : Double.NaN;
+   }
+
+   /**
+    * @return the sample standard deviation.  NaN if count < 2
+    */
+   public double getStandardDeviation() {
+      return Math.sqrt(getVariance());
+   }
+
+   /**
+    * @param q  between 0.0 and 1.0, e.g. 0.5 for the median
+    * @return   approximate quantile, see QuantileSketch
+    * @throws IllegalStateException  unless trackQuantiles() was called
+    */
+   public double getQuantile(double q) {
+      if (sketch == null)
+         throw new IllegalStateException("call trackQuantiles() first");
+      return sketch.getQuantile(q);
+   }
+
+   /**
+    * @return the QuantileSketch, null unless trackQuantiles() was called
+    */
+   public QuantileSketch getSketch() {
+      return sketch;
+   }
+
+   @Override
+   public String toString() {
+      return "count=" + count + " min=" + min + " max=" + max + " mean=" + getMean() + " stdDev=" + getStandardDeviation();
+   }
+}
@@ -4,15 +4,25 @@
  * <p>
  *  Code for using and linking together functions, inspired by javascript/Scala/Groovy.
  *  Functions may have an Object version, using Objects as inputs/outputs (generified by IN, OUT)
- *  For efficiency, there are specific versions dealing with primitive doubles and ints
+ *  For efficiency, there are specific versions dealing with primitive doubles, ints, longs and floats
  *  <p>
  *  Typical usage:   
  *  <ol>
- *     <li>Implement Fn (or Fn.Pdouble or Fn.Pint), perhaps by extending one of the Base classes.</li>
+ *     <li>Implement Fn (or Fn.Pdouble, Fn.Pint, Fn.Plong or Fn.Pfloat), perhaps by extending one of the Base classes.</li>
  *     <li>Check out the Fns class (and FPTest) for examples</li>
  *     <li>Combine your Fn with one of the utility methods from FP.</li>
  *  </ol>
  *
+ *  For big Lists and arrays, FP's parMap(), parFilter(), parReduce() etc. split the work with fork/join.
+ *  Their Fns should be pure, and for the reductions, associative.
+ *  foldp() and reducep() also take DoubleBuffers and IntBuffers, or a FileChannel, which is memory mapped a region at a time,
+ *  so a multi-GB file of numbers need never be read onto the heap.
+ *  For accurate sums of many doubles use Fns.SUM_COMPENSATEDpdouble or SUM_PAIRWISEpdouble, or a CompensatedSum,
+ *  an Accumulator whose partial sums FP.parAccumulatep() combines across threads, reproducibly.
+ *  Stats gets count, sum, min, max, mean, variance and (with a QuantileSketch) quantiles in one pass, also in parallel.
+ *  To chain several steps without an intermediate List for each, use a lazy Seq, e.g. Seq.of(list).map(f).filter(g).toList()
+ *  FP.join() can append straight to a StringBuilder, or stream to any Appendable such as a Writer, instead of building a String.
+ *
  *  TODO - combine these somehow with Callbacks and CallbackExecutor for multi-threaded processing.
  * 
  *  Warning: Internally there is no real checking, so if you screw up you'll get a {@link java.lang.ClassCastException}.
@@ -76,13 +76,15 @@ public class HTTPMultiMap {
     */
    public Map<String, String> toSingleMap(boolean sorted, boolean concatMultiple) {
       Map<String, String> singleMap = sorted ? new TreeMap<String, String>() : new LinkedHashMap<String, String>();
+      StringBuilder joined = new StringBuilder();   // reused by all the multiple values
       for (Map.Entry<String, List<String>> entry : map.entrySet()) {
          List<String> values = entry.getValue();
          if (values.isEmpty())
             continue;
          if (values.size() > 1) {
             if (concatMultiple) {
-               singleMap.put(entry.getKey(), FP.join(values));
+               joined.setLength(0);
+               singleMap.put(entry.getKey(), FP.join(joined, ",", values).toString());
             }
             else
                throw new IllegalStateException("Cannot convert to a SingleMap cause there are some multiple values for " + entry);
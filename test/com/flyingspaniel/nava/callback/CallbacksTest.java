@@ -1,13 +1,30 @@
 package com.flyingspaniel.nava.callback;
 
+import com.flyingspaniel.nava.fp.Fn;
 import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Morgan Conrad
@@ -118,6 +135,833 @@ public class CallbacksTest extends TestCase {
       } catch (IllegalStateException expected) {}
    }
 
+   public void testPipeline() throws Exception {
+      Upper UPPER = new Upper();
+      Length LENGTH = new Length();
+      Pipeline p1 = Pipeline.of(UPPER, LENGTH);
+      Pipeline p2 = Pipeline.of(UPPER);   // same Callback in two Pipelines
+      assertNull(UPPER.getNextCallback());
+
+      assertEquals(2, p1.size());
+      assertEquals(5, p1.run("hello"));
+      assertEquals("HELLO", p2.run("hello"));
+
+      Callbacks.chainUp(UPPER, LENGTH);
+      Pipeline compiled = Pipeline.compile(UPPER);
+      Callbacks.chainUp(UPPER);           // later changes to the chain don't matter
+      assertEquals(2, compiled.size());
+      assertEquals(3, compiled.run("abc"));
+      assertEquals(0, Pipeline.compile(null).size());
+
+      Pipeline fails = Pipeline.of(new Throws(), LENGTH);
+      try {
+         fails.run("this is a string");
+         fail();
+      }
+      catch (Exception expected) {
+         assertEquals("THROWS", expected.getMessage());
+      }
+   }
+
+   public void testPipelineConcurrent() throws Exception {
+      Pipeline pipeline = Pipeline.of(new Upper(), new Length());
+      ExecutorService es = Executors.newFixedThreadPool(4);
+      Future[] futures = new Future[100];
+      for (int i=0; i<futures.length; i++)
+         futures[i] = es.submit(pipeline.callable("x" + i));
+      for (int i=0; i<futures.length; i++)
+         assertEquals(("x" + i).length(), futures[i].get());
+      es.shutdown();
+
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+      cex.submitPipeline(pipeline, "four");
+      cex.shutdown(500L);
+      assertEquals(4, cex.lastResultOrException.get());
+   }
+
+   public void testPipelineMultiple() throws Exception {
+      Splitter SPLITTER = new Splitter();
+      Pipeline pipeline = Pipeline.of(SPLITTER, new Length());
+      Object[] results = (Object[])pipeline.run("a bb ccc");
+      assertEquals(3, results.length);
+      assertEquals(3, results[2]);
+   }
+
+   public void testWorkStealing() throws Exception {
+      AtomicInteger total = new AtomicInteger();
+      Pipeline pipeline = Pipeline.of(new Upper(), new Length(), new Adder(total));
+      CallbackExecutor cex = new CallbackExecutor(new ForkJoinPool(4));
+      for (int i=0; i<100; i++)
+         cex.submitPipeline(pipeline, "abcde");
+      cex.shutdown(2000L);
+      assertEquals(500, total.get());
+
+      try {
+         cex.submitPipeline(pipeline, "abcde");
+         fail();
+      } catch (RejectedExecutionException expected) {}
+   }
+
+   public void testWorkStealingFails() throws Exception {
+      Counter COUNTER = new Counter();
+      Throws THROWS = new Throws();
+      Callbacks.chainUp(COUNTER, THROWS);
+      CallbackExecutor cex = new CallbackExecutor(new ForkJoinPool(2));
+      cex.submitCallback(COUNTER, "this is a string");
+
+      COUNTER = new Counter();
+      THROWS = new Throws();
+      Callbacks.chainUp(THROWS, COUNTER);
+      cex.submitCallback(THROWS, "this is a string");
+      cex.shutdown(500L);
+      assertEquals(2, cex.exceptionCount.intValue());
+      assertEquals("THROWS", ((Exception)cex.lastResultOrException.get()).getMessage());
+   }
+
+   public void testWorkStealingDroppedLink() throws Exception {
+      final ScheduledExecutorService deadTimer = Executors.newSingleThreadScheduledExecutor();
+      deadTimer.shutdown();
+      CallbackExecutor cex = new CallbackExecutor(new ForkJoinPool(2)) {
+         @Override
+         protected synchronized ScheduledExecutorService timer() {
+            return deadTimer;
+         }
+      };
+
+      // the retry can't be scheduled, the chain still finishes
+      RetryPolicy policy = new RetryPolicy().maxAttempts(2).backoff(1L, 1L, TimeUnit.MILLISECONDS);
+      CallbackChain chain = cex.submitPipeline(Pipeline.of(new RetryingCallback(new Flaky(1), policy)), "ok");
+      assertTrue(chain.await(2L, TimeUnit.SECONDS));
+      assertTrue(chain.getFailure() instanceof RejectedExecutionException);
+      cex.shutdown(100L);
+   }
+
+   public void testLinkTimeout() throws Exception {
+      Sleeper SLEEPER = new Sleeper(5000L);
+      Recorder RECORDER = new Recorder();
+      Callbacks.chainUp(SLEEPER, RECORDER);
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+      long start = System.currentTimeMillis();
+      cex.submit(new CallbackChain(SLEEPER).linkTimeout(100L, TimeUnit.MILLISECONDS), "x");
+      assertTrue(RECORDER.latch.await(2L, TimeUnit.SECONDS));
+      assertTrue(RECORDER.exception instanceof TimeoutException);
+      assertTrue(SLEEPER.interrupted);
+      assertTrue(System.currentTimeMillis() - start < 2000L);
+      cex.shutdown(500L);
+   }
+
+   public void testDeadline() throws Exception {
+      Recorder RECORDER = new Recorder();
+      Pipeline pipeline = Pipeline.of(new Sleeper(200L), new Sleeper(200L), new Sleeper(200L), RECORDER);
+      CallbackExecutor cex = new CallbackExecutor(new ForkJoinPool(2));
+      cex.submit(new CallbackChain(pipeline).deadline(300L, TimeUnit.MILLISECONDS), "x");
+      assertTrue(RECORDER.latch.await(2L, TimeUnit.SECONDS));
+      assertTrue(RECORDER.exception instanceof TimeoutException);
+      cex.shutdown(500L);
+   }
+
+   public void testCancel() throws Exception {
+      Sleeper SLEEPER = new Sleeper(5000L);
+      Recorder RECORDER = new Recorder();
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+      CallbackChain chain = cex.submitPipeline(Pipeline.of(SLEEPER, RECORDER), "x");
+      Thread.sleep(100L);
+      assertTrue(chain.cancel());
+      assertFalse(chain.cancel());
+      cex.shutdown(500L);
+      assertTrue(SLEEPER.interrupted);
+      assertEquals(1L, RECORDER.latch.getCount());   // never called
+      assertEquals(0, cex.exceptionCount.get());
+   }
+
+   public void testRetrySync() throws Exception {
+      RetryPolicy policy = new RetryPolicy().maxAttempts(3).backoff(1L, 10L, TimeUnit.MILLISECONDS).jitter(1.0);
+      Flaky FLAKY = new Flaky(2);
+      assertEquals("ok", Callbacks.runSync(new RetryingCallback(FLAKY, policy), "ok"));
+      assertEquals(3, FLAKY.attempts.get());
+
+      FLAKY = new Flaky(3);
+      try {
+         Pipeline.of(new RetryingCallback(FLAKY, policy)).run("ok");
+         fail();
+      }
+      catch (IllegalStateException expected) {
+         assertEquals(3, FLAKY.attempts.get());
+      }
+
+      // a result, not an Exception, worth retrying
+      policy.retryIfResult(new Fn.Base<Object, Boolean>() {
+         @Override public Boolean fn1(Object in) { return "bad".equals(in); }
+      });
+      assertEquals("bad", Callbacks.runSync(new RetryingCallback(new AbstractCallback.Canned(null, "bad"), policy), "x"));
+
+      assertEquals(100000000L, new RetryPolicy().delayNanos(1));
+      assertEquals(400000000L, new RetryPolicy().delayNanos(3));
+      assertEquals(30000000000L, new RetryPolicy().delayNanos(99));
+   }
+
+   public void testRetryExecutor() throws Exception {
+      RetryPolicy policy = new RetryPolicy().maxAttempts(4).backoff(50L, 50L, TimeUnit.MILLISECONDS);
+      Flaky FLAKY = new Flaky(3);
+      Recorder RECORDER = new Recorder();
+      CallbackExecutor cex = new CallbackExecutor(1,1);
+      cex.submitPipeline(Pipeline.of(new RetryingCallback(FLAKY, policy), RECORDER), "ok");
+
+      // while the retries wait, our only callback thread is free for other chains
+      Recorder OTHER = new Recorder();
+      Thread.sleep(20L);
+      cex.submitPipeline(Pipeline.of(OTHER), "other");
+      assertTrue(OTHER.latch.await(40L, TimeUnit.MILLISECONDS));
+
+      assertTrue(RECORDER.latch.await(2L, TimeUnit.SECONDS));
+      assertNull(RECORDER.exception);
+      assertEquals(4, FLAKY.attempts.get());
+
+      // not retryable, goes down the chain
+      policy.retryIf(new Fn.Base<Exception, Boolean>() {
+         @Override public Boolean fn1(Exception in) { return !(in instanceof IllegalStateException); }
+      });
+      FLAKY = new Flaky(3);
+      RECORDER = new Recorder();
+      cex.submitPipeline(Pipeline.of(new RetryingCallback(FLAKY, policy), RECORDER), "ok");
+      assertTrue(RECORDER.latch.await(2L, TimeUnit.SECONDS));
+      assertTrue(RECORDER.exception instanceof IllegalStateException);
+      assertEquals(1, FLAKY.attempts.get());
+      cex.shutdown(100L);
+   }
+
+   public void testMetrics() throws Exception {
+      Sleeper SLEEPER = new Sleeper(20L);
+      Tracer TRACER = new Tracer();
+      Pipeline pipeline = Pipeline.of(new Upper(), SLEEPER, TRACER, new Length());
+      CallbackStats stats = new CallbackStats();
+      CallbackExecutor cex = new CallbackExecutor(4,1);
+      cex.setMetrics(stats);
+
+      CallbackChain[] chains = new CallbackChain[10];
+      for (int i=0; i<chains.length; i++)
+         chains[i] = cex.submit(new CallbackChain(pipeline).trace("request" + i), "abc");
+      for (CallbackChain chain : chains) {
+         assertTrue(chain.await(2L, TimeUnit.SECONDS));
+         assertEquals(3, chain.getResult());
+         assertNull(chain.getFailure());
+      }
+      cex.shutdown(100L);
+
+      assertEquals(10, stats.getChainsCompleted());
+      assertEquals(0, stats.getChainsInFlight());
+      assertEquals(10, TRACER.traces.size());
+      assertTrue(TRACER.traces.contains("request7"));
+      assertSame(SLEEPER, stats.getStages().get(0).callback);   // the bottleneck
+      assertTrue(stats.getStage(SLEEPER).runNanos.percentile(50.0) >= TimeUnit.MILLISECONDS.toNanos(20L) / 2);
+      assertEquals(10, stats.getStage(TRACER).runNanos.getCount());
+      assertTrue(stats.report().contains("inFlight=0"));
+
+      CallbackStats.Histogram histogram = new CallbackStats.Histogram();
+      for (int i=1; i<=100; i++)
+         histogram.record(i);
+      assertEquals(100, histogram.getCount());
+      assertEquals(50.5, histogram.getMean(), 0.001);
+      assertEquals(100, histogram.percentile(100.0));
+      long p50 = histogram.percentile(50.0);
+      assertTrue(p50 >= 50 && p50 < 63);
+   }
+
+   public void testShutdownDrains() throws Exception {
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+      CallbackChain chain = cex.submitPipeline(Pipeline.of(new Sleeper(200L), new Length()), "abcd");
+      assertEquals(1, cex.getInFlightCount());
+
+      long start = System.currentTimeMillis();
+      List<CallbackChain> abandoned = cex.shutdown(5000L);
+      assertTrue(System.currentTimeMillis() - start < 2000L);   // did not wait the full 5 seconds
+      assertTrue(abandoned.isEmpty());
+      assertTrue(chain.isDone());
+      assertEquals(4, chain.getResult());
+      assertEquals(0, cex.getInFlightCount());
+
+      try {
+         cex.submitCallback(new Length(), "abcd");
+         fail();
+      } catch (RejectedExecutionException expected) {}
+   }
+
+   public void testShutdownAbandons() throws Exception {
+      Sleeper SLEEPER = new Sleeper(5000L);
+      CallbackExecutor cex = new CallbackExecutor(new ForkJoinPool(2));
+      CallbackChain slow = cex.submitPipeline(Pipeline.of(SLEEPER, new Length()), "abcd");
+      CallbackChain fast = cex.submitPipeline(Pipeline.of(new Length()), "abc");
+
+      List<CallbackChain> abandoned = cex.shutdown(200L);
+      assertEquals(1, abandoned.size());
+      assertSame(slow, abandoned.get(0));
+      assertTrue(slow.isCancelled());
+      assertEquals(3, fast.getResult());
+   }
+
+   public void testShutdownAbandonsQueued() throws Exception {
+      CallbackExecutor cex = new CallbackExecutor(1,1);
+      CallbackChain running = cex.submitPipeline(Pipeline.of(new Sleeper(5000L), new Length()), "abcd");
+      CallbackChain queued = cex.submitPipeline(Pipeline.of(new Length()), "abc");   // never starts
+      final CountDownLatch listened = new CountDownLatch(1);
+      queued.whenDone(new Runnable() {
+         @Override
+         public void run() {
+            listened.countDown();
+         }
+      });
+
+      List<CallbackChain> abandoned = cex.shutdown(200L);
+      assertEquals(2, abandoned.size());
+      for (CallbackChain chain : abandoned)
+         assertTrue(chain.await(1L, TimeUnit.SECONDS));
+      assertTrue(queued.getFailure() instanceof CancellationException);
+      assertNull(queued.getResult());
+      assertTrue(listened.await(1L, TimeUnit.SECONDS));
+      assertEquals(0, cex.getInFlightCount());
+   }
+
+   public void testBulkhead() throws Exception {
+      Limiter.Bulkhead bulkhead = new Limiter.Bulkhead(2);
+      Concurrency CONCURRENCY = new Concurrency(30L);
+      Pipeline pipeline = Pipeline.of(new LimitedCallback(CONCURRENCY, bulkhead));
+      CallbackExecutor cex = new CallbackExecutor(8,2);
+      CallbackChain[] chains = new CallbackChain[8];
+      for (int i=0; i<chains.length; i++)
+         chains[i] = cex.submitPipeline(pipeline, i);
+
+      // waiting links hold no threads, so an unlimited chain gets right through
+      Recorder OTHER = new Recorder();
+      cex.submitPipeline(Pipeline.of(OTHER), "other");
+      assertTrue(OTHER.latch.await(20L, TimeUnit.MILLISECONDS));
+
+      for (CallbackChain chain : chains)
+         assertTrue(chain.await(2L, TimeUnit.SECONDS));
+      assertEquals(2, CONCURRENCY.max.get());
+      assertEquals(0, bulkhead.getRunning());
+      assertEquals(0, bulkhead.getWaiting());
+      cex.shutdown(100L);
+
+      // synchronously, blocks
+      assertEquals("x", new LimitedCallback(CONCURRENCY, bulkhead).callback(null, "x"));
+      assertEquals(0, bulkhead.getRunning());
+   }
+
+   public void testLimiterBypassAndShutdown() throws Exception {
+      Limiter.Bulkhead bulkhead = new Limiter.Bulkhead(1);
+      assertTrue(bulkhead.acquire(null, null));   // hold the only permit
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+
+      // an incoming Exception goes straight through, without waiting for a permit
+      CallbackChain failing = cex.submitPipeline(Pipeline.of(new Throws(), new LimitedCallback(new Upper(), bulkhead)), "x");
+      assertTrue(failing.await(1L, TimeUnit.SECONDS));
+      assertNotNull(failing.getFailure());
+      assertEquals(1, bulkhead.getRunning());
+      assertEquals(0, bulkhead.getWaiting());
+
+      // a link waiting for a permit when we shut down still finishes its chain, and gives the permit back
+      CallbackChain waiting = cex.submitPipeline(Pipeline.of(new LimitedCallback(new Upper(), bulkhead)), "x");
+      assertEquals(1, bulkhead.getWaiting());
+      assertTrue(cex.shutdown(0L).contains(waiting));
+      bulkhead.release();
+      assertTrue(waiting.await(1L, TimeUnit.SECONDS));
+      assertTrue(waiting.getFailure() instanceof RejectedExecutionException);
+      assertEquals(0, bulkhead.getRunning());
+      assertEquals(0, bulkhead.getWaiting());
+   }
+
+   public void testNestedDecorators() throws Exception {
+      RetryPolicy policy = new RetryPolicy().maxAttempts(4).backoff(50L, 50L, TimeUnit.MILLISECONDS);
+      Limiter.Bulkhead bulkhead = new Limiter.Bulkhead(1);
+      CallbackExecutor cex = new CallbackExecutor(1,1);
+
+      // the permit is given back, and our only callback thread is free, while the retries wait
+      Flaky FLAKY = new Flaky(3);
+      Recorder RECORDER = new Recorder();
+      cex.submitPipeline(Pipeline.of(new LimitedCallback(new RetryingCallback(FLAKY, policy), bulkhead), RECORDER), "ok");
+      Thread.sleep(20L);
+      Recorder OTHER = new Recorder();
+      cex.submitPipeline(Pipeline.of(new LimitedCallback(OTHER, bulkhead)), "other");
+      assertTrue(OTHER.latch.await(40L, TimeUnit.MILLISECONDS));
+      assertTrue(RECORDER.latch.await(2L, TimeUnit.SECONDS));
+      assertNull(RECORDER.exception);
+      assertEquals(4, FLAKY.attempts.get());
+
+      // and the other way round, waiting for a permit holds no thread
+      assertTrue(bulkhead.acquire(null, null));
+      FLAKY = new Flaky(1);
+      RECORDER = new Recorder();
+      cex.submitPipeline(Pipeline.of(new RetryingCallback(new LimitedCallback(FLAKY, bulkhead), policy), RECORDER), "ok");
+      OTHER = new Recorder();
+      cex.submitPipeline(Pipeline.of(OTHER), "other");
+      assertTrue(OTHER.latch.await(100L, TimeUnit.MILLISECONDS));
+      assertEquals(1, bulkhead.getWaiting());
+      bulkhead.release();
+      assertTrue(RECORDER.latch.await(2L, TimeUnit.SECONDS));
+      assertNull(RECORDER.exception);
+      assertEquals(2, FLAKY.attempts.get());
+      assertEquals(0, bulkhead.getRunning());
+      cex.shutdown(100L);
+
+      try {
+         new LimitedCallback(new RetryingCallback(new LimitedCallback(new Upper(), bulkhead), policy), bulkhead);
+         fail();
+      } catch (IllegalArgumentException expected) {}
+      try {
+         new RetryingCallback(new RetryingCallback(new Upper(), policy), policy);
+         fail();
+      } catch (IllegalArgumentException expected) {}
+   }
+
+   public void testTokenBucket() throws Exception {
+      Limiter.TokenBucket bucket = new Limiter.TokenBucket(50.0, 2);  // every 20ms
+      assertEquals(0L, bucket.reserve());
+      assertEquals(0L, bucket.reserve());
+      assertTrue(bucket.reserve() > TimeUnit.MILLISECONDS.toNanos(10L));
+
+      bucket = new Limiter.TokenBucket(50.0, 1);
+      Adder ADDER = new Adder(new AtomicInteger());
+      Pipeline pipeline = Pipeline.of(new LimitedCallback(ADDER, bucket));
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+      long start = System.nanoTime();
+      CallbackChain[] chains = new CallbackChain[6];
+      for (int i=0; i<chains.length; i++)
+         chains[i] = cex.submitPipeline(pipeline, 1);
+      for (CallbackChain chain : chains)
+         assertTrue(chain.await(2L, TimeUnit.SECONDS));
+
+      long elapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue(elapsedMS >= 90L);
+      assertEquals(6, ADDER.total.get());
+      cex.shutdown(100L);
+   }
+
+
+   public void testBatching() throws Exception {
+      Doubler DOUBLER = new Doubler();
+      DOUBLER.maxSize(4).maxDelay(50L, TimeUnit.MILLISECONDS);
+      assertEquals(Integer.valueOf(6), DOUBLER.callback(null, 3));  // synchronously, a batch of one
+      DOUBLER.sizes.clear();
+
+      Adder ADDER = new Adder(new AtomicInteger());
+      Pipeline pipeline = Pipeline.of(DOUBLER, ADDER);
+      CallbackExecutor cex = new CallbackExecutor(4,2);
+      CallbackChain[] chains = new CallbackChain[10];
+      for (int i=0; i<chains.length; i++)
+         chains[i] = cex.submitPipeline(pipeline, i+1);
+      for (CallbackChain chain : chains)
+         assertTrue(chain.await(2L, TimeUnit.SECONDS));
+
+      assertEquals(110, ADDER.total.get());
+      assertEquals(3, DOUBLER.sizes.size());  // 4, 4, and 2 after maxDelay
+      int total = 0;
+      for (Integer size : DOUBLER.sizes) {
+         assertTrue(size <= 4);
+         total += size;
+      }
+      assertEquals(10, total);
+
+      // a failed batch fails every chain in it
+      DOUBLER.maxSize(2);
+      Recorder R1 = new Recorder();
+      Recorder R2 = new Recorder();
+      cex.submitPipeline(Pipeline.of(DOUBLER, R1), -1);
+      cex.submitPipeline(Pipeline.of(DOUBLER, R2), 1);
+      assertTrue(R1.latch.await(2L, TimeUnit.SECONDS));
+      assertTrue(R2.latch.await(2L, TimeUnit.SECONDS));
+      assertTrue(R1.exception instanceof IllegalArgumentException);
+      assertTrue(R2.exception instanceof IllegalArgumentException);
+      cex.shutdown(100L);
+   }
+
+
+   public void testFlowProcessor() throws Exception {
+      Concurrency CONCURRENCY = new Concurrency(1L);
+      Callback<Object, Object> JITTER = new AbstractCallback<Object, Object>() {
+         @Override
+         public Object callback(Exception ex, Object in, Object...more) throws Exception {
+            failSlow(ex, in, more);
+            Thread.sleep(((Integer) in % 3) * 5L);   // so they finish out of order
+            return -(Integer) in;
+         }
+      };
+      CallbackExecutor cex = new CallbackExecutor(8,2);
+      CallbackProcessor<Integer, Integer> processor =
+            new CallbackProcessor<Integer, Integer>(cex, Pipeline.of(CONCURRENCY, JITTER), 3, true);
+
+      SubmissionPublisher<Integer> publisher = new SubmissionPublisher<Integer>();
+      publisher.subscribe(processor);
+      Collector collector = new Collector();
+      processor.subscribe(collector);
+      for (int i=1; i<=20; i++)
+         publisher.submit(i);
+      publisher.close();
+
+      assertTrue(collector.done.await(5L, TimeUnit.SECONDS));
+      assertNull(collector.error);
+      assertEquals(20, collector.items.size());
+      for (int i=0; i<20; i++)
+         assertEquals(Integer.valueOf(-(i+1)), collector.items.get(i));
+      assertTrue(CONCURRENCY.max.get() <= 3);
+
+      // a failed chain terminates the stream
+      processor = new CallbackProcessor<Integer, Integer>(cex, Pipeline.of(new Throws()), 3, false);
+      publisher = new SubmissionPublisher<Integer>();
+      publisher.subscribe(processor);
+      collector = new Collector();
+      processor.subscribe(collector);
+      publisher.submit(1);
+      assertTrue(collector.done.await(5L, TimeUnit.SECONDS));
+      assertNotNull(collector.error);
+      publisher.close();
+      cex.shutdown(100L);
+   }
+
+
+   public void testCaching() throws Exception {
+      final AtomicInteger calls = new AtomicInteger();
+      Callback<String, String> SLOW_UPPER = new AbstractCallback<String, String>() {
+         @Override
+         public String callback(Exception ex, String in, Object...more) throws Exception {
+            failSlow(ex, in, more);
+            calls.incrementAndGet();
+            Thread.sleep(20L);
+            return in.toUpperCase();
+         }
+      };
+
+      CachingCallback<String, String> cache = new CachingCallback<String, String>(SLOW_UPPER).maxSize(2);
+      assertEquals("A", cache.callback(null, "a"));
+      assertEquals("A", cache.callback(null, "a"));
+      assertEquals("B", cache.callback(null, "b"));
+      assertEquals("A", cache.callback(null, "a"));   // now b is least recently used
+      assertEquals("C", cache.callback(null, "c"));
+      assertEquals(2, cache.size());
+      assertEquals(1L, cache.getEvictionCount());
+      assertEquals(3, calls.get());
+      assertEquals("A", cache.callback(null, "a"));
+      assertEquals("B", cache.callback(null, "b"));
+      assertEquals(4, calls.get());
+      assertEquals(3L, cache.getHitCount());
+      assertEquals(4L, cache.getMissCount());
+
+      // concurrent misses share one call
+      calls.set(0);
+      Pipeline pipeline = Pipeline.of(cache);
+      CallbackExecutor cex = new CallbackExecutor(4,1);
+      CallbackChain[] chains = new CallbackChain[4];
+      for (int i=0; i<chains.length; i++)
+         chains[i] = cex.submitPipeline(pipeline, "shared");
+      for (CallbackChain chain : chains) {
+         assertTrue(chain.await(2L, TimeUnit.SECONDS));
+         assertEquals("SHARED", chain.getResult());
+      }
+      assertEquals(1, calls.get());
+      cex.shutdown(100L);
+
+      // TTL
+      cache = new CachingCallback<String, String>(SLOW_UPPER).expireAfterWrite(10L, TimeUnit.MILLISECONDS);
+      calls.set(0);
+      cache.callback(null, "x");
+      cache.callback(null, "x");
+      Thread.sleep(15L);
+      cache.callback(null, "x");
+      assertEquals(2, calls.get());
+
+      // null inputs, and null keys, are cached too
+      Callback<String, String> NULL_SAFE = new AbstractCallback<String, String>() {
+         @Override
+         public String callback(Exception ex, String in, Object...more) throws Exception {
+            failSlow(ex, in, more);
+            calls.incrementAndGet();
+            return String.valueOf(in);
+         }
+      };
+      cache = new CachingCallback<String, String>(NULL_SAFE);
+      calls.set(0);
+      assertEquals("null", cache.callback(null, null));
+      assertEquals("null", cache.callback(null, null));
+      assertEquals(1, calls.get());
+      cache.invalidate(null);
+      assertEquals(0, cache.size());
+
+      cache = new CachingCallback<String, String>(NULL_SAFE).keyedBy(new Fn.Base<String, Object>() {
+         @Override
+         public Object fn1(String in) {
+            return null;
+         }
+      });
+      calls.set(0);
+      assertEquals("a", cache.callback(null, "a"));
+      assertEquals("a", cache.callback(null, "b"));   // same key
+      assertEquals(1, calls.get());
+   }
+
+
+   public void testCircuitBreaker() throws Exception {
+      final AtomicBoolean healthy = new AtomicBoolean(false);
+      final AtomicInteger calls = new AtomicInteger();
+      Callback<Object, Object> DEPENDENCY = new AbstractCallback<Object, Object>() {
+         @Override
+         public Object callback(Exception ex, Object in, Object...more) throws Exception {
+            failSlow(ex, in, more);
+            calls.incrementAndGet();
+            if (!healthy.get())
+               throw new IllegalStateException("down");
+            return in;
+         }
+      };
+
+      CircuitBreakerCallback<Object, Object> breaker = new CircuitBreakerCallback<Object, Object>(DEPENDENCY)
+            .openWhen(0.5, 4).openFor(30L, TimeUnit.MILLISECONDS);
+      for (int i=0; i<4; i++) {
+         try {
+            breaker.callback(null, "x");
+            fail();
+         } catch (IllegalStateException expected) {}
+      }
+      assertEquals(CircuitBreakerCallback.State.OPEN, breaker.getState());
+
+      // fails fast, down the chain
+      Recorder RECORDER = new Recorder();
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+      cex.submitPipeline(Pipeline.of(breaker, RECORDER), "x");
+      assertTrue(RECORDER.latch.await(2L, TimeUnit.SECONDS));
+      assertTrue(RECORDER.exception instanceof CircuitBreakerCallback.CircuitOpenException);
+      assertEquals(4, calls.get());
+      cex.shutdown(100L);
+
+      // a failed probe reopens
+      Thread.sleep(40L);
+      try {
+         breaker.callback(null, "x");
+         fail();
+      } catch (IllegalStateException expected) {}
+      assertEquals(CircuitBreakerCallback.State.OPEN, breaker.getState());
+
+      // a successful one closes
+      healthy.set(true);
+      Thread.sleep(40L);
+      assertEquals("x", breaker.callback(null, "x"));
+      assertEquals(CircuitBreakerCallback.State.CLOSED, breaker.getState());
+      assertEquals(6, calls.get());
+
+      // a late failure, from a call begun while closed, doesn't restart the open period
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      Callback<Object, Object> SLOW = new AbstractCallback<Object, Object>() {
+         @Override
+         public Object callback(Exception ex, Object in, Object...more) throws Exception {
+            failSlow(ex, in, more);
+            if ("slow".equals(in)) {
+               started.countDown();
+               release.await();
+            }
+            throw new IllegalStateException("down");
+         }
+      };
+      final CircuitBreakerCallback<Object, Object> late = new CircuitBreakerCallback<Object, Object>(SLOW)
+            .openWhen(0.5, 4).openFor(30L, TimeUnit.MILLISECONDS);
+      Thread slow = new Thread() {
+         @Override
+         public void run() {
+            try {
+               late.callback(null, "slow");
+            } catch (Exception expected) {}
+         }
+      };
+      slow.start();
+      assertTrue(started.await(2L, TimeUnit.SECONDS));
+      for (int i=0; i<4; i++) {
+         try {
+            late.callback(null, "x");
+            fail();
+         } catch (IllegalStateException expected) {}
+      }
+      assertEquals(CircuitBreakerCallback.State.OPEN, late.getState());
+      Thread.sleep(40L);
+      release.countDown();
+      slow.join(2000L);
+      try {
+         late.callback(null, "x");   // goes through as a probe, doesn't fail fast
+         fail();
+      } catch (IllegalStateException expected) {}
+   }
+
+
+   public void testScope() throws Exception {
+      ExecutorService executor = Executors.newCachedThreadPool();
+
+      // latency is the slowest branch, not the sum
+      long start = System.nanoTime();
+      CallbackScope scope = new CallbackScope(executor);
+      try {
+         CallbackScope.Branch user = scope.fork(new Sleeper(50L), "user");
+         CallbackScope.Branch orders = scope.fork(Pipeline.of(new Sleeper(100L), new Upper()), "orders");
+         CallbackScope.Branch prefs = scope.fork(new Sleeper(150L), "prefs");
+         scope.joinAll(2L, TimeUnit.SECONDS);
+         assertEquals("user", user.get());
+         assertEquals("ORDERS", orders.get());
+         assertEquals("prefs", prefs.get());
+      } finally {
+         scope.close();
+      }
+      long elapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue(elapsedMS >= 150L);
+      assertTrue(elapsedMS < 300L);   // the sum
+
+      // first failure cancels the siblings
+      Sleeper SLOW = new Sleeper(2000L);
+      scope = new CallbackScope(executor);
+      start = System.nanoTime();
+      try {
+         scope.fork(SLOW, "slow");
+         scope.fork(Pipeline.of(new Sleeper(20L), new Throws()), "fails");
+         scope.joinAll(5L, TimeUnit.SECONDS);
+         fail();
+      } catch (Exception expected) {
+         assertEquals("THROWS", expected.getMessage());
+      } finally {
+         scope.close();
+      }
+      assertTrue(SLOW.interrupted);
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000L);
+
+      // first success wins
+      scope = new CallbackScope(executor);
+      try {
+         scope.fork(new Throws(), "fails");
+         scope.fork(new Sleeper(30L), "fast");
+         scope.fork(new Sleeper(2000L), "slow");
+         assertEquals("fast", scope.joinAny(5L, TimeUnit.SECONDS));
+      } finally {
+         scope.close();
+      }
+      executor.shutdown();
+
+      // close() doesn't wait for a branch that will never run
+      ExecutorService single = Executors.newSingleThreadExecutor();
+      scope = new CallbackScope(single);
+      scope.fork(new Sleeper(2000L), "running");
+      CallbackScope.Branch<?> queued = scope.fork(new Sleeper(10L), "queued");
+      Thread.sleep(20L);
+      assertEquals(1, single.shutdownNow().size());   // the queued one, drained
+      start = System.nanoTime();
+      scope.close();
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000L);
+      assertTrue(queued.isCancelled());
+   }
+
+
+   public void testJournal() throws Exception {
+      File file = File.createTempFile("nava", ".journal");
+      file.deleteOnExit();
+      final CountDownLatch hanging = new CountDownLatch(1);
+      Callback<Object, Object> HANG = new AbstractCallback<Object, Object>() {
+         @Override
+         public Object callback(Exception ex, Object in, Object...more) throws Exception {
+            failSlow(ex, in, more);
+            if ("HANG".equals(in)) {
+               hanging.countDown();
+               Thread.sleep(10000L);
+            }
+            return in;
+         }
+      };
+
+      ChainJournal journal = new ChainJournal(file, 4096).register("p", Pipeline.of(new Upper(), HANG, new Length()));
+      CallbackExecutor cex = new CallbackExecutor(2,1);
+      for (int i=0; i<50; i++) {   // enough to fill, and compact, the journal
+         int forces = journal.forces;
+         CallbackChain ok = journal.submit(cex, "p", "ok");
+         assertTrue(ok.await(2L, TimeUnit.SECONDS));
+         assertEquals(2, ok.getResult());
+         assertTrue("submit " + i + " not forced", journal.forces > forces);   // even after compacting
+      }
+      assertTrue(journal.compactions > 0);
+      journal.submit(cex, "p", "hang");
+      assertTrue(hanging.await(2L, TimeUnit.SECONDS));
+      assertEquals(1, cex.shutdown(0L).size());   // "crash"
+      journal.close();
+
+      // restart, resuming after Upper
+      journal = new ChainJournal(file, 4096).register("p", Pipeline.of(new Throws(), new Upper(), new Length()));
+      assertEquals(1, journal.getUnfinishedCount());
+      cex = new CallbackExecutor(2,1);
+      List<CallbackChain> resumed = journal.resume(cex);
+      assertEquals(1, resumed.size());
+      assertTrue(resumed.get(0).await(2L, TimeUnit.SECONDS));
+      assertEquals(4, resumed.get(0).getResult());
+      assertEquals(0, journal.getUnfinishedCount());
+      assertTrue(journal.resume(cex).isEmpty());
+      cex.shutdown(100L);
+      journal.close();
+
+      journal = new ChainJournal(file, 4096);
+      assertEquals(0, journal.getUnfinishedCount());
+      journal.close();
+
+      // a chain the executor refuses stays journaled, and this JVM can still resume it
+      journal = new ChainJournal(file, 4096).register("p", Pipeline.of(new Upper(), new Length()));
+      cex = new CallbackExecutor(2,1);
+      cex.shutdown(0L);
+      try {
+         journal.submit(cex, "p", "refused");
+         fail();
+      } catch (RejectedExecutionException expected) {}
+      assertEquals(1, journal.getUnfinishedCount());
+      cex = new CallbackExecutor(2,1);
+      resumed = journal.resume(cex);
+      assertEquals(1, resumed.size());
+      assertTrue(resumed.get(0).await(2L, TimeUnit.SECONDS));
+      assertEquals(7, resumed.get(0).getResult());
+      assertNull(journal.getLastDoneException());
+      cex.shutdown(100L);
+      journal.close();
+   }
+
+
+   public void testLanes() throws Exception {
+      final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+      Callback<Object, Object> ORDER = new AbstractCallback<Object, Object>() {
+         @Override
+         public Object callback(Exception ex, Object in, Object...more) throws Exception {
+            failSlow(ex, in, more);
+            order.add((String) in);
+            return in;
+         }
+      };
+
+      CallbackExecutor cex = new CallbackExecutor(1, 1, 4, 1);   // interactive gets 4x the share of bulk
+      Pipeline pipeline = Pipeline.of(ORDER);
+      CallbackChain blocker = cex.submitCallback(new Sleeper(50L), "blocker");
+      CallbackChain[] chains = new CallbackChain[16];
+      for (int i=0; i<8; i++)   // a burst of bulk, queued first
+         chains[i] = cex.submitPipeline(1, pipeline, "bulk");
+      for (int i=8; i<16; i++)
+         chains[i] = cex.submitPipeline(0, pipeline, "interactive");
+
+      assertTrue(blocker.await(2L, TimeUnit.SECONDS));
+      for (CallbackChain chain : chains)
+         assertTrue(chain.await(2L, TimeUnit.SECONDS));
+
+      assertEquals(16, order.size());
+      assertEquals(4, Collections.frequency(order.subList(0, 5), "interactive"));   // but bulk is not starved
+      assertEquals(8, Collections.frequency(order.subList(0, 10), "interactive"));
+
+      LaneQueue.Stats bulk = cex.getLaneStats(1);
+      assertEquals(8L, bulk.taken);
+      assertEquals(0, bulk.queued);
+      assertTrue(bulk.maxWaitNanos >= cex.getLaneStats(0).maxWaitNanos);
+
+      try {
+         cex.submitPipeline(2, pipeline, "nope");
+         fail();
+      } catch (IllegalArgumentException expected) {}
+      cex.shutdown(100L);
+   }
+
+
    static class Reader extends AbstractCallback<File, String> {
 
       @Override
@@ -162,6 +1006,159 @@ public class CallbacksTest extends TestCase {
       }
    }
 
+   static class Upper extends AbstractCallback<String, String> {
+      @Override
+      public String callback(Exception ex, String in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         return in.toUpperCase();
+      }
+   }
+
+   static class Length extends AbstractCallback<String, Integer> {
+      @Override
+      public Integer callback(Exception ex, String in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         return in.length();
+      }
+   }
+
+   static class Adder extends AbstractCallback<Integer, Integer> {
+      final AtomicInteger total;
+      Adder(AtomicInteger total) { this.total = total; }
+
+      @Override
+      public Integer callback(Exception ex, Integer in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         return total.addAndGet(in);
+      }
+   }
+
+   static class Sleeper extends AbstractCallback<Object, Object> {
+      final long sleepMS;
+      volatile boolean interrupted = false;
+      Sleeper(long sleepMS) { this.sleepMS = sleepMS; }
+
+      @Override
+      public Object callback(Exception ex, Object in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         try {
+            Thread.sleep(sleepMS);
+         } catch (InterruptedException ie) {
+            interrupted = true;
+            throw ie;
+         }
+         return in;
+      }
+   }
+
+   static class Concurrency extends Sleeper {
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger max = new AtomicInteger();
+      Concurrency(long sleepMS) { super(sleepMS); }
+
+      @Override
+      public Object callback(Exception ex, Object in, Object...more) throws Exception {
+         int now = running.incrementAndGet();
+         for (int m = max.get(); now > m && !max.compareAndSet(m, now); m = max.get())
+            ;
+         try {
+            return super.callback(ex, in, more);
+         } finally {
+            running.decrementAndGet();
+         }
+      }
+   }
+
+   static class Doubler extends BatchingCallback<Integer, Integer> {
+      final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+      @Override
+      protected List<Integer> callbackBatch(List<Integer> inputs) throws Exception {
+         sizes.add(inputs.size());
+         List<Integer> outputs = new ArrayList<Integer>(inputs.size());
+         for (Integer in : inputs) {
+            if (in < 0)
+               throw new IllegalArgumentException("negative");
+            outputs.add(in * 2);
+         }
+         return outputs;
+      }
+   }
+
+   static class Collector implements Flow.Subscriber<Integer> {
+      final List<Integer> items = Collections.synchronizedList(new ArrayList<Integer>());
+      final CountDownLatch done = new CountDownLatch(1);
+      volatile Throwable error;
+      Flow.Subscription subscription;
+
+      @Override public void onSubscribe(Flow.Subscription subscription) {
+         this.subscription = subscription;
+         subscription.request(1L);   // slow consumer, one at a time
+      }
+      @Override public void onNext(Integer item) {
+         items.add(item);
+         subscription.request(1L);
+      }
+      @Override public void onError(Throwable throwable) {
+         error = throwable;
+         done.countDown();
+      }
+      @Override public void onComplete() {
+         done.countDown();
+      }
+   }
+
+   static class Recorder extends AbstractCallback<Object, Object> {
+      final CountDownLatch latch = new CountDownLatch(1);
+      volatile Exception exception;
+
+      @Override
+      public Object callback(Exception ex, Object in, Object...more) throws Exception {
+         exception = ex;
+         latch.countDown();
+         return in;
+      }
+   }
+
+   static class Flaky extends AbstractCallback<Object, Object> {
+      final int failures;
+      final AtomicInteger attempts = new AtomicInteger();
+      Flaky(int failures) { this.failures = failures; }
+
+      @Override
+      public Object callback(Exception ex, Object in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         if (attempts.incrementAndGet() <= failures)
+            throw new IllegalStateException("flaky " + attempts.get());
+         return in;
+      }
+   }
+
+   static class Tracer extends AbstractCallback<Object, Object> {
+      final Set<Object> traces = Collections.synchronizedSet(new HashSet<Object>());
+
+      @Override
+      public Object callback(Exception ex, Object in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         traces.add(CallbackChain.current().getTraceContext());
+         return in;
+      }
+   }
+
+   static class Splitter extends AbstractCallback<String, String> implements Callback.ProducesMultiple<String, String> {
+      String[] multiples;
+      @Override  public String[] getMultiple() {
+         return multiples;
+      }
+
+      @Override
+      public String callback(Exception ex, String in, Object...more) throws Exception {
+         failSlow(ex, in, more);
+         multiples = in.split(" ");
+         return in;
+      }
+   }
+
    static class Throws extends AbstractCallback {
       @Override
       public Object callback(Exception ex, Object in, Object...more) throws Exception {
@@ -2,7 +2,27 @@ package com.flyingspaniel.nava.fp;
 
 import junit.framework.TestCase;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Morgan Conrad
@@ -18,6 +38,8 @@ public class FPTest extends TestCase {
    }
    static final double[] doubles = new double[] { 1.0, 2.0, 3.0, 4.0, 5.0, 6.0};
    static final int[] ints = new int[] { 1, 2, 3, 4, 5, 6};
+   static final long[] longs = new long[] { 1L, 2L, 3L, 4L, 5L, 6L};
+   static final float[] floats = new float[] { 1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f};
    
    
    public void testFold() throws Exception {
@@ -63,6 +85,251 @@ public class FPTest extends TestCase {
       assertEquals(720, FP.reducep(ints, Fns.PRODUCTpint));
    }
 
+   public void testLongsAndFloats() throws Exception {
+      assertEquals(6L, FP.foldp(Long.MIN_VALUE, longs, Fns.MAXplong));
+      assertEquals(21L, FP.foldp(0L, longs, Fns.SUMplong));
+      assertEquals(720L, FP.foldRightp(1L, longs, Fns.PRODUCTplong));
+      assertEquals(1L, FP.reducep(longs, Fns.MINplong));
+      assertEquals(21L, FP.reducep(longs, Fns.SUMplong));
+
+      assertEquals(6.0f, FP.foldp(Float.NEGATIVE_INFINITY, floats, Fns.MAXpfloat));
+      assertEquals(21.0f, FP.foldRightp(0.0f, floats, Fns.SUMpfloat));
+      assertEquals(720.0f, FP.foldp(1.0f, floats, Fns.PRODUCTpfloat));
+      assertEquals(1.0f, FP.reducep(floats, Fns.MINpfloat));
+      assertEquals(720.0f, FP.reducep(floats, Fns.PRODUCTpfloat));
+
+      // exact, where going through double is not
+      long big = (1L << 60) + 1L;
+      assertEquals(3 * big, FP.reducep(new long[] { big, big, big }, Fns.SUMplong));
+      assertEquals(3 * big, FP.foldp(0L, new long[] { big, big, big }, Fns.SUMplong));
+      assertFalse(3 * big == FP.fold(0L, Arrays.<Number>asList(big, big, big), Fns.SUM).longValue());
+
+      Fn.Plong plus1 = new Fn.Plong.Base() {
+         @Override public long fn1(long l1) { return l1 + 1L; }
+      };
+      assertEquals("[2, 3, 4, 5, 6, 7]", Arrays.toString(FP.mapp(longs, plus1)));
+      Fn.Pfloat half = new Fn.Pfloat.Base() {
+         @Override public float fn1(float f1) { return f1 / 2.0f; }
+      };
+      assertEquals("[0.5, 1.0, 1.5, 2.0, 2.5, 3.0]", Arrays.toString(FP.mapp(floats, half)));
+   }
+
+   public void testMapPAndFilterP() throws Exception {
+      Fn.Pdouble square = new Fn.Pdouble.Base() {
+         @Override public double fn1(double d1) { return d1 * d1; }
+      };
+      assertEquals("[1.0, 4.0, 9.0, 16.0, 25.0, 36.0]", Arrays.toString(FP.mapp(doubles, square)));
+      double[] inPlace = doubles.clone();
+      assertSame(inPlace, FP.mapp(inPlace, square, inPlace));
+      assertEquals(91.0, FP.reducep(inPlace, Fns.SUMpdouble));
+
+      Fn.Pint negate = new Fn.Pint.Base() {
+         @Override public int fn1(int i1) { return -i1; }
+      };
+      assertEquals("[-1, -2, -3, -4, -5, -6]", Arrays.toString(FP.mapp(ints, negate)));
+
+      Fn.Pint.Filter even = new Fn.Pint.Filter() {
+         @Override public boolean accept(int i) { return (i & 1) == 0; }
+      };
+      assertEquals("[2, 4, 6]", Arrays.toString(FP.filterp(ints, even)));
+      int[] out = new int[ints.length];
+      assertEquals(3, FP.filterp(ints, even, out));
+      assertEquals("[2, 4, 6, 0, 0, 0]", Arrays.toString(out));
+
+      Fn.Pdouble.Filter big = new Fn.Pdouble.Filter() {
+         @Override public boolean accept(double d) { return d > 3.5; }
+      };
+      double[] buffer = doubles.clone();
+      assertEquals(3, FP.filterp(buffer, big, buffer));
+      assertEquals(4.0, buffer[0]);
+      assertEquals(0, FP.filterp(doubles, new Fn.Pdouble.Filter() {
+         @Override public boolean accept(double d) { return false; }
+      }).length);
+
+      Fn.Plong.Filter odd = new Fn.Plong.Filter() {
+         @Override public boolean accept(long l) { return (l & 1L) == 1L; }
+      };
+      assertEquals("[1, 3, 5]", Arrays.toString(FP.filterp(longs, odd)));
+      Fn.Pfloat.Filter all = new Fn.Pfloat.Filter() {
+         @Override public boolean accept(float f) { return true; }
+      };
+      assertEquals(6, FP.filterp(floats, all).length);
+   }
+
+   public void testBuffers() throws Exception {
+      int n = 100000;
+      DoubleBuffer direct = ByteBuffer.allocateDirect(8 * n).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+      IntBuffer intBuffer = ByteBuffer.allocateDirect(4 * n).order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+      for (int i=0; i<n; i++) {
+         direct.put(i, i);
+         intBuffer.put(i, i % 1000);
+      }
+
+      direct.position(10);
+      assertEquals(4999950000.0 - 45.0, FP.reducep(direct, Fns.SUMpdouble));
+      assertEquals(4999950000.0 - 45.0, FP.foldp(0.0, direct, Fns.SUMpdouble));
+      assertEquals(4999950000.0 - 45.0, FP.parReducep(direct, Fns.SUMpdouble));
+      assertEquals(10.0, FP.reducep(direct.asReadOnlyBuffer(), Fns.MINpdouble));
+      assertEquals(10, direct.position());
+      assertEquals(49950000, FP.reducep(intBuffer, Fns.SUMpint));
+      assertEquals(999, FP.parReducep(intBuffer, Fns.MAXpint));
+      assertEquals(49950000, FP.foldp(0, intBuffer, Fns.SUMpint));
+      assertEquals(21.0, FP.reducep(DoubleBuffer.wrap(doubles), Fns.SUMpdouble));
+
+      File file = File.createTempFile("nava", ".doubles");
+      file.deleteOnExit();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      for (int i=0; i<n; i++)
+         out.writeDouble(i);
+      out.writeByte(1);   // a partial double, ignored
+      out.close();
+
+      FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+      try {
+         assertEquals(4999950000.0, FP.reducep(channel, ByteOrder.BIG_ENDIAN, Fns.SUMpdouble, false));
+         assertEquals(4999950000.0, FP.reducep(channel, ByteOrder.BIG_ENDIAN, Fns.SUMpdouble, true));
+         assertEquals(99999.0, FP.foldp(-1.0, channel, ByteOrder.BIG_ENDIAN, Fns.MAXpdouble));
+         // several regions, of an odd size
+         assertEquals(4999950000.0, BufferReductions.reducep(channel, ByteOrder.BIG_ENDIAN, Fns.SUMpdouble, true, 80003L));
+         assertEquals(99999.0, BufferReductions.reducep(channel, ByteOrder.BIG_ENDIAN, Fns.MAXpdouble, false, 8000L));
+         assertEquals(4999950000.0, BufferReductions.foldp(0.0, channel, ByteOrder.BIG_ENDIAN, Fns.SUMpdouble, 12345L));
+      }
+      finally {
+         channel.close();
+      }
+   }
+
+   public void testStableSums() throws Exception {
+      // fnN used to count the first number twice
+      assertEquals(21.0, ((Fn.N<Number,Number>) Fns.SUM).fnN(1, 2, 3, 4, 5, 6).doubleValue());
+      assertEquals(720.0, ((Fn.N<Number,Number>) Fns.PRODUCT).fnN(1, 2, 3, 4, 5, 6).doubleValue());
+
+      double[] cancel = { 1.0, 1e100, 1.0, -1e100 };
+      assertEquals(0.0, Fns.SUMpdouble.fnN(cancel));
+      assertEquals(2.0, Fns.SUM_COMPENSATEDpdouble.fnN(cancel));
+      assertEquals(2.0, FP.accumulatep(cancel, new CompensatedSum()).getSum());
+
+      double[] tenths = new double[1000000];
+      Arrays.fill(tenths, 0.1);
+      double naive = 0.0;
+      for (double d : tenths)
+         naive += d;
+      double naiveError = Math.abs(naive - 100000.0);
+      double compensated = FP.reducep(tenths, Fns.SUM_COMPENSATEDpdouble);
+      double pairwise = FP.reducep(tenths, Fns.SUM_PAIRWISEpdouble);
+      assertTrue(naiveError > 1e-7);
+      assertEquals(100000.0, compensated, Math.ulp(100000.0));
+      assertTrue(Math.abs(pairwise - 100000.0) < naiveError / 100.0);
+      assertEquals(compensated, FP.parReducep(tenths, Fns.SUM_COMPENSATEDpdouble, 10000), Math.ulp(100000.0));
+
+      Random random = new Random(42);
+      double[] mixed = new double[300001];
+      for (int i=0; i<mixed.length; i++)
+         mixed[i] = random.nextGaussian() * Math.pow(10.0, random.nextInt(20) - 10);
+      CompensatedSum sequential = FP.accumulatep(mixed, new CompensatedSum());
+      CompensatedSum parallel = FP.parAccumulatep(mixed, new CompensatedSum());
+      assertEquals(mixed.length, parallel.getCount());
+      assertEquals(sequential.getSum(), parallel.getSum(), 2 * Math.ulp(sequential.getSum()));
+      for (int i=0; i<5; i++)   // reproducible
+         assertEquals(parallel.getSum(), FP.parAccumulatep(mixed, new CompensatedSum()).getSum());
+      assertEquals(parallel.getSum(), FP.parAccumulatep(mixed, new CompensatedSum(), 1000).getSum(), 2 * Math.ulp(parallel.getSum()));
+      assertEquals(parallel.getSum(), FP.parReducep(mixed, Fns.SUM_COMPENSATEDpdouble));
+      assertEquals(FP.parReducep(mixed, Fns.SUM_PAIRWISEpdouble, FP.ACCUMULATE_THRESHOLD), FP.parReducep(mixed, Fns.SUM_PAIRWISEpdouble));
+
+      // compensated across slices, not just within them
+      double[] spread = new double[4000];
+      spread[0] = 1e100;
+      spread[spread.length - 1] = -1e100;
+      for (int i=1; i<spread.length - 1; i++)
+         spread[i] = 1.0;
+      assertEquals(3998.0, FP.parReducep(spread, Fns.SUM_COMPENSATEDpdouble, 1000));
+
+      CompensatedSum twice = new CompensatedSum().add(cancel, 0, 4);
+      assertEquals(4.0, twice.combine(twice).getSum());
+      assertEquals(Double.POSITIVE_INFINITY, new CompensatedSum().add(Double.MAX_VALUE).add(Double.MAX_VALUE).getSum());
+      assertEquals(0.0, FP.parAccumulatep(new double[0], new CompensatedSum()).getSum());
+   }
+
+   public void testStats() throws Exception {
+      Stats stats = FP.accumulatep(doubles, new Stats());
+      assertEquals(6, stats.getCount());
+      assertEquals(21.0, stats.getSum());
+      assertEquals(1.0, stats.getMin());
+      assertEquals(6.0, stats.getMax());
+      assertEquals(3.5, stats.getMean(), 1e-15);
+      assertEquals(3.5, stats.getVariance(), 1e-14);
+      assertEquals(17.5 / 6.0, stats.getPopulationVariance(), 1e-14);
+      assertEquals(3.5, FP.accumulate(numbers, new Stats()).getMean(), 1e-15);
+      assertTrue(Double.isNaN(new Stats().getMean()));
+
+      // one pass agrees with separate reductions, and parallel with sequential
+      Random random = new Random(42);
+      double[] big = new double[200001];
+      for (int i=0; i<big.length; i++)
+         big[i] = 1e6 + random.nextGaussian() * 10.0;   // a big mean makes a naive sum of squares inaccurate
+      Stats one = FP.accumulatep(big, new Stats());
+      Stats par = FP.parAccumulatep(big, new Stats(), 1000);
+      assertEquals(FP.reducep(big, Fns.MINpdouble), par.getMin());
+      assertEquals(FP.reducep(big, Fns.MAXpdouble), par.getMax());
+      assertEquals(FP.reducep(big, Fns.SUM_COMPENSATEDpdouble), par.getSum(), 1e-6);
+      assertEquals(big.length, par.getCount());
+      assertEquals(one.getMean(), par.getMean(), 1e-9);
+      assertEquals(one.getVariance(), par.getVariance(), 1e-9);
+      assertEquals(100.0, par.getVariance(), 2.0);
+
+      Stats copy = new Stats();
+      for (double d : big)
+         copy.add(d);
+      assertEquals(one.getVariance(), copy.getVariance(), 1e-9);
+      DoubleBuffer direct = ByteBuffer.allocateDirect(8 * big.length).asDoubleBuffer();
+      direct.put(big).flip();
+      assertEquals(one.getVariance(), FP.accumulatep(direct, new Stats()).getVariance(), 1e-9);
+
+      Stats twice = FP.accumulatep(doubles, new Stats());
+      twice.combine(twice);
+      assertEquals(12, twice.getCount());
+      assertEquals(3.5, twice.getMean(), 1e-15);
+      assertEquals(17.5 * 2 / 11, twice.getVariance(), 1e-14);
+
+      try {
+         new Stats().combine(new Stats().trackQuantiles(0.01));
+         fail();
+      }
+      catch (IllegalArgumentException expected) {}
+   }
+
+   public void testQuantiles() throws Exception {
+      double[] uniform = new double[100001];
+      for (int i=0; i<uniform.length; i++)
+         uniform[i] = i - 50000;   // -50000 to 50000, including 0
+      Stats stats = FP.parAccumulatep(uniform, new Stats().trackQuantiles(0.01), 1000);
+      assertEquals(-50000.0, stats.getQuantile(0.0));
+      assertEquals(50000.0, stats.getQuantile(1.0));
+      assertEquals(0.0, stats.getQuantile(0.5));
+      assertEquals(49000.0, stats.getQuantile(0.99), 490.0);
+      assertEquals(-25000.0, stats.getQuantile(0.25), 250.0);
+      assertEquals(stats.getQuantile(0.9), FP.accumulatep(uniform, new QuantileSketch(0.01)).getQuantile(0.9));
+
+      Random random = new Random(42);
+      double[] skewed = new double[100000];
+      for (int i=0; i<skewed.length; i++)
+         skewed[i] = Math.exp(random.nextGaussian() * 5.0);   // many orders of magnitude
+      QuantileSketch sketch = FP.accumulatep(skewed, new QuantileSketch(0.02));
+      double[] sorted = skewed.clone();
+      Arrays.sort(sorted);
+      for (double q : new double[] { 0.01, 0.1, 0.5, 0.9, 0.999 }) {
+         double exact = sorted[(int) (q * (sorted.length - 1))];
+         assertEquals(exact, sketch.getQuantile(q), 0.02 * exact);
+      }
+
+      // too few buckets, so the smallest get collapsed, but the big ones are still accurate
+      QuantileSketch small = FP.accumulatep(skewed, new QuantileSketch(0.02, 300));
+      double exact = sorted[(int) (0.99 * (sorted.length - 1))];
+      assertEquals(exact, small.getQuantile(0.99), 0.02 * exact);
+      assertTrue(small.getQuantile(0.01) > sorted[(int) (0.01 * (sorted.length - 1))]);
+      assertTrue(Double.isNaN(new QuantileSketch(0.01).getQuantile(0.5)));
+   }
+
    public void testFilter() throws Exception {
       ArrayList l = FP.filter(numbers, new GT(3.3));
       assertEquals("[4, 5, 6]", l.toString());
@@ -86,6 +353,217 @@ public class FPTest extends TestCase {
    }
 
 
+   public void testParMap() throws Exception {
+      assertEquals("[2.0, 4.0, 6.0, 8.0, 10.0, 12.0]", FP.parMap(numbers, new Times(2.0)).toString());
+
+      List<Number> big = bigList();
+      assertEquals(FP.map(big, new Times(2.0)), FP.parMap(big, new Times(2.0), 1000));
+      assertEquals(FP.map(big, new Times(2.0)), FP.parMap(new LinkedList<Number>(big), new Times(2.0), 777));
+      assertTrue(FP.parMap(new ArrayList<Number>(), new Times(2.0)).isEmpty());
+   }
+
+   public void testParFilter() throws Exception {
+      assertEquals("[4, 5, 6]", FP.parFilter(numbers, new GT(3.3)).toString());
+
+      List<Number> big = bigList();
+      assertEquals(FP.filter(big, new GT(55555.5)), FP.parFilter(big, new GT(55555.5), 1000));
+      assertEquals(FP.filter(big, new GT(-1.0)), FP.parFilter(big, new GT(-1.0), 3));
+      assertTrue(FP.parFilter(big, new GT(1e9), 1000).isEmpty());
+      assertEquals(FP.filter(big, new GT(55555.5)), FP.parFilter(big, new GT(55555.5), Integer.MAX_VALUE));   // a single slice
+      assertEquals(FP.filter(big, new GT(55555.5)), FP.parFilter(big, new GT(55555.5), Integer.MAX_VALUE - 5));
+   }
+
+   public void testParReduce() throws Exception {
+      assertEquals(21.0, FP.parReduce(numbers, Fns.SUM).doubleValue());
+      assertEquals(720.0, FP.parFold(1.0, numbers, Fns.PRODUCT).doubleValue());
+      assertEquals(-1.0, FP.parFold(-1.0, new ArrayList<Number>(), Fns.SUM).doubleValue());
+
+      List<Number> big = bigList();
+      assertEquals(99999.0, FP.parReduce(big, Fns.MAX, 1000).doubleValue());
+      assertEquals(0.0, FP.parReduce(big, Fns.MIN, 1000).doubleValue());
+
+      // associative but not commutative, so the slices must be combined in order
+      List<String> letters = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k");
+      Fn<String,String> concat = new Fn.Base<String,String>() {
+         @Override public String fn2(String s1, String s2) { return s1 + s2; }
+      };
+      assertEquals("abcdefghijk", FP.parReduce(letters, concat, 2));
+
+      try {
+         FP.parReduce(new ArrayList<Number>(), Fns.SUM);
+         fail();
+      }
+      catch (NoSuchElementException expected) {}
+
+      double[] bigDoubles = new double[100000];
+      int[] bigInts = new int[100000];
+      for (int i=0; i<bigInts.length; i++) {
+         bigDoubles[i] = i;
+         bigInts[i] = i % 1000;
+      }
+      assertEquals(4999950000.0, FP.parReducep(bigDoubles, Fns.SUMpdouble, 1000));
+      assertEquals(99999.0, FP.parReducep(bigDoubles, Fns.MAXpdouble));
+      assertEquals(49950000, FP.parReducep(bigInts, Fns.SUMpint, 999));
+      assertEquals(21, FP.parReducep(ints, Fns.SUMpint));
+   }
+
+   public void testUnrolledReductions() throws Exception {
+      Random random = new Random(42);
+      for (int n=1; n<40; n++) {
+         double[] ds = new double[n];
+         int[] is = new int[n];
+         double sum = 0.0, prod = 1.0, abs = 0.0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+         int isum = 0, iprod = 1, imin = Integer.MAX_VALUE, imax = Integer.MIN_VALUE;
+         for (int i=0; i<n; i++) {
+            ds[i] = random.nextDouble() * 2.0 - 0.5;
+            is[i] = random.nextInt();
+            sum += ds[i];
+            prod *= ds[i];
+            abs += Math.abs(ds[i]);
+            min = Math.min(min, ds[i]);
+            max = Math.max(max, ds[i]);
+            isum += is[i];
+            iprod *= is[i];
+            imin = Math.min(imin, is[i]);
+            imax = Math.max(imax, is[i]);
+         }
+
+         double ulps = n * Math.ulp(1.0);
+         assertEquals(sum, Fns.SUMpdouble.fnN(ds), 2 * ulps * abs);
+         assertEquals(prod, Fns.PRODUCTpdouble.fnN(ds), 2 * ulps * Math.abs(prod));
+         assertEquals(min, Fns.MINpdouble.fnN(ds));
+         assertEquals(max, Fns.MAXpdouble.fnN(ds));
+
+         assertEquals(isum, Fns.SUMpint.fnN(is));
+         assertEquals(iprod, Fns.PRODUCTpint.fnN(is));
+         assertEquals(imin, Fns.MINpint.fnN(is));
+         assertEquals(imax, Fns.MAXpint.fnN(is));
+      }
+
+      // NaNs are skipped, unless first
+      assertEquals(1.0, Fns.MINpdouble.fnN(3.0, Double.NaN, 2.0, 1.0, Double.NaN, 5.0));
+      assertEquals(5.0, Fns.MAXpdouble.fnN(3.0, Double.NaN, 2.0, 1.0, Double.NaN, 5.0));
+      assertTrue(Double.isNaN(Fns.MINpdouble.fnN(Double.NaN, 2.0, 1.0, 0.0, 4.0, 5.0)));
+   }
+
+   public void testParSearch() throws Exception {
+      assertTrue(FP.parEvery(numbers, new GT(-3.3)));
+      assertFalse(FP.parEvery(numbers, new GT(3.3)));
+      assertTrue(FP.parExists(numbers, new GT(5.5)));
+      assertFalse(FP.parExists(numbers, new GT(99.9)));
+      assertEquals(3, FP.parIndexOf(numbers, new GT(3.3)));
+      assertEquals(2, FP.parIndexOf("c", "a", "b", "c", "d", "c"));
+      assertEquals(1, FP.parIndexOf(null, "a", null, "c"));
+      assertEquals(-1, FP.parIndexOf("z", "a", "b"));
+      assertTrue(FP.parEvery(new ArrayList<Number>(), new GT(1.0)));
+
+      // lowest index, even when later slices match first
+      List<Number> big = bigList();
+      for (int t : new int[] { 1, 7, 1000, 100000 }) {
+         assertEquals(77777, FP.parIndexOf(big, new GT(77776.5), t));
+         assertEquals(-1, FP.parIndexOf(big, new GT(1e9), t));
+      }
+      Fn<Number,Boolean> aboveTen = new Fn.Base<Number,Boolean>() {
+         @Override public Boolean fn1(Number n1) {
+            return (n1.intValue() > 10) && (n1.intValue() % 3 == 0);
+         }
+      };
+      assertEquals(12, FP.parIndexOf(big, aboveTen, 16));
+
+      // the others stop once a decisive one is found
+      CountingGT counting = new CountingGT(10.5);
+      assertTrue(FP.parExists(big, counting, 100));
+      assertTrue(counting.calls.get() < big.size() / 10);
+      counting = new CountingGT(-1.0);
+      assertFalse(FP.parEvery(big, new Not(counting), 100));
+      assertTrue(counting.calls.get() < big.size() / 10);
+      counting = new CountingGT(20.5);
+      assertEquals(21, FP.parIndexOf(big, counting, 100));
+      assertTrue(counting.calls.get() < big.size() / 10);
+   }
+
+
+   public void testJoin() throws Exception {
+      assertEquals("1,2,3", FP.join(Arrays.asList(1, 2, 3)));
+      assertEquals("a -  - c", FP.join(" - ", Arrays.asList("a", null, "c")));
+      assertEquals("", FP.join(", ", new ArrayList<String>()));
+      assertEquals("solo", FP.join(", ", Arrays.asList("solo")));
+      assertEquals("x,2,true", FP.join("x", 2, true));   // varargs
+
+      // not a Collection, so no precomputed length
+      Iterable<Integer> notACollection = new Iterable<Integer>() {
+         @Override
+         public Iterator<Integer> iterator() {
+            return Arrays.asList(1, 2).iterator();
+         }
+      };
+      assertEquals("1;2", FP.join(";", notACollection));
+
+      StringBuilder sb = new StringBuilder("start:");
+      assertSame(sb, FP.join(sb, "", Arrays.asList("a", "b")));
+      assertEquals("start:ab", sb.toString());
+
+      StringWriter writer = new StringWriter();
+      assertSame(writer, FP.join(writer, "|", Arrays.asList("x", 1, 2.5)));
+      assertEquals("x|1|2.5", writer.toString());
+
+      CharBuffer chars = CharBuffer.allocate(5);
+      FP.join(chars, ",", Arrays.asList("a", "b", "c"));
+      chars.flip();
+      assertEquals("a,b,c", chars.toString());
+      try {
+         FP.join(CharBuffer.allocate(2), ",", Arrays.asList("a", "b"));
+         fail();
+      }
+      catch (BufferOverflowException expected) {}
+
+      assertEquals(5, FP.joinedLength(",", Arrays.asList("a", "b", "c")));
+      assertEquals(4, FP.joinedLength(", ", Arrays.asList("ab", null)));
+   }
+
+   public void testSeq() throws Exception {
+      Seq<Number> doubledBig = Seq.of(numbers).map(new Times(2.0)).filter(new GT(5.0));
+      assertEquals("[6.0, 8.0, 10.0, 12.0]", doubledBig.toList().toString());
+      assertEquals(36.0, doubledBig.fold(0.0, Fns.SUM).doubleValue());
+      assertEquals(6.0, doubledBig.reduce(Fns.MIN).doubleValue());
+      assertEquals(4, doubledBig.count());
+      assertEquals("[8.0, 10.0]", doubledBig.drop(1).take(2).toString());
+      assertEquals("[1, 2, 3]", Seq.of(numbers).takeWhile(new LT(3.5)).toString());
+      assertEquals(6.0, doubledBig.first().doubleValue());
+      assertNull(doubledBig.filter(new GT(99.0)).first());
+      assertTrue(doubledBig.exists(new GT(11.0)));
+      assertFalse(doubledBig.every(new GT(7.0)));
+      assertTrue(Seq.of(1, 2, 3).every(new GT(0.0)));
+
+      // fused and lazy: only as much of the source as needed is mapped
+      Counting counting = new Counting();
+      assertEquals("[8.0, 10.0]", Seq.of(bigList()).map(counting).filter(new GT(7.0)).take(2).toString());
+      assertEquals(6, counting.calls);
+      counting.calls = 0;
+      assertTrue(Seq.of(bigList()).map(counting).exists(new GT(20.0)));
+      assertEquals(12, counting.calls);
+      counting.calls = 0;
+      assertFalse(Seq.of(bigList()).map(counting).every(new LT(20.0)));
+      assertEquals(11, counting.calls);
+      counting.calls = 0;
+      assertEquals(0, Seq.of(bigList()).map(counting).take(0).count());
+      assertEquals(0, counting.calls);
+
+      try {
+         Seq.of(numbers).filter(new GT(99.0)).reduce(Fns.SUM);
+         fail();
+      }
+      catch (NoSuchElementException expected) {}
+   }
+
+   static List<Number> bigList() {
+      List<Number> big = new ArrayList<Number>();
+      for (int i=0; i<100000; i++)
+         big.add(i);
+      return big;
+   }
+
+
    static class Times extends Fn.Base<Number, Number> {
       final double multiplier;
       Times(double d) { multiplier = d; }
@@ -97,6 +575,48 @@ public class FPTest extends TestCase {
 
    }
    
+   static class LT extends Fn.Base<Number, Number> {
+      final double lt;
+      LT(double d) { lt = d; }
+
+      @Override
+      public Number fn1(Number n1) {
+         return (n1.doubleValue() < lt) ? n1 : null;
+      }
+   }
+
+   static class Counting extends Times {
+      int calls = 0;
+      Counting() { super(2.0); }
+
+      @Override
+      public Number fn1(Number n1) {
+         calls++;
+         return super.fn1(n1);
+      }
+   }
+
+   static class CountingGT extends GT {
+      final AtomicInteger calls = new AtomicInteger();
+      CountingGT(double d) { super(d); }
+
+      @Override
+      public Number fn1(Number n1) {
+         calls.incrementAndGet();
+         return super.fn1(n1);
+      }
+   }
+
+   static class Not extends Fn.Base<Number, Boolean> {
+      final Fn<Number, ?> fn;
+      Not(Fn<Number, ?> fn) { this.fn = fn; }
+
+      @Override
+      public Boolean fn1(Number n1) {
+         return FP.isFalse(fn.fn1(n1));
+      }
+   }
+
    static class GT extends Fn.Base<Number, Number> {
       final double gt;
       GT(double d) { gt = d; }